@@ -0,0 +1,127 @@
+package com.hortonworks.nifi.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.codehaus.jettison.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hortonworks.nifi.controller.LivySessionController;
+import com.hortonworks.nifi.controller.api.LivySessionLease;
+import com.hortonworks.nifi.controller.api.LivySessionService;
+import com.hortonworks.nifi.processors.ExecuteSparkInteractive;
+import com.hortonworks.nifi.simulator.FakeLivyServer;
+import com.hortonworks.nifi.simulator.LatencyDistribution;
+
+/**
+ * Session selection with many processor threads asking the controller for a session at once.
+ * The original getSession() scanned a map of JSON session info and handed the same idle session
+ * to every caller; acquireSession() leases a distinct session per caller and releases it again.
+ * The controller service runs as it does in NiFi, against a pool opened on {@link FakeLivyServer}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SessionAcquireBenchmark {
+	private static final String KIND = "spark";
+
+	@Param({"4", "16"})
+	public int poolSize;
+
+	private FakeLivyServer livy;
+	private TestRunner runner;
+	private LivySessionService sessionService;
+	private Map<Integer, JSONObject> legacySessions;
+
+	@Setup
+	public void setup() throws Exception{
+		livy = new FakeLivyServer.Builder().sessionStartup(LatencyDistribution.fixed(10)).build().start();
+		runner = TestRunners.newTestRunner(ExecuteSparkInteractive.class);
+		LivySessionController controller = new LivySessionController();
+		runner.addControllerService("livy", controller);
+		runner.setProperty(controller, LivySessionController.LIVY_HOST, "localhost");
+		runner.setProperty(controller, LivySessionController.LIVY_PORT, String.valueOf(livy.getPort()));
+		runner.setProperty(controller, LivySessionController.SESSION_POOL_SIZE, String.valueOf(poolSize));
+		runner.enableControllerService(controller);
+		sessionService = controller;
+
+		//Lease every session once so the measurement starts with the whole pool idle
+		List<LivySessionLease> leases = new ArrayList<LivySessionLease>();
+		for(int i=0; i<poolSize; i++){
+			LivySessionLease lease = sessionService.acquireSession(30, TimeUnit.SECONDS);
+			if(lease == null){
+				throw new IllegalStateException("The session pool did not start");
+			}
+			leases.add(lease);
+		}
+		for(LivySessionLease lease: leases){
+			lease.release();
+		}
+
+		legacySessions = new ConcurrentHashMap<Integer, JSONObject>();
+		for(int i=0; i<poolSize; i++){
+			legacySessions.put(i, new JSONObject().put("id", i).put("state", "idle").put("kind", KIND));
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		runner.disableControllerService(runner.getControllerService("livy"));
+		livy.close();
+	}
+
+	@Benchmark
+	public Map<String,String> legacyGetSession() throws Exception{
+		Map<String,String> sessionMap = new HashMap<String,String>();
+		for(int sessionId: legacySessions.keySet()){
+			JSONObject currentSession = legacySessions.get(sessionId);
+			String state = currentSession.getString("state");
+			String sessionKind = currentSession.getString("kind");
+			if(state.equalsIgnoreCase("idle") && sessionKind.equalsIgnoreCase(KIND)){
+				sessionMap.put("sessionId",String.valueOf(sessionId));
+				sessionMap.put("livyUrl",livy.getUrl());
+			}
+		}
+		return sessionMap;
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public Map<String,String> getSession(){
+		return sessionService.getSession();
+	}
+
+	/**
+	 * Leases a session without waiting and gives it back; callers that find every session leased get nothing.
+	 */
+	@Benchmark
+	public LivySessionLease acquireAndRelease() throws Exception{
+		LivySessionLease lease = sessionService.acquireSession(0, TimeUnit.MILLISECONDS);
+		if(lease != null){
+			lease.release();
+		}
+		return lease;
+	}
+}
@@ -0,0 +1,65 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a statement response: the original character-at-a-time readAll into a String plus a
+ * Jettison JSONObject, against the streaming {@link LivyStatement} parser.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StatementParsingBenchmark {
+	@Param({"100", "10000", "1000000"})
+	public int outputChars;
+
+	private byte[] response;
+
+	@Setup
+	public void setup() throws Exception{
+		response = StatementResponses.availableStatement(outputChars);
+	}
+
+	@Benchmark
+	public JSONObject readAllJettison() throws Exception{
+		BufferedReader rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(response), Charset.forName("UTF-8")));
+		JSONObject jobInfo = new JSONObject(readAll(rd));
+		jobInfo.getString("state");
+		return jobInfo.getJSONObject("output").getJSONObject("data");
+	}
+
+	@Benchmark
+	public LivyStatement streaming() throws Exception{
+		return LivyStatement.read(new ByteArrayInputStream(response));
+	}
+
+	private static String readAll(Reader rd) throws Exception{
+		StringBuilder sb = new StringBuilder();
+		int cp;
+		while ((cp = rd.read()) != -1) {
+			sb.append((char) cp);
+		}
+		return sb.toString();
+	}
+}
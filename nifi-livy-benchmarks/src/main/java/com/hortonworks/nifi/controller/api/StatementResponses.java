@@ -0,0 +1,48 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Builds statement responses shaped like the ones Livy returns from /sessions/{id}/statements/{id}.
+ */
+public class StatementResponses {
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * @param outputChars approximate length of the text/plain output, made of lines containing quotes and tabs so that escaping is exercised
+	 */
+	public static byte[] availableStatement(int outputChars) throws IOException{
+		ByteArrayOutputStream response = new ByteArrayOutputStream(outputChars + 256);
+		JsonGenerator generator = JSON_FACTORY.createJsonGenerator(response, JsonEncoding.UTF8);
+		generator.writeStartObject();
+		generator.writeNumberField("id", 42);
+		generator.writeStringField("code", "df.groupBy(\"key\").count().show()");
+		generator.writeStringField("state", "available");
+		generator.writeObjectFieldStart("output");
+		generator.writeStringField("status", "ok");
+		generator.writeNumberField("execution_count", 42);
+		generator.writeObjectFieldStart("data");
+		generator.writeStringField("text/plain", outputText(outputChars));
+		generator.writeEndObject();
+		generator.writeEndObject();
+		generator.writeNumberField("progress", 1.0);
+		generator.writeEndObject();
+		generator.close();
+		return response.toByteArray();
+	}
+
+	public static String outputText(int chars){
+		StringBuilder text = new StringBuilder(chars + 64);
+		int row = 0;
+		while(text.length() < chars){
+			text.append("|\t").append(row).append("\t|\t\"value-").append(row % 97).append("\"\t|\n");
+			row++;
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,90 @@
+package com.hortonworks.nifi.processors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hortonworks.nifi.controller.api.CodePayloadEntity;
+
+/**
+ * Building the JSON payload of a statement from the code of a FlowFile: the original regex
+ * newline replacement plus string concatenation, against the escaping {@link CodePayloadEntity}
+ * writing code from an attribute or streaming it from content.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PayloadBenchmark {
+	private static final int BATCH_SIZE = 10;
+
+	@Param({"1", "20", "500"})
+	public int codeLines;
+
+	private String code;
+	private byte[] codeBytes;
+	private ByteArrayOutputStream payload;
+	private List<String> batchCodes;
+
+	@Setup
+	public void setup(){
+		StringBuilder builder = new StringBuilder();
+		for(int i=0; i<codeLines; i++){
+			builder.append("val df").append(i).append(" = spark.read.json(\"/data/events/").append(i).append("\").filter(\"type = 'click'\")\r\n");
+		}
+		code = builder.toString();
+		codeBytes = code.getBytes(Charset.forName("UTF-8"));
+		payload = new ByteArrayOutputStream(codeBytes.length * 2 + 64);
+		batchCodes = new ArrayList<String>(BATCH_SIZE);
+		for(int i=0; i<BATCH_SIZE; i++){
+			batchCodes.add(code);
+		}
+	}
+
+	@Benchmark
+	public String replaceAllConcatenation(){
+		String escaped = code.replaceAll("(\\r|\\n|\\r\\n)+", "\\\\n");
+		return "{\"code\":\""+escaped+"\"}";
+	}
+
+	@Benchmark
+	public int attributePayload() throws Exception{
+		payload.reset();
+		new CodePayloadEntity(code).writeTo(payload);
+		return payload.size();
+	}
+
+	@Benchmark
+	public int streamedContentPayload() throws Exception{
+		payload.reset();
+		new CodePayloadEntity(null, new ByteArrayInputStream(codeBytes)).writeTo(payload);
+		return payload.size();
+	}
+
+	/**
+	 * Payload of a micro-batch of {@value #BATCH_SIZE} FlowFiles, reported per batch.
+	 */
+	@Benchmark
+	public int batchPayload() throws Exception{
+		payload.reset();
+		new CodePayloadEntity(new StatementBatch("spark", batchCodes).getCode()).writeTo(payload);
+		return payload.size();
+	}
+}
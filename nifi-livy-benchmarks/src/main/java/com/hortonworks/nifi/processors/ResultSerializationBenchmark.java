@@ -0,0 +1,99 @@
+package com.hortonworks.nifi.processors;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hortonworks.nifi.controller.api.LivyStatement;
+import com.hortonworks.nifi.controller.api.StatementResponses;
+
+/**
+ * Turning a statement response into FlowFile content. The original code parsed the response into a
+ * JSONObject and wrote its toString() bytes; the processor now copies the output data straight from
+ * the response stream, and micro-batched items are written from their split output.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ResultSerializationBenchmark {
+	@Param({"100", "10000", "1000000"})
+	public int outputChars;
+
+	private byte[] response;
+	private JSONObject parsedData;
+	private StatementBatch.ItemResult itemResult;
+	private ByteArrayOutputStream content;
+
+	@Setup
+	public void setup() throws Exception{
+		response = StatementResponses.availableStatement(outputChars);
+		parsedData = new JSONObject(new String(response, "UTF-8")).getJSONObject("output").getJSONObject("data");
+		content = new ByteArrayOutputStream(outputChars * 2 + 256);
+
+		StatementBatch batch = new StatementBatch("spark", Collections.singletonList("spark.range(10).show()"));
+		//Recover the batch marker from the generated code to fake the output the REPL would print
+		String marker = batch.getCode().substring(batch.getCode().indexOf("\"@@") + 1);
+		marker = marker.substring(0, marker.indexOf("@@", 2) + 2);
+		String text = marker + "0:begin\n" + StatementResponses.outputText(outputChars) + marker + "0:ok\n";
+		ByteArrayOutputStream outputData = new ByteArrayOutputStream();
+		outputData.write(("{\"text/plain\":" + JSONObject.quote(text) + "}").getBytes("UTF-8"));
+		List<StatementBatch.ItemResult> results = batch.split(outputData.toByteArray());
+		itemResult = results.get(0);
+	}
+
+	@Benchmark
+	public int parseAndWriteToString() throws Exception{
+		content.reset();
+		BufferedReader rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(response), Charset.forName("UTF-8")));
+		StringBuilder sb = new StringBuilder();
+		int cp;
+		while ((cp = rd.read()) != -1) {
+			sb.append((char) cp);
+		}
+		JSONObject result = new JSONObject(sb.toString()).getJSONObject("output").getJSONObject("data");
+		content.write(result.toString().getBytes());
+		return content.size();
+	}
+
+	@Benchmark
+	public int writeToStringOnly() throws Exception{
+		content.reset();
+		content.write(parsedData.toString().getBytes());
+		return content.size();
+	}
+
+	@Benchmark
+	public int streamingCopy() throws Exception{
+		content.reset();
+		LivyStatement.copyOutputData(new ByteArrayInputStream(response), content);
+		return content.size();
+	}
+
+	@Benchmark
+	public int batchItemWrite() throws Exception{
+		content.reset();
+		itemResult.writeTo(content);
+		return content.size();
+	}
+}
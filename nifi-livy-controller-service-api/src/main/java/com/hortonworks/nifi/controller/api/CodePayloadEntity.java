@@ -0,0 +1,154 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Request body of a statement submission, {"code": "..."}, with the code escaped as a JSON string
+ * while it is written. The code can be given as a string or streamed from an input stream such as
+ * FlowFile content, in which case it is never held in memory as a whole and the request is sent
+ * chunked.
+ */
+public class CodePayloadEntity extends AbstractHttpEntity {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String prefix;
+    private final String code;
+    private final InputStream codeStream;
+    private boolean consumed = false;
+
+    public CodePayloadEntity(String code) {
+        this(null, code, null);
+    }
+
+    /**
+     * @param prefix code to run before the streamed code, may be null
+     * @param codeStream UTF-8 encoded code, read once when the request is sent
+     */
+    public CodePayloadEntity(String prefix, InputStream codeStream) {
+        this(prefix, null, codeStream);
+    }
+
+    private CodePayloadEntity(String prefix, String code, InputStream codeStream) {
+        this.prefix = prefix;
+        this.code = code;
+        this.codeStream = codeStream;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(codeStream != null);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return codeStream == null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return codeStream != null && !consumed;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (codeStream != null) {
+            throw new UnsupportedOperationException("A streamed code payload can only be written");
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeTo(payload);
+        return new ByteArrayInputStream(payload.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (consumed) {
+            throw new IllegalStateException("The code stream has already been sent");
+        }
+        //The writer is flushed but not closed, the caller owns the output stream
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        char[] buffer = new char[BUFFER_SIZE];
+        writer.write("{\"code\":\"");
+        if (prefix != null) {
+            writeEscaped(prefix, buffer, writer);
+        }
+        if (code != null) {
+            writeEscaped(code, buffer, writer);
+        } else {
+            consumed = true;
+            Reader reader = new InputStreamReader(codeStream, UTF8);
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                writeEscaped(buffer, read, writer);
+            }
+        }
+        writer.write("\"}");
+        writer.flush();
+    }
+
+    private void writeEscaped(String value, char[] buffer, Writer writer) throws IOException {
+        for (int start = 0; start < value.length(); start += buffer.length) {
+            int end = Math.min(value.length(), start + buffer.length);
+            value.getChars(start, end, buffer, 0);
+            writeEscaped(buffer, end - start, writer);
+        }
+    }
+
+    /**
+     * Writes characters as the contents of a JSON string, copying runs that need no escaping as they are.
+     */
+    private void writeEscaped(char[] chars, int length, Writer writer) throws IOException {
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writer.write(chars, runStart, i - runStart);
+            runStart = i + 1;
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                default:
+                    writer.write("\\u00");
+                    writer.write(HEX[c >> 4]);
+                    writer.write(HEX[c & 0xF]);
+            }
+        }
+        writer.write(chars, runStart, length - runStart);
+    }
+}
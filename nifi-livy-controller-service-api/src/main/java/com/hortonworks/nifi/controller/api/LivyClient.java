@@ -0,0 +1,255 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * HTTP transport to the Livy REST API shared by the session controller and every processor using it.
+ * Connections are kept alive and pooled up to a fixed maximum, and every response body is fully
+ * consumed so that its connection goes back to the pool.
+ */
+public class LivyClient implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final LivyMetrics metrics;
+
+    public LivyClient(int maxConnections, int connectTimeoutMillis, int readTimeoutMillis, boolean compression, LivyMetrics metrics) {
+        this.metrics = metrics;
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        //Re-check connections that sat in the pool for a while, Livy closes idle connections on its side
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+                .build();
+
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(30, TimeUnit.SECONDS);
+        if (!compression) {
+            builder.disableContentCompression();
+        }
+        httpClient = builder.build();
+    }
+
+    public JSONObject get(String url) throws IOException {
+        return execute(new HttpGet(url), JSON_HANDLER);
+    }
+
+    public JSONObject post(String url, String payload) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity(payload, ContentType.APPLICATION_JSON));
+        return execute(post, JSON_HANDLER);
+    }
+
+    /**
+     * Reads the status of a statement, skipping over its output data.
+     */
+    public LivyStatement getStatement(String url) throws IOException {
+        return execute(new HttpGet(url), STATEMENT_HANDLER);
+    }
+
+    /**
+     * Reads the statements listed at the given URL, such as {session URL}/statements?order=desc&size=10,
+     * without their output data.
+     */
+    public List<LivyStatement> getStatements(String url) throws IOException {
+        return execute(new HttpGet(url), STATEMENT_LIST_HANDLER);
+    }
+
+    /**
+     * Submits a statement and reads back the status Livy created it with.
+     */
+    public LivyStatement postStatement(String url, String payload) throws IOException {
+        return postStatement(url, new StringEntity(payload, ContentType.APPLICATION_JSON));
+    }
+
+    /**
+     * Submits a statement whose request body is written by the given entity, for instance a streamed {@link CodePayloadEntity}.
+     */
+    public LivyStatement postStatement(String url, HttpEntity payload) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(payload);
+        return execute(post, STATEMENT_HANDLER);
+    }
+
+    /**
+     * Streams the output data of a completed statement to the given stream.
+     *
+     * @return true if the statement had output data
+     */
+    public boolean copyStatementOutput(String url, final OutputStream out) throws IOException {
+        return execute(new HttpGet(url), new ResponseHandler<Boolean>() {
+            @Override
+            public Boolean handleResponse(HttpResponse response) throws IOException {
+                checkStatus(response);
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return false;
+                }
+                InputStream in = entity.getContent();
+                try {
+                    return LivyStatement.copyOutputData(in, out);
+                } finally {
+                    EntityUtils.consume(entity);
+                }
+            }
+        });
+    }
+
+    /**
+     * Streams the output data of a statement from the response to the given handler.
+     *
+     * @return true if the statement has output data
+     */
+    public boolean readStatementOutput(String url, final LivyStatement.OutputDataHandler handler) throws IOException {
+        return execute(new HttpGet(url), new ResponseHandler<Boolean>() {
+            @Override
+            public Boolean handleResponse(HttpResponse response) throws IOException {
+                checkStatus(response);
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return false;
+                }
+                InputStream in = entity.getContent();
+                try {
+                    return LivyStatement.readOutputData(in, handler);
+                } finally {
+                    EntityUtils.consume(entity);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks Livy to cancel the statement at the given URL. Cancellation is asynchronous: the
+     * statement goes through the cancelling state before it is cancelled.
+     */
+    public void cancelStatement(String statementUrl) throws IOException {
+        post(statementUrl + "/cancel", "{}");
+    }
+
+    public void delete(String url) throws IOException {
+        execute(new HttpDelete(url), DISCARD_HANDLER);
+    }
+
+    private <T> T execute(HttpRequestBase request, ResponseHandler<T> handler) throws IOException {
+        request.setHeader("Content-Type", "application/json");
+        request.setHeader("X-Requested-By", "user");
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            T result = httpClient.execute(request, handler);
+            error = false;
+            return result;
+        } finally {
+            metrics.recordHttpCall(request.getMethod(), request.getURI().toString(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /**
+     * @throws HttpResponseException carrying the status code if the response is not a success
+     */
+    private static void checkStatus(HttpResponse response) throws IOException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode < 200 || statusCode >= 300) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new HttpResponseException(statusCode, "Failed : HTTP error code : " + statusCode + " : " + response.getStatusLine().getReasonPhrase());
+        }
+    }
+
+    private static final ResponseHandler<JSONObject> JSON_HANDLER = new ResponseHandler<JSONObject>() {
+        @Override
+        public JSONObject handleResponse(HttpResponse response) throws IOException {
+            checkStatus(response);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Livy returned an empty response");
+            }
+            try {
+                return new JSONObject(EntityUtils.toString(entity, UTF8));
+            } catch (JSONException e) {
+                throw new IOException("Livy returned a response that is not a JSON object", e);
+            }
+        }
+    };
+
+    private static final ResponseHandler<LivyStatement> STATEMENT_HANDLER = new ResponseHandler<LivyStatement>() {
+        @Override
+        public LivyStatement handleResponse(HttpResponse response) throws IOException {
+            checkStatus(response);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Livy returned an empty response");
+            }
+            InputStream in = entity.getContent();
+            try {
+                return LivyStatement.read(in);
+            } finally {
+                EntityUtils.consume(entity);
+            }
+        }
+    };
+
+    private static final ResponseHandler<List<LivyStatement>> STATEMENT_LIST_HANDLER = new ResponseHandler<List<LivyStatement>>() {
+        @Override
+        public List<LivyStatement> handleResponse(HttpResponse response) throws IOException {
+            checkStatus(response);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Livy returned an empty response");
+            }
+            InputStream in = entity.getContent();
+            try {
+                return LivyStatement.readList(in);
+            } finally {
+                EntityUtils.consume(entity);
+            }
+        }
+    };
+
+    private static final ResponseHandler<Void> DISCARD_HANDLER = new ResponseHandler<Void>() {
+        @Override
+        public Void handleResponse(HttpResponse response) throws IOException {
+            checkStatus(response);
+            EntityUtils.consume(response.getEntity());
+            return null;
+        }
+    };
+}
@@ -0,0 +1,173 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Live instrumentation of a Livy session pool: pool gauges refreshed by the session manager,
+ * lease, startup and statement latencies, and call counts and timings per Livy REST endpoint.
+ */
+public class LivyMetrics {
+    private static final Pattern NUMERIC_PATH_SEGMENT = Pattern.compile("/\\d+(?=/|$)");
+
+    private volatile int idleSessions;
+    private volatile int busySessions;
+    private volatile int leasedSessions;
+    private volatile int startingSessions;
+    private volatile int deadSessions;
+
+    private final LatencyHistogram leaseWait = new LatencyHistogram();
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+    private final LatencyHistogram sessionStartup = new LatencyHistogram();
+    private final LatencyHistogram statementLatency = new LatencyHistogram();
+    private final AtomicLong statementsFailed = new AtomicLong();
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    public void updatePool(int idle, int busy, int leased, int starting, int dead) {
+        this.idleSessions = idle;
+        this.busySessions = busy;
+        this.leasedSessions = leased;
+        this.startingSessions = starting;
+        this.deadSessions = dead;
+    }
+
+    public void recordLeaseWait(long millis) {
+        leaseWait.record(millis);
+    }
+
+    public void recordLeaseTimeout() {
+        leaseTimeouts.incrementAndGet();
+    }
+
+    public void recordSessionStartup(long millis) {
+        sessionStartup.record(millis);
+    }
+
+    /**
+     * Records the time from submitting a statement to seeing it complete.
+     */
+    public void recordStatement(long millis, boolean successful) {
+        statementLatency.record(millis);
+        if (!successful) {
+            statementsFailed.incrementAndGet();
+        }
+    }
+
+    public void recordHttpCall(String method, String url, long millis, boolean error) {
+        String endpoint = method + " " + toEndpoint(url);
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics == null) {
+            EndpointMetrics newMetrics = new EndpointMetrics();
+            metrics = endpoints.putIfAbsent(endpoint, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        metrics.latency.record(millis);
+        if (error) {
+            metrics.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reduces a Livy URL to the endpoint it calls, e.g. /sessions/{id}/statements/{id}.
+     */
+    static String toEndpoint(String url) {
+        int pathStart = url.indexOf('/', url.indexOf("//") + 2);
+        String path = pathStart < 0 ? "/" : url.substring(pathStart);
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            path = path.substring(0, queryStart);
+        }
+        return NUMERIC_PATH_SEGMENT.matcher(path).replaceAll("/{id}");
+    }
+
+    public int getIdleSessions() {
+        return idleSessions;
+    }
+
+    public int getBusySessions() {
+        return busySessions;
+    }
+
+    public int getLeasedSessions() {
+        return leasedSessions;
+    }
+
+    public int getStartingSessions() {
+        return startingSessions;
+    }
+
+    public int getDeadSessions() {
+        return deadSessions;
+    }
+
+    public LatencyHistogram getLeaseWait() {
+        return leaseWait;
+    }
+
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    public LatencyHistogram getSessionStartup() {
+        return sessionStartup;
+    }
+
+    public LatencyHistogram getStatementLatency() {
+        return statementLatency;
+    }
+
+    public long getStatementsFailed() {
+        return statementsFailed.get();
+    }
+
+    /**
+     * @return metrics per endpoint, keyed by HTTP method and endpoint path
+     */
+    public Map<String, EndpointMetrics> getEndpoints() {
+        return Collections.unmodifiableMap(new TreeMap<String, EndpointMetrics>(endpoints));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("sessions: idle=").append(idleSessions).append(", busy=").append(busySessions)
+                .append(", leased=").append(leasedSessions).append(", starting=").append(startingSessions)
+                .append(", dead=").append(deadSessions)
+                .append("; lease wait: ").append(leaseWait).append(", timeouts=").append(getLeaseTimeouts())
+                .append("; session startup: ").append(sessionStartup)
+                .append("; statements: ").append(statementLatency).append(", failed=").append(getStatementsFailed());
+        for (Map.Entry<String, EndpointMetrics> endpoint : getEndpoints().entrySet()) {
+            summary.append("; ").append(endpoint.getKey()).append(": ").append(endpoint.getValue());
+        }
+        return summary.toString();
+    }
+
+    public static class EndpointMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        @Override
+        public String toString() {
+            return latency + ", errors=" + getErrors();
+        }
+    }
+}
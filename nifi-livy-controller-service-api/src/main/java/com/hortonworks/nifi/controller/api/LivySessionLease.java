@@ -0,0 +1,43 @@
+package com.hortonworks.nifi.controller.api;
+
+/**
+ * Exclusive hold on one pooled Livy session. A session that is leased is not handed out
+ * to any other caller until {@link #release()} is called, so callers must always release
+ * the lease when they are done with the session (typically in a finally block).
+ */
+public interface LivySessionLease {
+    int getSessionId();
+
+    String getLivyUrl();
+
+    String getKind();
+
+    /**
+     * Records that code run on the session has cached the named dataset, so that later requests
+     * requiring it are routed to this session. If the session then holds more than the controller
+     * allows, its least recently used datasets are unpersisted, which runs statements on the
+     * session before this method returns.
+     *
+     * @param sizeBytes estimated size of the cached dataset, 0 if unknown
+     */
+    void addCachedDataset(String dataset, long sizeBytes);
+
+    /**
+     * Returns the session to the pool. Calling release more than once has no effect.
+     */
+    void release();
+
+    /**
+     * Returns the session to the pool after a statement running on it has been cancelled. The
+     * session is not leased again until Livy reports it idle, so that the next caller does not
+     * queue behind the statement while it winds down.
+     */
+    void releaseCancelled();
+
+    /**
+     * Ends the lease and closes the session, for a session that cannot be trusted to run further
+     * statements, such as one running a statement that could not be cancelled. The pool opens a
+     * replacement.
+     */
+    void invalidate();
+}
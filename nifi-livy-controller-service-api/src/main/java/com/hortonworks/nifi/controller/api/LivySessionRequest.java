@@ -0,0 +1,87 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * What a caller needs from the session it leases from a {@link LivySessionService}.
+ * {@link #ANY} accepts any session of the pool.
+ */
+public class LivySessionRequest {
+    public static final LivySessionRequest ANY = new Builder().build();
+
+    private final String kind;
+    private final String initProfile;
+    private final Set<String> requiredDatasets;
+
+    private LivySessionRequest(Builder builder) {
+        this.kind = builder.kind;
+        this.initProfile = builder.initProfile;
+        this.requiredDatasets = Collections.unmodifiableSet(new LinkedHashSet<String>(builder.requiredDatasets));
+    }
+
+    /**
+     * @return the kind of the session, as spark or pyspark, or null for the default kind of the service
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the init profile whose code must have run on the session, or null if any session will do
+     */
+    public String getInitProfile() {
+        return initProfile;
+    }
+
+    /**
+     * @return names of cached datasets the caller's code uses. Sessions already holding them are preferred,
+     * but any session may be leased, in which case the code has to build them itself.
+     */
+    public Set<String> getRequiredDatasets() {
+        return requiredDatasets;
+    }
+
+    @Override
+    public String toString() {
+        return "LivySessionRequest[kind=" + kind + ", initProfile=" + initProfile + ", requiredDatasets=" + requiredDatasets + "]";
+    }
+
+    public static class Builder {
+        private String kind;
+        private String initProfile;
+        private final Set<String> requiredDatasets = new LinkedHashSet<String>();
+
+        public Builder() {
+        }
+
+        /**
+         * Starts from the criteria of an existing request.
+         */
+        public Builder(LivySessionRequest request) {
+            this.kind = request.kind;
+            this.initProfile = request.initProfile;
+            this.requiredDatasets.addAll(request.requiredDatasets);
+        }
+
+        public Builder kind(String kind) {
+            this.kind = kind;
+            return this;
+        }
+
+        public Builder initProfile(String initProfile) {
+            this.initProfile = initProfile;
+            return this;
+        }
+
+        public Builder requiredDataset(String dataset) {
+            this.requiredDatasets.add(dataset);
+            return this;
+        }
+
+        public LivySessionRequest build() {
+            return new LivySessionRequest(this);
+        }
+    }
+}
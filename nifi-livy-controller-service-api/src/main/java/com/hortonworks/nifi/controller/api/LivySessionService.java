@@ -1,9 +1,61 @@
 package com.hortonworks.nifi.controller.api;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.nifi.controller.ControllerService;
 
 public interface LivySessionService extends ControllerService{
+    /**
+     * @deprecated does not reserve the session it returns, so concurrent callers may be handed
+     * the same session. Use {@link #acquireSession(long, TimeUnit)} instead.
+     */
+    @Deprecated
     Map<String, String> getSession();
-}
\ No newline at end of file
+
+    /**
+     * Leases an idle session for the exclusive use of the caller, waiting up to the given
+     * timeout for one to become available.
+     *
+     * @return the lease, or null if no session became available before the timeout elapsed
+     */
+    LivySessionLease acquireSession(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Leases an idle session that satisfies the request. When the request names an init profile and
+     * no idle session has run it yet, the profile's init code is run on the leased session first,
+     * which can take longer than the timeout.
+     *
+     * @return the lease, or null if no session became available before the timeout elapsed or the init code failed
+     * @throws IllegalArgumentException if the request names an init profile the service does not have
+     */
+    LivySessionLease acquireSession(LivySessionRequest request, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * @return the pooled HTTP client the service talks to Livy with, for callers to share
+     */
+    LivyClient getLivyClient();
+
+    /**
+     * @return live metrics of the session pool, to which callers add the statements they run
+     */
+    LivyMetrics getMetrics();
+
+    /**
+     * @return the tracker callers wait for their statements to complete with, which polls the
+     * statements of each session together
+     */
+    LivyStatementTracker getStatementTracker();
+
+    /**
+     * @return the URL of the least loaded available Livy server, for requests that do not need a
+     * pooled session such as batches, or null if no server is available
+     */
+    String getLivyUrl();
+
+    /**
+     * @return the JARs the sessions are started with, empty if there are none
+     */
+    List<String> getJars();
+}
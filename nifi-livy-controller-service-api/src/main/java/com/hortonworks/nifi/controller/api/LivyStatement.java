@@ -0,0 +1,207 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Status of a Livy statement, read with a streaming parser that keeps only the fields needed to
+ * track the statement. The statement output itself is never held in memory: {@link #copyOutputData}
+ * streams it from the response straight to its destination.
+ */
+public class LivyStatement {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private int id = -1;
+    private String state;
+    private String outputStatus;
+    private String errorName;
+    private String errorValue;
+
+    public int getId() {
+        return id;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return "ok" or "error" once the statement is available, null before that
+     */
+    public String getOutputStatus() {
+        return outputStatus;
+    }
+
+    public String getErrorName() {
+        return errorName;
+    }
+
+    public String getErrorValue() {
+        return errorValue;
+    }
+
+    public boolean isAvailable() {
+        return "available".equalsIgnoreCase(state);
+    }
+
+    public boolean isRunning() {
+        return "running".equalsIgnoreCase(state) || "waiting".equalsIgnoreCase(state);
+    }
+
+    /**
+     * @return true if the statement completed and produced output data
+     */
+    public boolean isSuccessful() {
+        return isAvailable() && "ok".equalsIgnoreCase(outputStatus);
+    }
+
+    public static LivyStatement read(InputStream in) throws IOException {
+        JsonParser parser = JSON_FACTORY.createJsonParser(in);
+        try {
+            return read(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Reads the statements of a statement list response, skipping their output data.
+     */
+    public static List<LivyStatement> readList(InputStream in) throws IOException {
+        List<LivyStatement> statements = new ArrayList<LivyStatement>();
+        JsonParser parser = JSON_FACTORY.createJsonParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a Livy statement list but found " + parser.getCurrentToken());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("statements".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        statements.add(read(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return statements;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Reads the statement object the parser is positioned at (or just before), skipping output data.
+     */
+    public static LivyStatement read(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT && parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a Livy statement object but found " + parser.getCurrentToken());
+        }
+        LivyStatement statement = new LivyStatement();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("id".equals(field)) {
+                statement.id = parser.getIntValue();
+            } else if ("state".equals(field)) {
+                statement.state = parser.getText();
+            } else if ("output".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String outputField = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("status".equals(outputField)) {
+                        statement.outputStatus = parser.getText();
+                    } else if ("ename".equals(outputField)) {
+                        statement.errorName = parser.getText();
+                    } else if ("evalue".equals(outputField)) {
+                        statement.errorValue = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Receives the output data of a statement as it is parsed, so it can be converted without
+     * being held in memory.
+     */
+    public interface OutputDataHandler {
+        /**
+         * @param parser positioned at the start of the output.data object; the handler reads it up
+         * to and including its end, and reads nothing after it
+         */
+        void handle(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Copies the output.data object of a statement response to the given stream without building
+     * it in memory. The destination stream is flushed but not closed.
+     *
+     * @return true if the response contained output data
+     */
+    public static boolean copyOutputData(InputStream in, final OutputStream out) throws IOException {
+        return readOutputData(in, new OutputDataHandler() {
+            @Override
+            public void handle(JsonParser parser) throws IOException {
+                JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.copyCurrentStructure(parser);
+                generator.close();
+            }
+        });
+    }
+
+    /**
+     * Streams the output.data object of a statement response to the given handler.
+     *
+     * @return true if the response contained output data
+     */
+    public static boolean readOutputData(InputStream in, OutputDataHandler handler) throws IOException {
+        JsonParser parser = JSON_FACTORY.createJsonParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return false;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("output".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String outputField = parser.getCurrentName();
+                        JsonToken outputValue = parser.nextToken();
+                        if ("data".equals(outputField) && outputValue == JsonToken.START_OBJECT) {
+                            handler.handle(parser);
+                            return true;
+                        }
+                        parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return false;
+        } finally {
+            parser.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LivyStatement[id=" + id + ", state=" + state + ", outputStatus=" + outputStatus + "]";
+    }
+}
@@ -0,0 +1,39 @@
+package com.hortonworks.nifi.controller.api;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared tracker of running statements. The statements of each session are refreshed together
+ * with one request per session and poll interval, however many statements are in flight, and
+ * callers read or wait for the latest status instead of polling Livy themselves. The poll
+ * interval of a session backs off with the time its oldest running statement has been running.
+ * <p>
+ * Statements are identified by the URL of their session, such as http://livy:8998/sessions/3,
+ * and their id. Reading or waiting for a statement starts tracking it; callers stop tracking it
+ * with {@link #untrack} once it has completed.
+ */
+public interface LivyStatementTracker {
+    /**
+     * Returns without waiting for Livy.
+     *
+     * @return the latest status of the statement, or null if it has not been polled yet
+     * @throws IOException if the statement can no longer be polled, for instance because its session is gone
+     */
+    LivyStatement getStatus(String sessionUrl, int statementId) throws IOException;
+
+    /**
+     * Waits until the statement is no longer running or the timeout elapses.
+     *
+     * @return the latest status of the statement, or null if it has not been polled yet
+     * @throws IOException if the statement can no longer be polled, for instance because its session is gone
+     */
+    LivyStatement await(String sessionUrl, int statementId, long timeout, TimeUnit unit) throws IOException, InterruptedException;
+
+    void untrack(String sessionUrl, int statementId);
+
+    /**
+     * @return how long the tracker waits between polls of a session whose oldest running statement has been running this long
+     */
+    long getPollInterval(long runningMillis);
+}
@@ -0,0 +1,59 @@
+package com.hortonworks.nifi.controller.api;
+
+/**
+ * Decides when to check on a running statement. The first check comes quickly so short statements
+ * are picked up with little added latency, and the interval then backs off exponentially up to a
+ * ceiling so long statements do not flood Livy with status requests. The interval can be followed
+ * per statement with a {@link Schedule}, or derived from how long a statement has been running.
+ */
+public class StatementPollingStrategy {
+    private static final double BACKOFF_MULTIPLIER = 2.0;
+
+    private final long initialIntervalMillis;
+    private final long maxIntervalMillis;
+
+    public StatementPollingStrategy(long initialIntervalMillis, long maxIntervalMillis) {
+        this.initialIntervalMillis = Math.max(1, initialIntervalMillis);
+        this.maxIntervalMillis = Math.max(this.initialIntervalMillis, maxIntervalMillis);
+    }
+
+    public long getInitialIntervalMillis() {
+        return initialIntervalMillis;
+    }
+
+    /**
+     * Checks made this far apart double the interval from one check to the next, as a {@link Schedule} does.
+     *
+     * @return how long to wait before the next check of a statement that has been running this long
+     */
+    public long getInterval(long runningMillis) {
+        long backoff = (long) (runningMillis * (BACKOFF_MULTIPLIER - 1));
+        return Math.min(maxIntervalMillis, Math.max(initialIntervalMillis, backoff));
+    }
+
+    /**
+     * Starts the polling schedule for a statement that has just been submitted.
+     */
+    public Schedule start() {
+        return new Schedule();
+    }
+
+    /**
+     * Polling schedule of a single statement.
+     */
+    public class Schedule {
+        private long nextIntervalMillis = initialIntervalMillis;
+
+        private Schedule() {
+        }
+
+        /**
+         * @return how long to wait before the next status check
+         */
+        public long nextInterval() {
+            long interval = nextIntervalMillis;
+            nextIntervalMillis = Math.min(maxIntervalMillis, (long) (nextIntervalMillis * BACKOFF_MULTIPLIER));
+            return interval;
+        }
+    }
+}
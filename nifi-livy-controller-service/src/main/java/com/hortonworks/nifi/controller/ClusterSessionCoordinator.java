@@ -0,0 +1,201 @@
+package com.hortonworks.nifi.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+
+/**
+ * Shares a cluster wide session budget between the nodes running a {@link LivySessionController},
+ * through the cluster state of the service. Each node records a heartbeat and the sessions it owns
+ * there, with their kind; a node whose heartbeat has expired is taken to have left, and the nodes still
+ * there claim its sessions. The budget is split evenly between the nodes with a heartbeat, so it is rebalanced as
+ * nodes join and leave, and every session has a single owner so no two nodes run statements on the
+ * same session.
+ */
+public class ClusterSessionCoordinator {
+	private static final String NODE_PREFIX = "node:";
+	private static final String SESSION_PREFIX = "session:";
+	//Separates the owner of a session from its kind in the value of the session's entry
+	private static final char KIND_SEPARATOR = ':';
+	//Attempts at updating the cluster state before giving up until the next round, when other nodes keep updating it first
+	private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+	private final StateManager stateManager;
+	private final String nodeId;
+	private final int sessionBudget;
+	private final long nodeExpiryMillis;
+
+	/**
+	 * @param nodeId identifies this node among the nodes sharing the state, the same across restarts
+	 * @param sessionBudget the most sessions open across all nodes
+	 * @param nodeExpiryMillis how long a node may go without a heartbeat before it is taken to have left
+	 */
+	public ClusterSessionCoordinator(StateManager stateManager, String nodeId, int sessionBudget, long nodeExpiryMillis) {
+		this.stateManager = stateManager;
+		this.nodeId = nodeId;
+		this.sessionBudget = sessionBudget;
+		this.nodeExpiryMillis = nodeExpiryMillis;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public int getSessionBudget() {
+		return sessionBudget;
+	}
+
+	/**
+	 * Records a heartbeat for this node along with the sessions it owns, drops the nodes that have left
+	 * and works out this node's share of the budget. Sessions of nodes that have left are claimed for
+	 * this node.
+	 * @param ownedSessions kinds of the sessions in this node's pool by session key, see {@link OwnedSession#getKey()}
+	 * @return the assignment of this node, or null if the cluster state could not be updated this round
+	 */
+	public synchronized Assignment update(Map<String, String> ownedSessions) throws IOException {
+		for(int attempt=0; attempt<MAX_UPDATE_ATTEMPTS; attempt++){
+			StateMap stateMap = stateManager.getState(Scope.CLUSTER);
+			long now = System.currentTimeMillis();
+			Map<String, String> state = new HashMap<String, String>();
+			List<String> nodes = new ArrayList<String>();
+			nodes.add(nodeId);
+			state.put(NODE_PREFIX + nodeId, String.valueOf(now));
+			for(Map.Entry<String, String> entry: stateMap.toMap().entrySet()){
+				if(entry.getKey().startsWith(NODE_PREFIX) && !entry.getKey().equals(NODE_PREFIX + nodeId)
+						&& now - Long.parseLong(entry.getValue()) < nodeExpiryMillis){
+					nodes.add(entry.getKey().substring(NODE_PREFIX.length()));
+					state.put(entry.getKey(), entry.getValue());
+				}
+			}
+			Collections.sort(nodes);
+			int index = nodes.indexOf(nodeId);
+			int share = sessionBudget / nodes.size() + (index < sessionBudget % nodes.size() ? 1 : 0);
+
+			Set<String> lostSessions = new HashSet<String>();
+			Map<String, String> orphanedSessions = new HashMap<String, String>();
+			int clusterSessions = 0;
+			for(Map.Entry<String, String> entry: stateMap.toMap().entrySet()){
+				if(!entry.getKey().startsWith(SESSION_PREFIX)){
+					continue;
+				}
+				String session = entry.getKey().substring(SESSION_PREFIX.length());
+				int separator = entry.getValue().lastIndexOf(KIND_SEPARATOR);
+				String owner = separator < 0 ? entry.getValue() : entry.getValue().substring(0, separator);
+				String kind = separator < 0 ? null : entry.getValue().substring(separator + 1);
+				if(owner.equals(nodeId)){
+					//Dropped from the pool since the last round unless still owned
+					continue;
+				}
+				if(nodes.contains(owner)){
+					state.put(entry.getKey(), entry.getValue());
+					clusterSessions++;
+					if(ownedSessions.containsKey(session)){
+						//Claimed by the other node first, as when this node was taken to have left
+						lostSessions.add(session);
+					}
+				}else{
+					orphanedSessions.put(session, kind);
+				}
+			}
+			int mySessions = 0;
+			for(Map.Entry<String, String> session: ownedSessions.entrySet()){
+				if(!lostSessions.contains(session.getKey())){
+					state.put(SESSION_PREFIX + session.getKey(), ownerValue(session.getValue()));
+					mySessions++;
+				}
+			}
+			//Sessions of nodes that have left are all claimed, this node closes those above its share as it does its own
+			for(Map.Entry<String, String> session: orphanedSessions.entrySet()){
+				state.put(SESSION_PREFIX + session.getKey(), ownerValue(session.getValue()));
+				mySessions++;
+			}
+			clusterSessions += mySessions;
+
+			boolean updated;
+			if(stateMap.getVersion() == -1){
+				stateManager.setState(state, Scope.CLUSTER);
+				updated = true;
+			}else{
+				updated = stateManager.replace(stateMap, state, Scope.CLUSTER);
+			}
+			if(updated){
+				return new Assignment(share, nodes.size(), clusterSessions, lostSessions, orphanedSessions);
+			}
+		}
+		return null;
+	}
+
+	private String ownerValue(String kind) {
+		return kind == null ? nodeId : nodeId + KIND_SEPARATOR + kind;
+	}
+
+	/**
+	 * This node's part of the cluster wide session budget, as of the last update.
+	 */
+	public static class Assignment {
+		private final int share;
+		private final int nodes;
+		private final int clusterSessions;
+		private final Set<String> lostSessions;
+		private final Map<String, String> claimedSessions;
+
+		private Assignment(int share, int nodes, int clusterSessions, Set<String> lostSessions, Map<String, String> claimedSessions) {
+			this.share = share;
+			this.nodes = nodes;
+			this.clusterSessions = clusterSessions;
+			this.lostSessions = Collections.unmodifiableSet(lostSessions);
+			this.claimedSessions = Collections.unmodifiableMap(claimedSessions);
+		}
+
+		/**
+		 * @return how many sessions this node may have open
+		 */
+		public int getShare() {
+			return share;
+		}
+
+		/**
+		 * @return the number of nodes with a heartbeat, this one included
+		 */
+		public int getNodes() {
+			return nodes;
+		}
+
+		/**
+		 * @return the number of sessions owned across the cluster, this node's included
+		 */
+		public int getClusterSessions() {
+			return clusterSessions;
+		}
+
+		/**
+		 * @return sessions in this node's pool that another node owns, which this node has to drop without closing
+		 */
+		public Set<String> getLostSessions() {
+			return lostSessions;
+		}
+
+		/**
+		 * @return kinds of the sessions of nodes that have left that this node now owns and has to adopt, by session key.
+		 * The kind is null for a session recorded without one.
+		 */
+		public Map<String, String> getClaimedSessions() {
+			return claimedSessions;
+		}
+
+		@Override
+		public String toString() {
+			return "share=" + share + ", nodes=" + nodes + ", clusterSessions=" + clusterSessions
+					+ ", lost=" + lostSessions + ", claimed=" + claimedSessions.keySet();
+		}
+	}
+}
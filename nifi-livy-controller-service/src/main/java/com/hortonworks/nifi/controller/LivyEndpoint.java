@@ -0,0 +1,77 @@
+package com.hortonworks.nifi.controller;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One Livy server of a {@link LivySessionController} and the pool of sessions open on it. An endpoint
+ * that stops answering is marked unavailable, and its sessions are not leased until it answers again.
+ */
+public class LivyEndpoint {
+	private final String url;
+	private final Map<Integer, LivySession> sessions = new ConcurrentHashMap<Integer, LivySession>();
+	//Sessions whose creation request has been sent but that are not registered in the pool yet
+	private final AtomicInteger provisioningSessions = new AtomicInteger();
+	//Leases currently held on sessions of this endpoint, each running at most one statement
+	private final AtomicInteger outstandingLeases = new AtomicInteger();
+	private volatile boolean available = true;
+	private volatile long lastFullListing = 0;
+
+	public LivyEndpoint(String url) {
+		this.url = url;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public Map<Integer, LivySession> getSessions() {
+		return sessions;
+	}
+
+	public AtomicInteger getProvisioningSessions() {
+		return provisioningSessions;
+	}
+
+	public AtomicInteger getOutstandingLeases() {
+		return outstandingLeases;
+	}
+
+	/**
+	 * @return the number of sessions open or being opened on the endpoint
+	 */
+	public int getPoolSize() {
+		return sessions.size() + provisioningSessions.get();
+	}
+
+	/**
+	 * @return when all sessions of the endpoint were last listed, 0 if they never were
+	 */
+	public long getLastFullListing() {
+		return lastFullListing;
+	}
+
+	public void setLastFullListing(long lastFullListing) {
+		this.lastFullListing = lastFullListing;
+	}
+
+	public boolean isAvailable() {
+		return available;
+	}
+
+	/**
+	 * @return true if the availability changed
+	 */
+	public boolean setAvailable(boolean available) {
+		boolean changed = this.available != available;
+		this.available = available;
+		return changed;
+	}
+
+	@Override
+	public String toString() {
+		return "LivyEndpoint[url=" + url + ", available=" + available + ", sessions=" + sessions.size()
+				+ ", provisioning=" + provisioningSessions.get() + ", outstandingLeases=" + outstandingLeases.get() + "]";
+	}
+}
@@ -0,0 +1,295 @@
+package com.hortonworks.nifi.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * A Livy session tracked by {@link LivySessionController}: the last state reported by Livy
+ * plus the lease flag that gives one caller at a time exclusive use of the session, the
+ * named datasets that callers have cached in it and the health of the statements run on it.
+ */
+public class LivySession {
+	//Statements whose mean latency is the baseline the later latency of the session is compared to
+	public static final int BASELINE_STATEMENTS = 20;
+	//Weight of each statement in the recent latency and error rate
+	private static final double RECENT_WEIGHT = 0.05;
+
+	private final LivyEndpoint endpoint;
+	private final int id;
+	private volatile JSONObject info;
+	private volatile String state;
+	private volatile String kind;
+	private volatile long stateUpdated;
+	private final AtomicBoolean leased = new AtomicBoolean(false);
+	private final long registered;
+	private volatile long lastUsed;
+	private volatile boolean initialized = false;
+	private final Set<String> initProfiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	//Cached dataset sizes in bytes, in least recently used first order
+	private final LinkedHashMap<String, Long> cachedDatasets = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long cachedBytes = 0;
+	private long statements = 0;
+	private double baselineMillis = 0;
+	private double recentMillis = 0;
+	private double recentErrorRate = 0;
+	//Why the session is being replaced, null while it is healthy
+	private volatile String retireReason;
+
+	public LivySession(LivyEndpoint endpoint, JSONObject info) throws JSONException {
+		this(endpoint, info, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param registered when the session was first registered, earlier than now for a session adopted
+	 * from an earlier run of the controller
+	 */
+	public LivySession(LivyEndpoint endpoint, JSONObject info, long registered) throws JSONException {
+		this.endpoint = endpoint;
+		this.id = info.getInt("id");
+		this.registered = registered;
+		this.lastUsed = System.currentTimeMillis();
+		update(info);
+	}
+
+	public void update(JSONObject info) throws JSONException {
+		this.state = info.getString("state");
+		this.kind = info.getString("kind");
+		this.info = info;
+		this.stateUpdated = System.currentTimeMillis();
+	}
+
+	/**
+	 * Updates the state alone, as read from the session's state endpoint.
+	 */
+	public void updateState(String state) {
+		this.state = state;
+		this.stateUpdated = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the Livy server the session runs on
+	 */
+	public LivyEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public JSONObject getInfo() {
+		return info;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return when the state was last read from Livy, 0 if it has been assumed since
+	 */
+	public long getStateUpdated() {
+		return stateUpdated;
+	}
+
+	public long getRegistered() {
+		return registered;
+	}
+
+	/**
+	 * @return when the session was last released, or registered if it was never leased
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * @return true once the session init code of the controller has run successfully on the session
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public void setInitialized() {
+		this.initialized = true;
+	}
+
+	public boolean hasInitProfile(String initProfile) {
+		return initProfiles.contains(initProfile);
+	}
+
+	public void addInitProfile(String initProfile) {
+		initProfiles.add(initProfile);
+	}
+
+	/**
+	 * @return how many of the given datasets are cached in the session
+	 */
+	public synchronized int countCachedDatasets(Collection<String> datasets) {
+		int count = 0;
+		for(String dataset: datasets){
+			if(cachedDatasets.containsKey(dataset)){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Marks the given datasets, where cached in the session, as the most recently used.
+	 */
+	public synchronized void touchCachedDatasets(Collection<String> datasets) {
+		for(String dataset: datasets){
+			cachedDatasets.get(dataset);
+		}
+	}
+
+	/**
+	 * Records a dataset cached in the session and drops the least recently used other datasets until
+	 * the session holds no more than the given limits.
+	 * @return the dropped datasets, which the caller has to unpersist
+	 */
+	public synchronized List<String> addCachedDataset(String dataset, long sizeBytes, long maxBytes, int maxDatasets) {
+		Long previousSize = cachedDatasets.put(dataset, sizeBytes);
+		cachedBytes += sizeBytes - (previousSize == null ? 0 : previousSize);
+		List<String> evicted = new ArrayList<String>();
+		Iterator<Map.Entry<String, Long>> eldest = cachedDatasets.entrySet().iterator();
+		while((cachedBytes > maxBytes || cachedDatasets.size() > maxDatasets) && eldest.hasNext()){
+			Map.Entry<String, Long> entry = eldest.next();
+			if(entry.getKey().equals(dataset)){
+				continue;
+			}
+			evicted.add(entry.getKey());
+			cachedBytes -= entry.getValue();
+			eldest.remove();
+		}
+		return evicted;
+	}
+
+	public synchronized Set<String> getCachedDatasets() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(cachedDatasets.keySet()));
+	}
+
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/**
+	 * Records a completed statement. The first {@link #BASELINE_STATEMENTS} statements make up the
+	 * baseline latency, later ones move the recent latency and error rate.
+	 */
+	public synchronized void recordStatement(long millis, boolean successful) {
+		statements++;
+		if(statements <= BASELINE_STATEMENTS){
+			baselineMillis += (millis - baselineMillis) / statements;
+			recentMillis = baselineMillis;
+		}else{
+			recentMillis += RECENT_WEIGHT * (millis - recentMillis);
+		}
+		recentErrorRate += RECENT_WEIGHT * ((successful ? 0 : 1) - recentErrorRate);
+	}
+
+	public synchronized long getStatementCount() {
+		return statements;
+	}
+
+	/**
+	 * @return the recent share of failed statements, between 0 and 1
+	 */
+	public synchronized double getRecentErrorRate() {
+		return recentErrorRate;
+	}
+
+	/**
+	 * @return how much slower recent statements run than the baseline, as a ratio, 1 until the baseline is complete
+	 */
+	public synchronized double getLatencyGrowth() {
+		if(statements <= BASELINE_STATEMENTS || baselineMillis <= 0){
+			return 1;
+		}
+		return recentMillis / baselineMillis;
+	}
+
+	/**
+	 * @return true once the session has been marked for replacement
+	 */
+	public boolean isRetiring() {
+		return retireReason != null;
+	}
+
+	public String getRetireReason() {
+		return retireReason;
+	}
+
+	/**
+	 * Marks the session for replacement. It stays in the pool until its replacement is ready.
+	 */
+	public void retire(String reason) {
+		this.retireReason = reason;
+	}
+
+	public boolean isLeased() {
+		return leased.get();
+	}
+
+	/**
+	 * @return true if the session is initialized, idle in Livy, of the given kind and not leased by anyone
+	 */
+	public boolean isAvailable(String controllerKind) {
+		return initialized && !leased.get() && "idle".equalsIgnoreCase(state) && controllerKind.equalsIgnoreCase(kind);
+	}
+
+	/**
+	 * Marks the session as leased. Only one caller can win the lease until it is released.
+	 */
+	public boolean tryLease() {
+		return leased.compareAndSet(false, true);
+	}
+
+	/**
+	 * Ends the lease. The statements run under it have completed, so a session that was busy running
+	 * them is taken to be idle right away, and its state is due to be checked with Livy.
+	 */
+	public void release() {
+		lastUsed = System.currentTimeMillis();
+		if("busy".equalsIgnoreCase(state)){
+			state = "idle";
+			stateUpdated = 0;
+		}
+		leased.set(false);
+	}
+
+	/**
+	 * Ends the lease on a session that is still winding down a cancelled statement. The session stays
+	 * busy, and so is not leased again, until Livy reports it idle; its state is due to be checked.
+	 */
+	public void releaseBusy() {
+		lastUsed = System.currentTimeMillis();
+		state = "busy";
+		stateUpdated = 0;
+		leased.set(false);
+	}
+
+	@Override
+	public String toString() {
+		return "LivySession[url=" + endpoint.getUrl() + ", id=" + id + ", kind=" + kind + ", state=" + state + ", leased=" + leased.get()
+				+ ", initialized=" + initialized + ", initProfiles=" + initProfiles + ", cachedDatasets=" + getCachedDatasets()
+				+ ", statements=" + getStatementCount() + (retireReason == null ? "" : ", retiring=" + retireReason) + "]";
+	}
+}
@@ -1,71 +1,254 @@
 package com.hortonworks.nifi.controller;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.Reader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.http.client.HttpResponseException;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.InitializationException;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import com.hortonworks.nifi.controller.api.CodePayloadEntity;
+import com.hortonworks.nifi.controller.api.LivyClient;
+import com.hortonworks.nifi.controller.api.LivyMetrics;
+import com.hortonworks.nifi.controller.api.LivySessionLease;
+import com.hortonworks.nifi.controller.api.LivySessionRequest;
 import com.hortonworks.nifi.controller.api.LivySessionService;
+import com.hortonworks.nifi.controller.api.LivyStatement;
+import com.hortonworks.nifi.controller.api.LivyStatementTracker;
+import com.hortonworks.nifi.controller.api.StatementPollingStrategy;
 
 @Tags({"Livy","REST","Spark"})
 @CapabilityDescription("Manages pool of Spark sessions over HTTP")
+@DynamicProperty(name = "Init profile name", value = "Spark code",
+		description = "Defines a named init profile. Its code runs once on a session before the session is leased to a caller that requires the profile.")
+@Stateful(scopes = {Scope.LOCAL, Scope.CLUSTER}, description = "Local state holds the sessions the node has opened, with their kind, jars, "
+		+ "creation time and the init code and init profiles that have run on them. When the service is enabled again it adopts those "
+		+ "sessions instead of opening new ones, and deletes those that no longer match its configuration. When a cluster session budget "
+		+ "is set, cluster state holds a heartbeat of every node and the node owning each session.")
 public class LivySessionController extends AbstractControllerService implements LivySessionService{	
-	private String livyUrl;
+	private List<LivyEndpoint> endpoints = Collections.emptyList();
+	private long endpointCheckTimeoutMillis;
+	private long sessionStateMaxAgeMillis;
+	private long sessionResyncIntervalMillis;
+	//Released to run the next manager pass right away instead of at the next interval
+	private final Semaphore managerWakeups = new Semaphore(0);
+	//Session checks of the endpoints, kept across manager passes while an endpoint is slow to answer
+	private final Map<LivyEndpoint, Future<SessionsSnapshot>> sessionListings = new HashMap<LivyEndpoint, Future<SessionsSnapshot>>();
 	private int sessionPoolSize;
+	//The pool of each session kind by lower case kind, the default kind first
+	private Map<String, SessionKindPool> kindPools = Collections.emptyMap();
+	private long sessionIdleTimeoutMillis;
+	//Health limits past which a session is replaced, 0 where there is no limit
+	private long sessionMaxStatements;
+	private long sessionMaxAgeMillis;
+	private int sessionMaxErrorRate;
+	private int sessionMaxLatencyIncrease;
+	private long leaseWaitTargetNanos;
 	private String controllerKind;
 	private String jars;
-	private Map<Integer, JSONObject> sessions = new ConcurrentHashMap<Integer,JSONObject>();
+	private String sessionInitCode;
+	private Map<String, String> initProfiles = Collections.emptyMap();
+	private long datasetCacheLimitBytes;
+	private int datasetCacheMaxEntries;
+	private long datasetAffinityWaitNanos;
+	private String datasetUnpersistCode;
+	private LivyClient livyClient;
+	private StatementTracker statementTracker;
+	//Digests of the init code and init profile code, recorded with the sessions in the local state
+	private String sessionInitDigest;
+	private Map<String, String> initProfileDigests = Collections.emptyMap();
+	//Sessions read from the local state that have not been matched against their Livy server's sessions yet
+	private final Map<String, OwnedSession> recoveredSessions = new ConcurrentHashMap<String, OwnedSession>();
+	private Map<String, String> savedSessionState = Collections.emptyMap();
+	private String nodeId;
+	private ClusterSessionCoordinator clusterCoordinator;
+	//This node's share of the cluster session budget and the sessions it may still open within the budget, as of the last manager pass
+	private int clusterShare = Integer.MAX_VALUE;
+	private int clusterRoom = Integer.MAX_VALUE;
+	private LivyMetrics metrics;
+	private long metricsReportIntervalMillis;
+	private long lastMetricsReport;
+	private long lastLeaseTimeouts;
+	private final AtomicInteger nextSessionIndex = new AtomicInteger();
+	private final Lock availabilityLock = new ReentrantLock();
+	private final Condition sessionAvailable = availabilityLock.newCondition();
 	private Thread livySessionManagerThread = null;
+	private ExecutorService sessionProvisioningExecutor = null;
 	private boolean enabled = true;
     
 	public static final PropertyDescriptor LIVY_HOST = new PropertyDescriptor.Builder()
             .name("livy_host")
-            .description("Livy Host")
+            .description("Livy Host, or a comma separated list of host[:port] of Livy servers to spread the session pool over. "
+            		+ "Hosts listed without a port use livy_port.")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .required(true)
             .build();
 	
 	public static final PropertyDescriptor LIVY_PORT = new PropertyDescriptor.Builder()
             .name("livy_port")
-            .description("Livy Port")
+            .description("Livy Port, used for every host listed without one")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 	
 	public static final PropertyDescriptor SESSION_POOL_SIZE = new PropertyDescriptor.Builder()
             .name("session_pool_size")
-            .description("Number of sessions to keep open")
+            .description("Minimum number of sessions to keep open, across all Livy servers")
             .required(true)
             .defaultValue("2")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 	
+	public static final PropertyDescriptor MAX_SESSION_POOL_SIZE = new PropertyDescriptor.Builder()
+            .name("max_session_pool_size")
+            .description("Maximum number of sessions the pool grows to when callers have to wait for a session. "
+            		+ "If not set the pool is kept at session_pool_size.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor CLUSTER_SESSION_BUDGET = new PropertyDescriptor.Builder()
+            .name("cluster_session_budget")
+            .description("Maximum number of sessions open across all nodes of a NiFi cluster. When set, the nodes split the budget evenly "
+            		+ "through cluster state and each session is owned by a single node; the sessions of a node that leaves are taken over "
+            		+ "by the others. session_pool_size and max_session_pool_size then apply within a node's share. "
+            		+ "If not set every node keeps its own pool.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor ENDPOINT_CHECK_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("endpoint_check_timeout")
+            .description("How long the session manager waits for a Livy server to list its sessions before marking the server unavailable. "
+            		+ "Sessions on an unavailable server are not leased, and new sessions are opened on the servers that answer.")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor SESSION_STATE_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("session_state_max_age")
+            .description("How long the session manager trusts that an idle session it is not using is still idle before checking its state again. "
+            		+ "Sessions are marked idle as soon as their lease is released, and sessions in any other state are checked on every pass.")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor SESSION_RESYNC_INTERVAL = new PropertyDescriptor.Builder()
+            .name("session_resync_interval")
+            .description("How often the session manager lists every session of a Livy server, which picks up sessions deleted or created "
+            		+ "outside this service. In between it only checks the sessions it is unsure about.")
+            .required(true)
+            .defaultValue("1 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor STATEMENT_POLL_INTERVAL = new PropertyDescriptor.Builder()
+            .name("statement_poll_interval")
+            .description("How soon the statements callers are waiting on are first polled. All running statements of a session are "
+            		+ "read with one request, so Livy sees one request per session with statements in flight per interval. The interval "
+            		+ "of a session then backs off exponentially with the time its oldest running statement has been running.")
+            .required(true)
+            .defaultValue("100 ms")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor STATEMENT_POLL_MAX_INTERVAL = new PropertyDescriptor.Builder()
+            .name("statement_poll_max_interval")
+            .description("The longest interval the polls of a session with long running statements back off to")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor SESSION_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("session_idle_timeout")
+            .description("How long a session above session_pool_size may stay unused before it is closed")
+            .required(true)
+            .defaultValue("10 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor SESSION_MAX_STATEMENTS = new PropertyDescriptor.Builder()
+            .name("session_max_statements")
+            .description("Number of statements after which a session is replaced, as the driver of a long lived session fills up "
+            		+ "with cached objects and compiled classes. The replacement is opened first and the session is closed once "
+            		+ "the replacement is ready and the session is idle.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor SESSION_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("session_max_age")
+            .description("How long a session may be open before it is replaced, the same way as after session_max_statements")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor SESSION_MAX_ERROR_RATE = new PropertyDescriptor.Builder()
+            .name("session_max_error_rate")
+            .description("Percentage of recent statements that may fail on a session before it is replaced. The rate is only "
+            		+ "checked once " + LivySession.BASELINE_STATEMENTS + " statements have run on the session.")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .build();
+	
+	public static final PropertyDescriptor SESSION_MAX_LATENCY_INCREASE = new PropertyDescriptor.Builder()
+            .name("session_max_latency_increase")
+            .description("Percentage by which the recent statement latency of a session may exceed the mean latency of its first "
+            		+ LivySession.BASELINE_STATEMENTS + " statements before the session is replaced, for instance 200 to replace "
+            		+ "sessions that have become three times slower")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor LEASE_WAIT_TARGET = new PropertyDescriptor.Builder()
+            .name("lease_wait_target")
+            .description("Average time callers may wait for a session before the pool is grown, up to max_session_pool_size")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
 	public static final PropertyDescriptor SESSION_KIND = new PropertyDescriptor.Builder()
             .name("session_kind")
             .description("The kind of Spark session to start")
@@ -75,6 +258,16 @@ public class LivySessionController extends AbstractControllerService implements
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 	
+	public static final PropertyDescriptor SESSION_KINDS = new PropertyDescriptor.Builder()
+            .name("session_kinds")
+            .description("Session kinds to keep a pool of each, as a comma separated list of kind[:min[:max]], for instance "
+            		+ "'spark:2:4, pyspark:1:2, sparkr'. Callers pick the kind of the session they lease, the first kind is the default. "
+            		+ "A kind without a minimum gets session_pool_size sessions and one without a maximum is kept at its minimum. "
+            		+ "All kinds share one session manager and one connection pool. If set, session_kind and max_session_pool_size are ignored.")
+            .required(false)
+            .addValidator(StandardValidators.createRegexMatchingValidator(SessionKindPool.SPEC_PATTERN))
+            .build();
+	
 	public static final PropertyDescriptor JARS = new PropertyDescriptor.Builder()
             .name("jars")
             .description("JARs to be used in the Spark session.")
@@ -91,6 +284,96 @@ public class LivySessionController extends AbstractControllerService implements
             .defaultValue(null)
             .build();
 	
+	public static final PropertyDescriptor SESSION_INIT_CODE = new PropertyDescriptor.Builder()
+            .name("session_init_code")
+            .description("Code run once on every new session before it is leased to anyone, such as imports, table loads and caching "
+            		+ "shared by all statements. A session whose init code fails is closed. Init code needed only by some processors "
+            		+ "can be added as named init profiles through dynamic properties.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("connect_timeout")
+            .description("Max wait time for a connection to the Livy server to be established, or for a free connection in the pool")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("read_timeout")
+            .description("Max wait time for a response from the Livy server")
+            .required(true)
+            .defaultValue("60 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("max_connections")
+            .description("Maximum number of persistent HTTP connections to the Livy server, shared by this service and all processors using it")
+            .required(true)
+            .defaultValue("20")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor COMPRESSION = new PropertyDescriptor.Builder()
+            .name("compression")
+            .description("Whether to request gzip compressed responses from the Livy server")
+            .required(true)
+            .allowableValues("true","false")
+            .defaultValue("false")
+            .build();
+	
+	public static final PropertyDescriptor METRICS_REPORT_INTERVAL = new PropertyDescriptor.Builder()
+            .name("metrics_report_interval")
+            .description("How often to log a summary of the session pool, lease, statement and HTTP metrics at INFO level. "
+            		+ "A warning is logged (and so bulletined) when callers timed out waiting for a session during the interval.")
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor DATASET_CACHE_LIMIT = new PropertyDescriptor.Builder()
+            .name("dataset_cache_limit")
+            .description("Total estimated size of the named datasets callers may cache in one session. When a newly cached dataset "
+            		+ "takes a session past the limit, the session's least recently used datasets are unpersisted.")
+            .required(true)
+            .defaultValue("2 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor DATASET_CACHE_MAX_ENTRIES = new PropertyDescriptor.Builder()
+            .name("dataset_cache_max_entries")
+            .description("Maximum number of named datasets cached in one session, which also bounds datasets of unknown size")
+            .required(true)
+            .defaultValue("20")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor DATASET_AFFINITY_WAIT = new PropertyDescriptor.Builder()
+            .name("dataset_affinity_wait")
+            .description("How long a caller requiring cached datasets waits for the session holding them to become idle "
+            		+ "before it takes another session, on which its code has to build the datasets again")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+	
+	public static final PropertyDescriptor DATASET_UNPERSIST_CODE = new PropertyDescriptor.Builder()
+            .name("dataset_unpersist_code")
+            .description("Code that releases a cached dataset evicted from a session, with {dataset} replaced by the dataset name. "
+            		+ "Defaults to {dataset}.unpersist(), or unpersist({dataset}) for sparkr sessions.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+	
+	private static final long MANAGER_INTERVAL_MILLIS = 2000;
+	private static final long MIN_MANAGER_INTERVAL_MILLIS = 100;
+	//A node that has not recorded a heartbeat for this long is taken to have left the cluster and its sessions are taken over
+	private static final long CLUSTER_NODE_EXPIRY_MILLIS = 30000;
+	private static final String NODE_ID_KEY = "node.id";
+	private static final StatementPollingStrategy INIT_POLLING = new StatementPollingStrategy(100, 2000);
 	private static final List<PropertyDescriptor> properties;
 	
 	static{
@@ -98,9 +381,33 @@ public class LivySessionController extends AbstractControllerService implements
 	    props.add(LIVY_HOST);
 	    props.add(LIVY_PORT);
 	    props.add(SESSION_POOL_SIZE);
+	    props.add(MAX_SESSION_POOL_SIZE);
+	    props.add(CLUSTER_SESSION_BUDGET);
+	    props.add(ENDPOINT_CHECK_TIMEOUT);
+	    props.add(SESSION_STATE_MAX_AGE);
+	    props.add(SESSION_RESYNC_INTERVAL);
+	    props.add(STATEMENT_POLL_INTERVAL);
+	    props.add(STATEMENT_POLL_MAX_INTERVAL);
+	    props.add(SESSION_IDLE_TIMEOUT);
+	    props.add(SESSION_MAX_STATEMENTS);
+	    props.add(SESSION_MAX_AGE);
+	    props.add(SESSION_MAX_ERROR_RATE);
+	    props.add(SESSION_MAX_LATENCY_INCREASE);
+	    props.add(LEASE_WAIT_TARGET);
 	    props.add(SESSION_KIND);
+	    props.add(SESSION_KINDS);
 	    props.add(JARS);
 	    props.add(FILES);
+	    props.add(SESSION_INIT_CODE);
+	    props.add(DATASET_CACHE_LIMIT);
+	    props.add(DATASET_CACHE_MAX_ENTRIES);
+	    props.add(DATASET_AFFINITY_WAIT);
+	    props.add(DATASET_UNPERSIST_CODE);
+	    props.add(CONNECT_TIMEOUT);
+	    props.add(READ_TIMEOUT);
+	    props.add(MAX_CONNECTIONS);
+	    props.add(COMPRESSION);
+	    props.add(METRICS_REPORT_INTERVAL);
 	    
 	    properties = Collections.unmodifiableList(props);
 	}
@@ -109,6 +416,17 @@ public class LivySessionController extends AbstractControllerService implements
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return properties;
     }
+	
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder()
+				.name(propertyDescriptorName)
+				.description("Init code of the '" + propertyDescriptorName + "' profile")
+				.required(false)
+				.dynamic(true)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+				.build();
+	}
 
 	@OnEnabled
 	public void onConfigured(final ConfigurationContext context) throws InitializationException{
@@ -121,18 +439,110 @@ public class LivySessionController extends AbstractControllerService implements
 		final String jars = context.getProperty(JARS).getValue();
 		final String files  = context.getProperty(FILES).getValue();
 		
-		this.livyUrl = "http://"+livyHost+":"+livyPort;
-		this.controllerKind = session_kind;
+		List<LivyEndpoint> endpoints = new ArrayList<LivyEndpoint>();
+		for(String host: livyHost.split(",")){
+			host = host.trim();
+			if(!host.isEmpty()){
+				endpoints.add(new LivyEndpoint("http://" + (host.contains(":") ? host : host+":"+livyPort)));
+			}
+		}
+		this.endpoints = Collections.unmodifiableList(endpoints);
+		this.endpointCheckTimeoutMillis = context.getProperty(ENDPOINT_CHECK_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		this.sessionListings.clear();
+		this.sessionStateMaxAgeMillis = context.getProperty(SESSION_STATE_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS);
+		this.sessionResyncIntervalMillis = context.getProperty(SESSION_RESYNC_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
 		this.jars = jars;
 		this.sessionPoolSize = Integer.valueOf(session_pool_size);
+		if(context.getProperty(SESSION_KINDS).isSet()){
+			this.kindPools = Collections.unmodifiableMap(SessionKindPool.parse(context.getProperty(SESSION_KINDS).getValue(), sessionPoolSize));
+		}else{
+			int maxSessionPoolSize = context.getProperty(MAX_SESSION_POOL_SIZE).isSet()
+					? context.getProperty(MAX_SESSION_POOL_SIZE).asInteger() : sessionPoolSize;
+			this.kindPools = Collections.singletonMap(session_kind, new SessionKindPool(session_kind, sessionPoolSize, maxSessionPoolSize));
+		}
+		this.controllerKind = kindPools.keySet().iterator().next();
+		this.sessionInitCode = context.getProperty(SESSION_INIT_CODE).getValue();
+		Map<String, String> initProfiles = new HashMap<String, String>();
+		for(Map.Entry<PropertyDescriptor, String> property: context.getProperties().entrySet()){
+			if(property.getKey().isDynamic() && property.getValue() != null){
+				initProfiles.put(property.getKey().getName(), property.getValue());
+			}
+		}
+		this.initProfiles = Collections.unmodifiableMap(initProfiles);
+		this.sessionInitDigest = OwnedSession.digest(sessionInitCode);
+		Map<String, String> initProfileDigests = new HashMap<String, String>();
+		for(Map.Entry<String, String> initProfile: initProfiles.entrySet()){
+			initProfileDigests.put(initProfile.getKey(), OwnedSession.digest(initProfile.getValue()));
+		}
+		this.initProfileDigests = Collections.unmodifiableMap(initProfileDigests);
+		recoverSessionState();
+		this.clusterShare = Integer.MAX_VALUE;
+		this.clusterRoom = Integer.MAX_VALUE;
+		this.clusterCoordinator = context.getProperty(CLUSTER_SESSION_BUDGET).isSet()
+				? new ClusterSessionCoordinator(getStateManager(), nodeId, context.getProperty(CLUSTER_SESSION_BUDGET).asInteger(), CLUSTER_NODE_EXPIRY_MILLIS)
+				: null;
+		this.datasetCacheLimitBytes = context.getProperty(DATASET_CACHE_LIMIT).asDataSize(DataUnit.B).longValue();
+		this.datasetCacheMaxEntries = context.getProperty(DATASET_CACHE_MAX_ENTRIES).asInteger();
+		this.datasetAffinityWaitNanos = context.getProperty(DATASET_AFFINITY_WAIT).asTimePeriod(TimeUnit.NANOSECONDS);
+		//If not set the unpersist code follows the kind of each session
+		this.datasetUnpersistCode = context.getProperty(DATASET_UNPERSIST_CODE).getValue();
+		this.sessionIdleTimeoutMillis = context.getProperty(SESSION_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		this.sessionMaxStatements = context.getProperty(SESSION_MAX_STATEMENTS).isSet() ? context.getProperty(SESSION_MAX_STATEMENTS).asLong() : 0;
+		this.sessionMaxAgeMillis = context.getProperty(SESSION_MAX_AGE).isSet() ? context.getProperty(SESSION_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+		this.sessionMaxErrorRate = context.getProperty(SESSION_MAX_ERROR_RATE).isSet() ? context.getProperty(SESSION_MAX_ERROR_RATE).asInteger() : 0;
+		this.sessionMaxLatencyIncrease = context.getProperty(SESSION_MAX_LATENCY_INCREASE).isSet() ? context.getProperty(SESSION_MAX_LATENCY_INCREASE).asInteger() : 0;
+		this.leaseWaitTargetNanos = context.getProperty(LEASE_WAIT_TARGET).asTimePeriod(TimeUnit.NANOSECONDS);
 		this.enabled = true;
+		this.metrics = new LivyMetrics();
+		this.metricsReportIntervalMillis = context.getProperty(METRICS_REPORT_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+		this.lastMetricsReport = System.currentTimeMillis();
+		this.lastLeaseTimeouts = 0;
+		this.livyClient = new LivyClient(
+				context.getProperty(MAX_CONNECTIONS).asInteger(),
+				context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+				context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+				context.getProperty(COMPRESSION).asBoolean(),
+				metrics);
+		
+		StatementPollingStrategy statementPolling = new StatementPollingStrategy(
+				context.getProperty(STATEMENT_POLL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS),
+				context.getProperty(STATEMENT_POLL_MAX_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+		statementTracker = new StatementTracker(livyClient, statementPolling,
+				new StatementTracker.CompletionListener() {
+					@Override
+					public void statementCompleted(String sessionUrl, long millis, boolean successful){
+						LivySession session = findSession(sessionUrl);
+						if(session != null){
+							session.recordStatement(millis, successful);
+						}
+					}
+				}, getLogger());
+		statementTracker.start("Livy-Statement-Tracker-" + controllerKind);
+		
+		sessionProvisioningExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+			
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Livy-Session-Provisioner-" + controllerKind + "-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		
 		livySessionManagerThread = new Thread(new Runnable() {
 			public void run(){
 	        	while(enabled){
 	            	try {
+	            		long passStart = System.currentTimeMillis();
 	            		manageSessions();
-						Thread.sleep(2000);
+	            		if(managerWakeups.tryAcquire(MANAGER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)){
+	            			managerWakeups.drainPermits();
+	            			//Wake-ups come in bursts under load, space the passes out so a burst is handled by one pass
+	            			long sincePassStart = System.currentTimeMillis() - passStart;
+	            			if(sincePassStart < MIN_MANAGER_INTERVAL_MILLIS){
+	            				Thread.sleep(MIN_MANAGER_INTERVAL_MILLIS - sincePassStart);
+	            			}
+	            		}
 					} catch (InterruptedException e) {
 						e.printStackTrace();
 						getLogger().debug("********** "+Thread.currentThread().getName()
@@ -152,330 +562,1210 @@ public class LivySessionController extends AbstractControllerService implements
 			enabled = false;
 			livySessionManagerThread.interrupt();
 			livySessionManagerThread.join();
+			sessionProvisioningExecutor.shutdownNow();
+			sessionProvisioningExecutor.awaitTermination(10, TimeUnit.SECONDS);
+			statementTracker.stop();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
+		//The sessions are left open for the next time the service is enabled. The node's heartbeat is left to expire so that
+		//the other nodes only take over its sessions if it does not come back soon
+		saveSessionState();
+		try {
+			livyClient.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
     }
 	
+	public LivyClient getLivyClient(){
+		return livyClient;
+	}
+	
+	public LivyMetrics getMetrics(){
+		return metrics;
+	}
+	
+	public LivyStatementTracker getStatementTracker(){
+		return statementTracker;
+	}
+	
+	public String getLivyUrl(){
+		List<LivyEndpoint> available = getEndpointsByLoad();
+		return available.isEmpty() ? null : available.get(0).getUrl();
+	}
+	
+	public List<String> getJars(){
+		List<String> jarList = new ArrayList<String>();
+		if(jars != null){
+			for(String jar: jars.split(",")){
+				if(!jar.trim().isEmpty()){
+					jarList.add(jar.trim());
+				}
+			}
+		}
+		return jarList;
+	}
+	
+	@Deprecated
 	public Map<String,String> getSession(){
-		Map<Integer,JSONObject> sessionsCopy = new HashMap<Integer,JSONObject>();
 		Map<String,String> sessionMap = new HashMap<String,String>();
 		getLogger().debug("********** getSession() Aquiring session...");
-		getLogger().debug("********** getSession() Session Cache: " + sessions);
-		sessionsCopy = sessions;
+		for(LivySession currentSession: getSessions(true)){
+			if(currentSession.isAvailable(controllerKind)){
+				sessionMap.put("sessionId",String.valueOf(currentSession.getId()));
+				sessionMap.put("livyUrl",currentSession.getEndpoint().getUrl());
+				break;
+			}
+		}
+		getLogger().debug("********** getSession() Returning idle session: " + sessionMap);
+		return sessionMap;
+	}
+	
+	public LivySessionLease acquireSession(long timeout, TimeUnit unit) throws InterruptedException{
+		return acquireSession(LivySessionRequest.ANY, timeout, unit);
+	}
+	
+	public LivySessionLease acquireSession(LivySessionRequest request, long timeout, TimeUnit unit) throws InterruptedException{
+		final String initProfile = request.getInitProfile();
+		if(initProfile != null && !initProfiles.containsKey(initProfile)){
+			throw new IllegalArgumentException("No init profile named '" + initProfile + "' is defined on the Livy controller service");
+		}
+		final SessionKindPool kindPool = kindPools.get(request.getKind() == null ? controllerKind : request.getKind().toLowerCase());
+		if(kindPool == null){
+			throw new IllegalArgumentException("The Livy controller service keeps no sessions of kind '" + request.getKind() + "'");
+		}
+		SessionLease lease = leaseSession(request, kindPool, timeout, unit);
+		if(lease == null || initProfile == null || lease.session.hasInitProfile(initProfile)){
+			return lease;
+		}
+		//No idle session has run the profile yet, run it on this one so it is ready for every later caller needing the profile
+		getLogger().debug("********** acquireSession() Running init profile " + initProfile + " on session " + lease.session.getId());
+		LivyStatement statement = runStatement(lease.session, initProfiles.get(initProfile));
+		if(statement != null && statement.isSuccessful()){
+			lease.session.addInitProfile(initProfile);
+			return lease;
+		}
+		getLogger().error("Init profile {} failed on Livy session {}", new Object[]{initProfile, lease.session.getId()});
+		lease.release();
+		return null;
+	}
+	
+	private SessionLease leaseSession(LivySessionRequest request, SessionKindPool kindPool, long timeout, TimeUnit unit) throws InterruptedException{
+		final String kind = kindPool.getKind();
+		final long start = System.nanoTime();
+		final long deadline = start + unit.toNanos(timeout);
+		//Until the affinity deadline only sessions holding the required datasets are leased, if any session holds them
+		final long affinityDeadline = request.getRequiredDatasets().isEmpty() ? start : start + Math.min(unit.toNanos(timeout), datasetAffinityWaitNanos);
+		SessionLease lease = tryAcquireSession(request, kind, affinityDeadline - start <= 0);
+		if(lease != null){
+			kindPool.getLeaseAcquisitions().incrementAndGet();
+			metrics.recordLeaseWait(0);
+			return lease;
+		}
+		kindPool.getWaitingAcquirers().incrementAndGet();
+		//The manager may have to grow the pool
+		wakeManager();
 		try {
-			for(int sessionId: sessionsCopy.keySet()){
-				JSONObject currentSession = (JSONObject)sessions.get(sessionId);
-				String state = currentSession.getString("state");
-				String sessionKind = currentSession.getString("kind");
-				if(state.equalsIgnoreCase("idle") && sessionKind.equalsIgnoreCase(controllerKind)){
-					sessionMap.put("sessionId",String.valueOf(sessionId));
-					sessionMap.put("livyUrl",livyUrl);
+			while(lease == null){
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0){
+					getLogger().debug("********** acquireSession() No idle session became available within " + timeout + " " + unit);
+					kindPool.getLeaseMisses().incrementAndGet();
+					if(timeout > 0){
+						//A zero timeout only probes for a free session, missing is not a timeout
+						metrics.recordLeaseTimeout();
+					}
+					return null;
+				}
+				availabilityLock.lock();
+				try {
+					//Re-check while holding the lock so that a release signalled after the first scan is not missed
+					lease = tryAcquireSession(request, kind, System.nanoTime() - affinityDeadline >= 0);
+					if(lease == null){
+						long untilAffinityDeadline = affinityDeadline - System.nanoTime();
+						sessionAvailable.awaitNanos(untilAffinityDeadline > 0 ? Math.min(remaining, untilAffinityDeadline) : remaining);
+					}
+				} finally {
+					availabilityLock.unlock();
+				}
+				if(lease == null){
+					lease = tryAcquireSession(request, kind, System.nanoTime() - affinityDeadline >= 0);
 				}
 			}
-		} catch (JSONException e) {
-			e.printStackTrace();
+		} finally {
+			kindPool.getWaitingAcquirers().decrementAndGet();
+		}
+		final long waitNanos = System.nanoTime() - start;
+		kindPool.getLeaseAcquisitions().incrementAndGet();
+		kindPool.getLeaseWaitNanos().addAndGet(waitNanos);
+		metrics.recordLeaseWait(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+		return lease;
+	}
+	
+	/**
+	 * Leases the idle session of the kind that best matches the request: one holding most of the required datasets,
+	 * then one that has run the requested init profile. Among equal matches, sessions on the available
+	 * Livy server with the fewest outstanding leases come first.
+	 * @param allowRebuild whether a session holding none of the required datasets may be leased while another session holds some
+	 */
+	private SessionLease tryAcquireSession(LivySessionRequest request, String kind, boolean allowRebuild){
+		//Start each scan at a different offset so concurrent callers spread out over the pool instead of racing for the same session
+		int offset = nextSessionIndex.getAndIncrement() & Integer.MAX_VALUE;
+		List<LivySession> candidates = new ArrayList<LivySession>();
+		for(LivyEndpoint endpoint: getEndpointsByLoad()){
+			List<LivySession> endpointSessions = new ArrayList<LivySession>(endpoint.getSessions().values());
+			for(int i=0; i<endpointSessions.size(); i++){
+				candidates.add(endpointSessions.get((offset+i) % endpointSessions.size()));
+			}
+		}
+		if(candidates.isEmpty()){
+			return null;
+		}
+		final String initProfile = request.getInitProfile();
+		final Set<String> requiredDatasets = request.getRequiredDatasets();
+		LivySession fallback = null;
+		int fallbackScore = -1;
+		boolean datasetsHeld = false;
+		for(LivySession candidate: candidates){
+			int datasetsCached = requiredDatasets.isEmpty() ? 0 : candidate.countCachedDatasets(requiredDatasets);
+			datasetsHeld |= datasetsCached > 0;
+			if(!candidate.isAvailable(kind)){
+				continue;
+			}
+			boolean hasInitProfile = initProfile == null || candidate.hasInitProfile(initProfile);
+			if(hasInitProfile && datasetsCached == requiredDatasets.size()){
+				if(candidate.tryLease()){
+					getLogger().debug("********** tryAcquireSession() Leased session: " + candidate.getId());
+					return newLease(candidate, requiredDatasets);
+				}
+				continue;
+			}
+			//Cached datasets weigh more than the init profile, which is cheap to run compared to rebuilding a dataset
+			int score = 2 * datasetsCached + (hasInitProfile ? 1 : 0);
+			if(score > fallbackScore){
+				fallback = candidate;
+				fallbackScore = score;
+			}
+		}
+		if(fallback == null || (datasetsHeld && fallbackScore < 2 && !allowRebuild)){
+			return null;
+		}
+		//Take the closest match, on which the missing init profile runs and the missing datasets are rebuilt
+		if(fallback.tryLease()){
+			getLogger().debug("********** tryAcquireSession() Leased session " + fallback.getId() + " without all of init profile " + initProfile
+					+ " and datasets " + requiredDatasets + ": " + fallback);
+			return newLease(fallback, requiredDatasets);
+		}
+		return null;
+	}
+	
+	private SessionLease newLease(LivySession session, Set<String> requiredDatasets){
+		if(!requiredDatasets.isEmpty()){
+			session.touchCachedDatasets(requiredDatasets);
+		}
+		session.getEndpoint().getOutstandingLeases().incrementAndGet();
+		return new SessionLease(session);
+	}
+	
+	/**
+	 * @return the available Livy servers, least loaded first
+	 */
+	private List<LivyEndpoint> getEndpointsByLoad(){
+		List<LivyEndpoint> available = new ArrayList<LivyEndpoint>(endpoints.size());
+		for(LivyEndpoint endpoint: endpoints){
+			if(endpoint.isAvailable()){
+				available.add(endpoint);
+			}
+		}
+		if(available.size() > 1){
+			Collections.sort(available, new Comparator<LivyEndpoint>() {
+				@Override
+				public int compare(LivyEndpoint first, LivyEndpoint second){
+					return Integer.compare(first.getOutstandingLeases().get(), second.getOutstandingLeases().get());
+				}
+			});
+		}
+		return available;
+	}
+	
+	/**
+	 * @param availableOnly whether to leave out the sessions of unavailable Livy servers
+	 */
+	private List<LivySession> getSessions(boolean availableOnly){
+		List<LivySession> allSessions = new ArrayList<LivySession>();
+		for(LivyEndpoint endpoint: endpoints){
+			if(endpoint.isAvailable() || !availableOnly){
+				allSessions.addAll(endpoint.getSessions().values());
+			}
+		}
+		return allSessions;
+	}
+	
+	private void wakeManager(){
+		if(managerWakeups.availablePermits() == 0){
+			managerWakeups.release();
+		}
+	}
+	
+	/**
+	 * Wakes every waiting acquirer. Waiters for all kinds, init profiles and datasets share one condition,
+	 * so waking a single one could pick a waiter that cannot use the session that became available.
+	 */
+	private void signalSessionAvailable(){
+		availabilityLock.lock();
+		try {
+			sessionAvailable.signalAll();
+		} finally {
+			availabilityLock.unlock();
 		}
-		getLogger().debug("********** getSession() Returning idle sessions: " + sessionMap);
-		return sessionMap;
 	}
 	
 	private void manageSessions() throws InterruptedException{
-		int idleSessions=0;
-		JSONObject newSessionInfo = null;
-		Map<Integer,JSONObject> sessionsInfo = null;
-		Map<Integer,JSONObject> sessionsCopy = new HashMap<Integer,JSONObject>();
-		Map<String,String> headers = new HashMap<String,String>();
-		headers.put("Content-Type", "application/json");
-		headers.put("X-Requested-By", "user");
+		Map<String, PoolCounts> kindCounts = new HashMap<String, PoolCounts>();
+		for(String kind: kindPools.keySet()){
+			kindCounts.put(kind, new PoolCounts());
+		}
+		coordinateCluster();
 		
-		try {
-			getLogger().debug("********** manageSessions() aquiring list of sessions...");
-			sessionsInfo = listSessions();
-			if(sessions.isEmpty()){
-				getLogger().debug("********** manageSessions() the active session list is empty, populating from aquired list...");
-				sessions.putAll(sessionsInfo);
-			}
-			//sessionsCopy = sessions;
-			Iterator<Integer> sessionIterator = new ArrayList<>(sessions.keySet()).iterator();
-			//for(int sessionId: sessions.keySet()){
-			while(sessionIterator.hasNext()){
-				int sessionId = sessionIterator.next();
-				JSONObject currentSession = (JSONObject)sessions.get(sessionId);
-				getLogger().debug("********** manageSessions() Updating current session: " + currentSession);
-				if(sessionsInfo.containsKey(sessionId)){	
-					String state = currentSession.getString("state");
-					String sessionKind = currentSession.getString("kind");
-					getLogger().debug("********** manageSessions() controler kind: " + controllerKind);
-					getLogger().debug("********** manageSessions() session kind: " + sessionKind);
-					getLogger().debug("********** manageSessions() session state: " + state);
-					if(state.equalsIgnoreCase("idle") && sessionKind.equalsIgnoreCase(controllerKind)){
-						//Keep track of how many sessions are in an idle state and thus available
-						getLogger().debug("********** manageSessions() found " + state + " session of kind " + sessionKind);
-						idleSessions++;
-						getLogger().debug("********** manageSessions() storing session in session pool...");
-						sessions.put(sessionId,sessionsInfo.get(sessionId));
-						//Remove session from session list source of truth snapshot since it has been dealt with
-						sessionsInfo.remove(sessionId);
-						getLogger().debug("********** manageSessions() currently session pool looks like this: " + sessions);
-					}else if((state.equalsIgnoreCase("busy")||state.equalsIgnoreCase("starting")) && sessionKind.equalsIgnoreCase(controllerKind)){
-						//Update status of existing sessions
-						getLogger().debug("********** manageSessions() found " + state + " session of kind " + sessionKind);
-						getLogger().debug("********** manageSessions() storing session in session pool...");
-						sessions.put(sessionId,sessionsInfo.get(sessionId));
-						//Remove session from session list source of truth snapshot since it has been dealt with
-						sessionsInfo.remove(sessionId);
-						getLogger().debug("********** manageSessions() currently session pool looks like this: " + sessions);
-					}else{
-						//Prune sessions of kind != controllerKind and whose state is: 
-						//not_started, shutting_down, error, dead, success (successfully stopped)
-						getLogger().debug("********** manageSessions() found " + state + " session of kind " + sessionKind);
-						getLogger().debug("********** manageSessions() session is either of wrong kind or in an bad state...");
-						sessions.remove(sessionId);
-						//Remove session from session list source of truth snapshot since it has been dealt with
-						sessionsInfo.remove(sessionId);
-						getLogger().debug("********** manageSessions() currently session pool looks like this: " + sessions);
+		getLogger().debug("********** manageSessions() checking sessions...");
+		//Check the sessions of all Livy servers concurrently so a server that hangs does not hold up the others
+		for(final LivyEndpoint endpoint: endpoints){
+			Future<SessionsSnapshot> listing = sessionListings.get(endpoint);
+			if(listing == null || listing.isDone()){
+				sessionListings.put(endpoint, sessionProvisioningExecutor.submit(new Callable<SessionsSnapshot>() {
+					@Override
+					public SessionsSnapshot call(){
+						return checkSessions(endpoint);
 					}
-				}else{
-					//Prune sessions that no longer exist
-					getLogger().debug("********** manageSessions() session exists in session pool but not in source snapshot, removing from pool...");
-					sessions.remove(sessionId);
-					//Remove session from session list source of truth snapshot since it has been dealt with
-					sessionsInfo.remove(sessionId);
-					getLogger().debug("********** manageSessions() currently session pool looks like this: " + sessions);
+				}));
+			}
+		}
+		final long checkDeadline = System.currentTimeMillis() + endpointCheckTimeoutMillis;
+		for(LivyEndpoint endpoint: endpoints){
+			SessionsSnapshot snapshot = null;
+			Future<SessionsSnapshot> listing = sessionListings.get(endpoint);
+			try {
+				snapshot = listing.get(Math.max(0, checkDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				sessionListings.remove(endpoint);
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				sessionListings.remove(endpoint);
+			} catch (TimeoutException e) {
+				getLogger().debug("********** manageSessions() " + endpoint.getUrl() + " did not report its sessions within " + endpointCheckTimeoutMillis + " ms");
+			}
+			if(snapshot == null){
+				//Livy could not be reached, keep its sessions as they are rather than pruning them, but stop leasing them
+				if(endpoint.setAvailable(false)){
+					getLogger().warn("Livy server {} is not answering, its {} sessions are unavailable until it does",
+							new Object[]{endpoint.getUrl(), endpoint.getSessions().size()});
+					signalSessionAvailable();
 				}
+				continue;
+			}
+			if(endpoint.setAvailable(true)){
+				getLogger().info("Livy server {} is answering again", new Object[]{endpoint.getUrl()});
+			}
+			try {
+				refreshSessions(endpoint, snapshot, kindCounts);
+			} catch (JSONException e) {
+				e.printStackTrace();
 			}
-			//Update Session Cache with any sessions that remain in the source of truth snapshot since they were not created by this thread
-			//for(int sessionId: sessionsInfo.keySet()){
-			//	sessions.put(sessionId,sessionsInfo.get(sessionId));
-			//}
-			getLogger().debug("********** manageSessions() currently session pool looks like this: " + sessions);
-			int numSessions = sessions.size();
-			getLogger().debug("********** manageSessions() There are " + numSessions+ " sessions in the pool");
-			//Open new sessions equal to the number requested by session_pool_size
-			if(numSessions==0){
-				getLogger().debug("********** manageSessions() There are " + numSessions+ " sessions in the pool, creating...");
-				for(int i=0; i<sessionPoolSize; i++){
-					newSessionInfo = openSession();
-					sessions.put(newSessionInfo.getInt("id"), newSessionInfo);
-					getLogger().debug("********** manageSessions() Registered new session: " + newSessionInfo);
+		}
+		//Sessions on unavailable servers do not count, so that servers still answering make up for them
+		Map<String, Integer> kindSessions = new HashMap<String, Integer>();
+		int totalSessions = 0;
+		for(SessionKindPool kindPool: kindPools.values()){
+			int provisioning = kindPool.getProvisioningSessions().get();
+			kindSessions.put(kindPool.getKind(), provisioning);
+			kindCounts.get(kindPool.getKind()).starting += provisioning;
+			totalSessions += provisioning;
+		}
+		for(LivyEndpoint endpoint: endpoints){
+			if(endpoint.isAvailable()){
+				for(LivySession session: endpoint.getSessions().values()){
+					String kind = session.getKind().toLowerCase();
+					//Sessions being replaced do not count, so that their replacement is opened
+					if(kindSessions.containsKey(kind) && !session.isRetiring()){
+						kindSessions.put(kind, kindSessions.get(kind) + 1);
+						totalSessions++;
+					}
 				}
+			}
+		}
+		PoolCounts counts = new PoolCounts();
+		for(PoolCounts poolCounts: kindCounts.values()){
+			counts.add(poolCounts);
+		}
+		if(counts.idle > 0){
+			//Wake up anyone waiting in acquireSession() for a session that has just become idle
+			signalSessionAvailable();
+		}
+		if(getLogger().isDebugEnabled()){
+			getLogger().debug("********** manageSessions() currently session pool looks like this: " + endpoints + " " + getSessions(false));
+		}
+		metrics.updatePool(counts.idle, counts.busy, counts.leased, counts.starting, counts.dead);
+		reportMetrics();
+		getLogger().debug("********** manageSessions() There are " + totalSessions + " sessions in the pool: " + kindSessions);
+		int room = clusterRoom;
+		for(SessionKindPool kindPool: kindPools.values()){
+			int numSessions = kindSessions.get(kindPool.getKind());
+			PoolCounts poolCounts = kindCounts.get(kindPool.getKind());
+			int sessionsDemanded = sessionsDemanded(kindPool, poolCounts.idle, poolCounts.starting);
+			//In a cluster the pool is kept within the node's share of the budget, which the sessions of the other kinds take from
+			int kindShare = clusterShare == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(0, clusterShare - (totalSessions - numSessions));
+			int poolSize = Math.min(kindPool.getPoolSize(), kindShare);
+			int maxPoolSize = Math.min(kindPool.getMaxPoolSize(), kindShare);
+			int opened = 0;
+			if(numSessions < poolSize){
+				//Open more sessions if number of sessions is less than the minimum pool size
+				getLogger().debug("********** manageSessions() There are " + numSessions+ " " + kindPool.getKind() + " sessions, need more sessions to equal requested pool size of "+poolSize+", creating...");
+				opened = provisionSessions(kindPool, Math.min(poolSize-numSessions, room));
 			}else{
-				//Open one new session if there are no idle sessions
-				if(idleSessions==0){
-					getLogger().debug("********** manageSessions() There are " + numSessions+ " sessions in the pool but none of them are idle sessions, creating...");
-					newSessionInfo = openSession();
-					sessions.put(newSessionInfo.getInt("id"), newSessionInfo);
-					getLogger().debug("********** manageSessions() Registered new session: " + newSessionInfo);
+				int sessionsToOpen = Math.min(Math.min(sessionsDemanded, maxPoolSize - numSessions), room);
+				if(sessionsToOpen > 0){
+					getLogger().debug("********** manageSessions() Callers are waiting for " + kindPool.getKind() + " sessions, growing the pool of " + numSessions + " by " + sessionsToOpen + "...");
+					opened = provisionSessions(kindPool, sessionsToOpen);
+				}else{
+					closeIdleSessions(kindPool.getKind(), numSessions, poolSize, maxPoolSize);
+				}
+			}
+			room -= opened;
+			totalSessions += opened;
+			recycleSessions(kindPool, poolSize, room > 0);
+		}
+		saveSessionState();
+	}
+	
+	/**
+	 * Reads the sessions opened by an earlier run of the service from the local state. They are
+	 * adopted, or deleted if they no longer match the configuration, once their Livy server lists
+	 * its sessions.
+	 */
+	private void recoverSessionState(){
+		recoveredSessions.clear();
+		savedSessionState = Collections.emptyMap();
+		nodeId = null;
+		Set<String> livyUrls = new HashSet<String>();
+		for(LivyEndpoint endpoint: endpoints){
+			livyUrls.add(endpoint.getUrl());
+		}
+		try {
+			Map<String, String> state = getStateManager().getState(Scope.LOCAL).toMap();
+			for(Map.Entry<String, String> entry: state.entrySet()){
+				OwnedSession owned = OwnedSession.parse(entry.getKey(), entry.getValue());
+				if(owned == null){
+					continue;
+				}
+				if(livyUrls.contains(owned.getLivyUrl())){
+					recoveredSessions.put(owned.getKey(), owned);
+				}else{
+					getLogger().info("Not adopting Livy session {} opened before, its Livy server is no longer configured", new Object[]{owned.getKey()});
 				}
-				//Open more sessions if number of sessions is less than target pool size
-				if(numSessions < sessionPoolSize){
-					getLogger().debug("********** manageSessions() There are " + numSessions+ ", need more sessions to equal requested pool size of "+sessionPoolSize+", creating...");
-					for(int i=0; i<sessionPoolSize-numSessions; i++){
-						newSessionInfo = openSession();
-						sessions.put(newSessionInfo.getInt("id"), newSessionInfo);
-						getLogger().debug("********** manageSessions() Registered new session: " + newSessionInfo);
+			}
+			savedSessionState = state;
+			nodeId = state.get(NODE_ID_KEY);
+			getLogger().debug("********** recoverSessionState() Recovered sessions: " + recoveredSessions.keySet());
+		} catch (IOException e) {
+			getLogger().warn("Could not read the Livy sessions opened before from the local state, new sessions will be opened", e);
+		} catch (JSONException e) {
+			getLogger().warn("Could not read the Livy sessions opened before from the local state, new sessions will be opened", e);
+		}
+		if(nodeId == null){
+			nodeId = UUID.randomUUID().toString();
+		}
+	}
+	
+	private boolean isConfiguredLivyUrl(String livyUrl){
+		for(LivyEndpoint endpoint: endpoints){
+			if(endpoint.getUrl().equals(livyUrl)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean hasRecoveredSessions(LivyEndpoint endpoint){
+		for(OwnedSession recovered: recoveredSessions.values()){
+			if(recovered.getLivyUrl().equals(endpoint.getUrl())){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Records this node's heartbeat and sessions in the cluster state and takes its share of the cluster
+	 * session budget. Sessions another node owns are dropped from the pool without being closed, and
+	 * sessions taken over from nodes that have left are adopted once their Livy server lists them.
+	 */
+	private void coordinateCluster(){
+		if(clusterCoordinator == null){
+			return;
+		}
+		Map<String, LivySession> poolSessions = new HashMap<String, LivySession>();
+		for(LivyEndpoint endpoint: endpoints){
+			for(LivySession session: endpoint.getSessions().values()){
+				poolSessions.put(OwnedSession.key(endpoint.getUrl(), session.getId()), session);
+			}
+		}
+		Map<String, String> ownedSessions = new HashMap<String, String>();
+		for(OwnedSession recovered: recoveredSessions.values()){
+			ownedSessions.put(recovered.getKey(), recovered.getKind());
+		}
+		for(Map.Entry<String, LivySession> poolSession: poolSessions.entrySet()){
+			ownedSessions.put(poolSession.getKey(), poolSession.getValue().getKind());
+		}
+		ClusterSessionCoordinator.Assignment assignment;
+		try {
+			assignment = clusterCoordinator.update(ownedSessions);
+		} catch (IOException e) {
+			getLogger().warn("Could not update the Livy session budget in the cluster state, keeping the last share of {}", new Object[]{clusterShare}, e);
+			return;
+		}
+		if(assignment == null){
+			getLogger().debug("********** coordinateCluster() Cluster state kept changing under this node, keeping the last share of " + clusterShare);
+			return;
+		}
+		getLogger().debug("********** coordinateCluster() " + assignment);
+		if(assignment.getShare() != clusterShare){
+			getLogger().info("This node's share of the Livy session budget is now {} sessions, across {} nodes",
+					new Object[]{assignment.getShare(), assignment.getNodes()});
+		}
+		for(String lostSession: assignment.getLostSessions()){
+			recoveredSessions.remove(lostSession);
+			LivySession session = poolSessions.get(lostSession);
+			//A session running a statement is dropped on a later pass, once released
+			if(session != null && session.tryLease()){
+				getLogger().warn("Livy session {} is owned by another node, dropping it from the pool", new Object[]{lostSession});
+				session.getEndpoint().getSessions().remove(session.getId());
+			}
+		}
+		for(Map.Entry<String, String> claimedSession: assignment.getClaimedSessions().entrySet()){
+			if(poolSessions.containsKey(claimedSession.getKey())){
+				continue;
+			}
+			OwnedSession owned = OwnedSession.claimed(claimedSession.getKey(), claimedSession.getValue(), jars);
+			if(owned == null || !isConfiguredLivyUrl(owned.getLivyUrl())){
+				//Not recorded as owned again, so the claim is dropped from the cluster state on the next pass
+				getLogger().info("Not taking over Livy session {} from a node that has left, its Livy server is not configured on this node",
+						new Object[]{claimedSession.getKey()});
+				continue;
+			}
+			//Adopted into the pool of its kind, or deleted if the kind is not pooled, once its Livy server lists its sessions
+			getLogger().info("Taking over {} Livy session {} from a node that has left", new Object[]{claimedSession.getValue(), claimedSession.getKey()});
+			recoveredSessions.put(claimedSession.getKey(), owned);
+		}
+		int provisioning = 0;
+		for(LivyEndpoint endpoint: endpoints){
+			provisioning += endpoint.getProvisioningSessions().get();
+		}
+		clusterShare = assignment.getShare();
+		clusterRoom = Math.max(0, clusterCoordinator.getSessionBudget() - assignment.getClusterSessions() - provisioning);
+	}
+	
+	/**
+	 * Records the sessions of the pool, with the init code and init profiles that have run on them, in
+	 * the local state if they have changed since they were last recorded. Recovered sessions whose Livy
+	 * server has not listed its sessions since are kept in the state.
+	 */
+	private void saveSessionState(){
+		Map<String, String> state = new HashMap<String, String>();
+		state.put(NODE_ID_KEY, nodeId);
+		try {
+			for(OwnedSession recovered: recoveredSessions.values()){
+				state.put(recovered.getKey(), recovered.toJson());
+			}
+			for(LivyEndpoint endpoint: endpoints){
+				for(LivySession session: endpoint.getSessions().values()){
+					Map<String, String> profileDigests = new HashMap<String, String>();
+					for(Map.Entry<String, String> initProfileDigest: initProfileDigests.entrySet()){
+						if(session.hasInitProfile(initProfileDigest.getKey())){
+							profileDigests.put(initProfileDigest.getKey(), initProfileDigest.getValue());
+						}
 					}
+					OwnedSession owned = new OwnedSession(endpoint.getUrl(), session.getId(), session.getKind(), jars, session.getRegistered(),
+							session.isInitialized() ? sessionInitDigest : null, profileDigests);
+					state.put(owned.getKey(), owned.toJson());
 				}
 			}
-			
-			getLogger().debug("********** manageSessions() Updated map of sessions: " + sessions);
 		} catch (JSONException e) {
 			e.printStackTrace();
+			return;
+		}
+		if(state.equals(savedSessionState)){
+			return;
+		}
+		try {
+			getStateManager().setState(state, Scope.LOCAL);
+			savedSessionState = state;
+		} catch (IOException e) {
+			getLogger().warn("Could not record the Livy sessions in the local state, they will not be adopted when the service is next enabled", e);
+		}
+	}
+	
+	/**
+	 * Adopts the recovered sessions of one Livy server that it still lists and that match the
+	 * configuration, marking the init code and init profiles that have run on them with the same code
+	 * as run. Recovered sessions of another kind or other jars, or that have ended, are deleted.
+	 */
+	private void adoptRecoveredSessions(LivyEndpoint endpoint, SessionsSnapshot snapshot) throws JSONException{
+		for(Iterator<OwnedSession> recovered = recoveredSessions.values().iterator(); recovered.hasNext();){
+			OwnedSession owned = recovered.next();
+			if(!owned.getLivyUrl().equals(endpoint.getUrl())){
+				continue;
+			}
+			recovered.remove();
+			JSONObject sessionInfo = snapshot.sessionsInfo.get(owned.getSessionId());
+			if(sessionInfo == null){
+				getLogger().debug("********** adoptRecoveredSessions() Session " + owned.getKey() + " no longer exists");
+				continue;
+			}
+			String state = sessionInfo.getString("state");
+			boolean usable = state.equalsIgnoreCase("idle") || state.equalsIgnoreCase("busy") || state.equalsIgnoreCase("starting");
+			boolean sameJars = jars == null ? owned.getJars() == null : jars.equals(owned.getJars());
+			if(!usable || !kindPools.containsKey(sessionInfo.getString("kind").toLowerCase()) || !sameJars){
+				getLogger().info("Deleting Livy session {} opened before, it is {} and no longer matches the configuration",
+						new Object[]{owned.getKey(), state});
+				try {
+					livyClient.delete(owned.getKey());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			LivySession adoptedSession = new LivySession(endpoint, sessionInfo, owned.getCreated());
+			if(sessionInitDigest.equals(owned.getInitDigest())){
+				adoptedSession.setInitialized();
+			}
+			for(Map.Entry<String, String> initProfileDigest: owned.getInitProfileDigests().entrySet()){
+				if(initProfileDigest.getValue().equals(initProfileDigests.get(initProfileDigest.getKey()))){
+					adoptedSession.addInitProfile(initProfileDigest.getKey());
+				}
+			}
+			endpoint.getSessions().put(adoptedSession.getId(), adoptedSession);
+			getLogger().debug("********** adoptRecoveredSessions() Adopted session: " + adoptedSession);
+		}
+	}
+	
+	/**
+	 * Reads the state of the sessions of one Livy server. All of its sessions are listed when it has not
+	 * been listed for the resync interval or has been unavailable. Otherwise only the sessions whose state
+	 * may have changed unnoticed are checked, one at a time, and at least the one checked longest ago so
+	 * that a server that stops answering is noticed.
+	 * @return null if the server did not answer
+	 */
+	private SessionsSnapshot checkSessions(LivyEndpoint endpoint){
+		final long snapshotTime = System.currentTimeMillis();
+		List<LivySession> sessionsToCheck = new ArrayList<LivySession>();
+		LivySession stalestSession = null;
+		for(LivySession session: endpoint.getSessions().values()){
+			//A leased session is running its leaseholder's statements, and an idle one was seen idle recently
+			if(session.isLeased()){
+				continue;
+			}
+			if(!"idle".equalsIgnoreCase(session.getState()) || snapshotTime - session.getStateUpdated() >= sessionStateMaxAgeMillis){
+				sessionsToCheck.add(session);
+			}else if(stalestSession == null || session.getStateUpdated() < stalestSession.getStateUpdated()){
+				stalestSession = session;
+			}
+		}
+		if(sessionsToCheck.isEmpty() && stalestSession != null){
+			sessionsToCheck.add(stalestSession);
+		}
+		if(sessionsToCheck.isEmpty() || !endpoint.isAvailable() || snapshotTime - endpoint.getLastFullListing() >= sessionResyncIntervalMillis
+				|| hasRecoveredSessions(endpoint)){
+			Map<Integer,JSONObject> sessionsInfo = listSessions(endpoint);
+			if(sessionsInfo == null){
+				return null;
+			}
+			endpoint.setLastFullListing(snapshotTime);
+			return new SessionsSnapshot(true, snapshotTime, sessionsInfo, Collections.<Integer>emptySet());
+		}
+		Map<Integer,JSONObject> sessionsInfo = new HashMap<Integer,JSONObject>();
+		Set<Integer> deletedSessions = new HashSet<Integer>();
+		for(LivySession session: sessionsToCheck){
+			try {
+				sessionsInfo.put(session.getId(), livyClient.get(endpoint.getUrl()+"/sessions/"+session.getId()+"/state"));
+			} catch (HttpResponseException e) {
+				if(e.getStatusCode() == 404){
+					deletedSessions.add(session.getId());
+				}else{
+					e.printStackTrace();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		return new SessionsSnapshot(false, snapshotTime, sessionsInfo, deletedSessions);
+	}
+	
+	/**
+	 * Brings the sessions tracked for one Livy server in line with what it has just reported, adding
+	 * each session's state to the pool counts. Sessions left out of a partial snapshot keep their last
+	 * known state.
+	 */
+	private void refreshSessions(LivyEndpoint endpoint, SessionsSnapshot snapshot, Map<String, PoolCounts> kindCounts) throws JSONException{
+		Map<Integer, LivySession> sessions = endpoint.getSessions();
+		if(snapshot.complete && !recoveredSessions.isEmpty()){
+			//Only the sessions this service opened are adopted, others belong to other clients of Livy
+			adoptRecoveredSessions(endpoint, snapshot);
+		}
+		for(int sessionId: new ArrayList<>(sessions.keySet())){
+			LivySession currentSession = sessions.get(sessionId);
+			if(currentSession == null){
+				continue;
+			}
+			getLogger().debug("********** manageSessions() Updating current session: " + currentSession);
+			PoolCounts counts = kindCounts.get(currentSession.getKind().toLowerCase());
+			final boolean pooledKind = counts != null;
+			if(!pooledKind){
+				//Counted nowhere, the session is pruned below
+				counts = new PoolCounts();
+			}
+			JSONObject sessionInfo = snapshot.sessionsInfo.get(sessionId);
+			if(sessionInfo != null){
+				if(snapshot.complete){
+					currentSession.update(sessionInfo);
+				}else{
+					currentSession.updateState(sessionInfo.getString("state"));
+				}
+			}else if(snapshot.deletedSessions.contains(sessionId) || (snapshot.complete && currentSession.getRegistered() < snapshot.time)){
+				//Prune sessions that no longer exist
+				getLogger().debug("********** manageSessions() session exists in session pool but not in Livy, removing from pool...");
+				sessions.remove(sessionId);
+				continue;
+			}else if(snapshot.complete){
+				//Registered by a provisioning thread after the snapshot was taken, it will be in the next one
+				counts.starting++;
+				continue;
+			}
+			if(currentSession.isLeased()){
+				counts.leased++;
+			}
+			String state = currentSession.getState();
+			String sessionKind = currentSession.getKind();
+			getLogger().debug("********** manageSessions() controler kinds: " + kindPools.keySet());
+			getLogger().debug("********** manageSessions() session kind: " + sessionKind);
+			getLogger().debug("********** manageSessions() session state: " + state);
+			if(state.equalsIgnoreCase("idle") && pooledKind){
+				//Keep track of how many sessions are in an idle state and not leased and thus available
+				getLogger().debug("********** manageSessions() found " + state + " session of kind " + sessionKind);
+				if(!currentSession.isInitialized()){
+					//Adopted from an earlier run of the service, its init code has to run before it is leased
+					initializeSessionAsync(currentSession);
+					counts.starting++;
+				}else if(!currentSession.isLeased()){
+					counts.idle++;
+				}
+			}else if((state.equalsIgnoreCase("busy")||state.equalsIgnoreCase("starting")) && pooledKind){
+				getLogger().debug("********** manageSessions() found " + state + " session of kind " + sessionKind);
+				if(state.equalsIgnoreCase("starting")){
+					counts.starting++;
+				}else{
+					counts.busy++;
+				}
+			}else{
+				//Prune sessions of a kind no pool is kept of and whose state is: 
+				//not_started, shutting_down, error, dead, success (successfully stopped)
+				getLogger().debug("********** manageSessions() found " + state + " session of kind " + sessionKind);
+				getLogger().debug("********** manageSessions() session is either of wrong kind or in an bad state...");
+				if(pooledKind){
+					counts.dead++;
+				}
+				sessions.remove(sessionId);
+			}
+		}
+	}
+	
+	private void reportMetrics(){
+		long now = System.currentTimeMillis();
+		if(now - lastMetricsReport < metricsReportIntervalMillis){
+			return;
+		}
+		lastMetricsReport = now;
+		long leaseTimeouts = metrics.getLeaseTimeouts();
+		if(leaseTimeouts > lastLeaseTimeouts){
+			getLogger().warn("Callers timed out waiting for a Livy session {} times in the last {} ms, the pool may be too small: {}",
+					new Object[]{leaseTimeouts - lastLeaseTimeouts, metricsReportIntervalMillis, metrics});
+		}else{
+			getLogger().info("Livy session pool metrics: {}", new Object[]{metrics});
+		}
+		lastLeaseTimeouts = leaseTimeouts;
+	}
+	
+	/**
+	 * Works out how many sessions of a kind to add to the pool from the lease demand seen since the last pass:
+	 * callers still waiting, callers that gave up waiting and the average time callers had to wait.
+	 * Sessions that are already starting count towards the demand.
+	 */
+	private int sessionsDemanded(SessionKindPool kindPool, int idleSessions, int startingSessions){
+		int waiting = kindPool.getWaitingAcquirers().get();
+		int misses = kindPool.getLeaseMisses().getAndSet(0);
+		int acquisitions = kindPool.getLeaseAcquisitions().getAndSet(0);
+		long waitNanos = kindPool.getLeaseWaitNanos().getAndSet(0);
+		if(idleSessions > 0){
+			return 0;
+		}
+		int unsatisfied = Math.max(waiting, misses);
+		if(unsatisfied == 0 && acquisitions > 0 && waitNanos / acquisitions > leaseWaitTargetNanos){
+			unsatisfied = 1;
+		}
+		getLogger().debug("********** sessionsDemanded() " + kindPool.getKind() + " waiting: " + waiting + ", misses: " + misses + ", acquisitions: " + acquisitions
+				+ ", wait nanos: " + waitNanos + ", starting: " + startingSessions);
+		return unsatisfied - startingSessions;
+	}
+	
+	/**
+	 * Closes sessions of a kind above the minimum pool size that have not been leased for longer than the idle timeout,
+	 * and available sessions above the maximum pool size whatever their idle time, as when this node's share
+	 * of the cluster session budget has shrunk.
+	 */
+	private void closeIdleSessions(String kind, int numSessions, int poolSize, int maxPoolSize){
+		long now = System.currentTimeMillis();
+		List<LivySession> closable = getSessions(true);
+		//Close the sessions holding the least cached data first
+		Collections.sort(closable, new Comparator<LivySession>() {
+			@Override
+			public int compare(LivySession first, LivySession second){
+				return Long.compare(first.getCachedBytes(), second.getCachedBytes());
+			}
+		});
+		for(LivySession currentSession: closable){
+			if(numSessions <= poolSize){
+				return;
+			}
+			boolean overBudget = numSessions > maxPoolSize;
+			if(currentSession.isAvailable(kind) && (overBudget || now - currentSession.getLastUsed() > sessionIdleTimeoutMillis)
+					&& currentSession.tryLease()){
+				getLogger().debug("********** closeIdleSessions() Closing session " + currentSession.getId() + ", unused for " + (now - currentSession.getLastUsed()) + " ms");
+				currentSession.getEndpoint().getSessions().remove(currentSession.getId());
+				numSessions--;
+				try {
+					livyClient.delete(currentSession.getEndpoint().getUrl()+"/sessions/"+currentSession.getId());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replaces sessions of a kind that have run too many statements, have been open too long, or whose statements
+	 * fail or slow down past the configured limits. One session of the kind is replaced at a time: it is marked as
+	 * retiring, which no longer counts it in the pool so that the manager opens its replacement, and it is closed
+	 * once it is not leased and the pool is back to size without it. Until then it keeps serving leases.
+	 * @param canReplace false if no session may be opened for the replacement, as when the cluster budget is used up
+	 */
+	private void recycleSessions(SessionKindPool kindPool, int poolSize, boolean canReplace){
+		long now = System.currentTimeMillis();
+		String kind = kindPool.getKind();
+		List<LivySession> retiring = new ArrayList<LivySession>();
+		int ready = 0;
+		boolean replacementsStarting = kindPool.getProvisioningSessions().get() > 0;
+		for(LivySession currentSession: getSessions(true)){
+			if(!kind.equalsIgnoreCase(currentSession.getKind())){
+				continue;
+			}
+			if(currentSession.isRetiring()){
+				retiring.add(currentSession);
+			}else if(currentSession.isInitialized() && !"starting".equalsIgnoreCase(currentSession.getState())){
+				ready++;
+			}else{
+				replacementsStarting = true;
+			}
+		}
+		if(!retiring.isEmpty()){
+			if(replacementsStarting || ready < poolSize){
+				return;
+			}
+			for(LivySession currentSession: retiring){
+				if(currentSession.tryLease()){
+					getLogger().info("Closing Livy session {} replaced because it {}", new Object[]{currentSession.getId(), currentSession.getRetireReason()});
+					currentSession.getEndpoint().getSessions().remove(currentSession.getId());
+					try {
+						livyClient.delete(currentSession.getEndpoint().getUrl()+"/sessions/"+currentSession.getId());
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			return;
+		}
+		if(!canReplace){
+			return;
+		}
+		for(LivySession currentSession: getSessions(true)){
+			if(!kind.equalsIgnoreCase(currentSession.getKind())){
+				continue;
+			}
+			String reason = getRetireReason(currentSession, now);
+			if(reason != null){
+				getLogger().info("Replacing Livy session {} because it {}", new Object[]{currentSession.getId(), reason});
+				currentSession.retire(reason);
+				wakeManager();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return why the session has to be replaced, or null if it is within the health limits
+	 */
+	private String getRetireReason(LivySession session, long now){
+		long statements = session.getStatementCount();
+		if(sessionMaxStatements > 0 && statements >= sessionMaxStatements){
+			return "has run " + statements + " statements";
+		}
+		if(sessionMaxAgeMillis > 0 && now - session.getRegistered() > sessionMaxAgeMillis){
+			return "has been open for " + (now - session.getRegistered()) + " ms";
+		}
+		if(sessionMaxErrorRate > 0 && statements >= LivySession.BASELINE_STATEMENTS
+				&& session.getRecentErrorRate() * 100 > sessionMaxErrorRate){
+			return "fails " + Math.round(session.getRecentErrorRate() * 100) + "% of its statements";
 		}
+		if(sessionMaxLatencyIncrease > 0 && (session.getLatencyGrowth() - 1) * 100 > sessionMaxLatencyIncrease){
+			return "runs statements " + String.format("%.1f", session.getLatencyGrowth()) + " times slower than at first";
+		}
+		return null;
 	}
 	
-	private Map<Integer,JSONObject> listSessions(){
-		String sessionsUrl = livyUrl+"/sessions";
+	/**
+	 * @return the pooled session the URL is of, or null if it is not in the pool
+	 */
+	private LivySession findSession(String sessionUrl){
+		for(LivyEndpoint endpoint: endpoints){
+			String sessionsPath = endpoint.getUrl() + "/sessions/";
+			if(sessionUrl.startsWith(sessionsPath)){
+				try {
+					return endpoint.getSessions().get(Integer.parseInt(sessionUrl.substring(sessionsPath.length())));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Opens the given number of sessions of a kind concurrently on the provisioning threads, so that the
+	 * manager thread keeps refreshing the rest of the pool while the new sessions start. Each
+	 * session is opened on the available Livy server with the fewest sessions.
+	 * @return the number of sessions being opened
+	 */
+	private int provisionSessions(final SessionKindPool kindPool, int count){
+		getLogger().debug("********** provisionSessions() Opening " + count + " " + kindPool.getKind() + " sessions...");
+		for(int i=0; i<count; i++){
+			LivyEndpoint smallestEndpoint = null;
+			for(LivyEndpoint endpoint: endpoints){
+				if(endpoint.isAvailable() && (smallestEndpoint == null || endpoint.getPoolSize() < smallestEndpoint.getPoolSize())){
+					smallestEndpoint = endpoint;
+				}
+			}
+			if(smallestEndpoint == null){
+				getLogger().debug("********** provisionSessions() No Livy server is available to open sessions on");
+				return i;
+			}
+			final LivyEndpoint endpoint = smallestEndpoint;
+			endpoint.getProvisioningSessions().incrementAndGet();
+			kindPool.getProvisioningSessions().incrementAndGet();
+			sessionProvisioningExecutor.submit(new Runnable() {
+				public void run(){
+					try {
+						openSession(endpoint, kindPool);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		return count;
+	}
+	
+	private LivySession registerSession(LivyEndpoint endpoint, JSONObject newSessionInfo) throws JSONException{
+		LivySession newSession = new LivySession(endpoint, newSessionInfo);
+		endpoint.getSessions().put(newSession.getId(), newSession);
+		getLogger().debug("********** registerSession() Registered new session: " + newSession);
+		if(newSession.isAvailable(newSession.getKind())){
+			signalSessionAvailable();
+		}
+		return newSession;
+	}
+	
+	private Map<Integer,JSONObject> listSessions(LivyEndpoint endpoint){
+		String sessionsUrl = endpoint.getUrl()+"/sessions";
 		int numSessions = 0;
 		JSONObject sessionsInfo = null;
 		Map<Integer,JSONObject> sessionsMap = new HashMap<Integer,JSONObject>();
-		Map<String,String> headers = new HashMap<String,String>();
-		headers.put("Content-Type", "application/json");
-		headers.put("X-Requested-By", "user");
 		try {
-			sessionsInfo = readJSONFromUrl(sessionsUrl, headers);
+			sessionsInfo = livyClient.get(sessionsUrl);
 			numSessions = sessionsInfo.getJSONArray("sessions").length();
 			getLogger().debug("********** listSessions() Number of sessions: " + numSessions);
 			for(int i=0;i<numSessions; i++){
-				getLogger().debug("********** listSessions() Updated map of sessions: " + sessionsMap);
 				int currentSessionId = sessionsInfo.getJSONArray("sessions").getJSONObject(i).getInt("id");
 				JSONObject currentSession = sessionsInfo.getJSONArray("sessions").getJSONObject(i);
 				sessionsMap.put(currentSessionId,currentSession);	
 			}	
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		} catch (JSONException e) {
 			e.printStackTrace();
+			return null;
 		}
 		
 		return sessionsMap;
 	}
 	
-	private JSONObject getSessionInfo(int sessionId){
-		String sessionUrl = livyUrl+"/sessions/"+sessionId;
+	private JSONObject getSessionInfo(LivySession session){
+		String sessionUrl = session.getEndpoint().getUrl()+"/sessions/"+session.getId();
 		JSONObject sessionInfo = null;
-		Map<String,String> headers = new HashMap<String,String>();
-		headers.put("Content-Type", "application/json");
-		headers.put("X-Requested-By", "user");
 		try {
-			sessionInfo = readJSONFromUrl(sessionUrl, headers);
+			sessionInfo = livyClient.get(sessionUrl);
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (JSONException e) {
-			e.printStackTrace();
 		}
 		
 		return sessionInfo;
 	}
 	
-	private JSONObject openSession() throws InterruptedException{
-		JSONObject newSessionInfo = null;
+	private void openSession(LivyEndpoint endpoint, SessionKindPool kindPool) throws InterruptedException{
+		LivySession newSession = null;
 		try {
-			String sessionsUrl = livyUrl+"/sessions";
+			String sessionsUrl = endpoint.getUrl()+"/sessions";
 			String payload = null;
 			if(jars != null){
 				String[] jarsArray = jars.split(",");
 				ObjectMapper mapper = new ObjectMapper();
 				String jarsJsonArray = mapper.writeValueAsString(jarsArray);
-				payload = "{\"kind\":\""+controllerKind+"\",\"jars\":"+jarsJsonArray+"}";
+				payload = "{\"kind\":\""+kindPool.getKind()+"\",\"jars\":"+jarsJsonArray+"}";
 			}else{
-				payload = "{\"kind\":\""+controllerKind+"\"}";
+				payload = "{\"kind\":\""+kindPool.getKind()+"\"}";
 			}
 			getLogger().debug("********** openSession() Session Payload: " + payload);
-			Map<String,String> headers = new HashMap<String,String>();
-			headers.put("Content-Type", "application/json");
-			headers.put("X-Requested-By", "user");
 		
-			newSessionInfo = readJSONObjectFromUrlPOST(sessionsUrl, headers, payload);
+			JSONObject newSessionInfo = livyClient.post(sessionsUrl, payload);
 			getLogger().debug("********** openSession() Created new sessions: " + newSessionInfo);
-			Thread.sleep(1000);
-			while(newSessionInfo.getString("state").equalsIgnoreCase("starting")){
-				getLogger().debug("********** openSession() Wating for session to start...");
-				newSessionInfo = getSessionInfo(newSessionInfo.getInt("id"));
-				getLogger().debug("********** openSession() newSessionInfo: " + newSessionInfo);
-				Thread.sleep(1000);
-			}
+			newSession = registerSession(endpoint, newSessionInfo);
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (JSONException e) {
 			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
+		} finally {
+			endpoint.getProvisioningSessions().decrementAndGet();
+			kindPool.getProvisioningSessions().decrementAndGet();
+		}
+		if(newSession == null){
+			return;
 		}
 		
-		return newSessionInfo;
+		try {
+			while(enabled && newSession.getState().equalsIgnoreCase("starting") && endpoint.getSessions().containsKey(newSession.getId())){
+				Thread.sleep(1000);
+				getLogger().debug("********** openSession() Wating for session to start...");
+				JSONObject newSessionInfo = getSessionInfo(newSession);
+				getLogger().debug("********** openSession() newSessionInfo: " + newSessionInfo);
+				if(newSessionInfo != null){
+					newSession.update(newSessionInfo);
+				}
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		getLogger().debug("********** openSession() Session " + newSession.getId() + " started in state " + newSession.getState());
+		if(newSession.getState().equalsIgnoreCase("idle") && newSession.tryLease()){
+			try {
+				initializeSession(newSession);
+			} finally {
+				newSession.release();
+			}
+			metrics.recordSessionStartup(System.currentTimeMillis() - newSession.getRegistered());
+		}
+		if(newSession.isAvailable(kindPool.getKind())){
+			signalSessionAvailable();
+		}
 	}
 	
-	private JSONObject readJSONObjectFromUrlPOST(String urlString, Map<String,String> headers, String payload) throws IOException, JSONException {
-		JSONObject jsonObject = null;
+	/**
+	 * Runs the session init code on a session the caller holds the lease of, and marks the session
+	 * initialized if it succeeds. A session whose init code fails is closed, as it would fail the
+	 * same way for every statement run on it. A session left running its init code because the service
+	 * was disabled is kept, to be adopted and initialized again when the service is next enabled.
+	 */
+	private boolean initializeSession(LivySession session) throws InterruptedException{
+		if(session.isInitialized()){
+			return true;
+		}
+		LivyStatement statement = sessionInitCode == null ? null : runStatement(session, sessionInitCode);
+		if(sessionInitCode == null || (statement != null && statement.isSuccessful())){
+			session.setInitialized();
+			return true;
+		}
+		if(statement != null && statement.isRunning()){
+			getLogger().debug("********** initializeSession() Service disabled while initializing session " + session.getId() + ", leaving it open");
+			return false;
+		}
+		getLogger().error("Session init code failed on Livy session {}, closing it", new Object[]{session.getId()});
+		session.getEndpoint().getSessions().remove(session.getId());
+		wakeManager();
 		try {
-            URL url = new URL (urlString);
-            
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            
-            for (Map.Entry<String, String> entry : headers.entrySet()){
-            	connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            
-            OutputStream os = connection.getOutputStream();
-    		os.write(payload.getBytes());
-    		os.flush();
-            
-            if (connection.getResponseCode() != 200 && connection.getResponseCode() != 201){
-    			throw new RuntimeException("Failed : HTTP error code : " + connection.getResponseCode() + " : " + connection.getResponseMessage());
-    		}
-            
-            InputStream content = (InputStream)connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(content, Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	jsonObject = new JSONObject(jsonText);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return jsonObject;
-    }
+			livyClient.delete(session.getEndpoint().getUrl()+"/sessions/"+session.getId());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
 	
-	private JSONArray readJSONArrayFromUrlPOST(String urlString, Map<String,String> headers, String payload) throws IOException, JSONException {
-		JSONArray jsonArray = null;
-		try {
-            URL url = new URL (urlString);
-            
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            
-            for (Map.Entry<String, String> entry : headers.entrySet()){
-            	connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            
-            OutputStream os = connection.getOutputStream();
-    		os.write(payload.getBytes());
-    		os.flush();
-            
-            if (connection.getResponseCode() != 200) {
-    			throw new RuntimeException("Failed : HTTP error code : " + connection.getResponseCode() + " : " + connection.getResponseMessage());
-    		}
-            
-            InputStream content = (InputStream)connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(content, Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	jsonArray = new JSONArray(jsonText);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return jsonArray;
-    }
+	private void initializeSessionAsync(final LivySession session){
+		if(!session.tryLease()){
+			return;
+		}
+		sessionProvisioningExecutor.submit(new Runnable() {
+			@Override
+			public void run(){
+				try {
+					if(initializeSession(session)){
+						signalSessionAvailable();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					session.release();
+				}
+			}
+		});
+	}
 	
-	private JSONObject readJSONFromUrl(String urlString, Map<String,String> headers) throws IOException, JSONException {
-		JSONObject json = null;
+	/**
+	 * Runs code as a statement on the given session and waits for it to complete.
+	 * @return the final status of the statement, a status that is still running if the service was
+	 * disabled before the statement completed, or null if the statement could not be run
+	 */
+	private LivyStatement runStatement(LivySession session, String code) throws InterruptedException{
+		String statementsUrl = session.getEndpoint().getUrl()+"/sessions/"+session.getId()+"/statements";
 		try {
-            URL url = new URL (urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            for (Map.Entry<String, String> entry : headers.entrySet()){
-            	connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            connection.setRequestMethod("GET");
-            connection.setDoOutput(true);
-            //connection.setRequestProperty  ("Authorization", "Basic " + encoding);
-            InputStream content = (InputStream)connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(content, Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	json = new JSONObject(jsonText);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return json;
-    }
+			LivyStatement statement = livyClient.postStatement(statementsUrl, new CodePayloadEntity(code));
+			StatementPollingStrategy.Schedule schedule = INIT_POLLING.start();
+			while(enabled && statement.isRunning()){
+				Thread.sleep(schedule.nextInterval());
+				statement = livyClient.getStatement(statementsUrl+"/"+statement.getId());
+			}
+			if(!statement.isSuccessful() && !statement.isRunning()){
+				getLogger().error("Statement failed on Livy session {} in state {}: {} {}",
+						new Object[]{session.getId(), statement.getState(), statement.getErrorName(), statement.getErrorValue()});
+			}
+			return statement;
+		} catch (IOException e) {
+			getLogger().error("Failed to run a statement on Livy session {}", new Object[]{session.getId()}, e);
+			return null;
+		}
+	}
+
+	private String getUnpersistCode(LivySession session){
+		if(datasetUnpersistCode != null){
+			return datasetUnpersistCode;
+		}
+		return "sparkr".equalsIgnoreCase(session.getKind()) ? "unpersist({dataset})" : "{dataset}.unpersist()";
+	}
+
+	/**
+	 * Session states reported by one Livy server: every session it has, or only the sessions that were checked.
+	 */
+	private static class SessionsSnapshot{
+		private final boolean complete;
+		//When the sessions were asked for, sessions registered later cannot be in a complete snapshot
+		private final long time;
+		private final Map<Integer,JSONObject> sessionsInfo;
+		private final Set<Integer> deletedSessions;
+		
+		private SessionsSnapshot(boolean complete, long time, Map<Integer,JSONObject> sessionsInfo, Set<Integer> deletedSessions){
+			this.complete = complete;
+			this.time = time;
+			this.sessionsInfo = sessionsInfo;
+			this.deletedSessions = deletedSessions;
+		}
+	}
 	
-	private JSONArray readJSONArrayFromUrl(String urlString, Map<String,String> headers) throws IOException, JSONException {
-		JSONArray jsonArray = null;
-		try {
-            URL url = new URL (urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            for (Map.Entry<String, String> entry : headers.entrySet()){
-            	connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            connection.setRequestMethod("GET");
-            connection.setDoOutput(true);
-            InputStream content = (InputStream)connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(content, Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	jsonArray = new JSONArray(jsonText);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return jsonArray;
-    }
+	private static class PoolCounts{
+		private int idle;
+		private int starting;
+		private int busy;
+		private int leased;
+		private int dead;
+		
+		private void add(PoolCounts counts){
+			idle += counts.idle;
+			starting += counts.starting;
+			busy += counts.busy;
+			leased += counts.leased;
+			dead += counts.dead;
+		}
+	}
 	
-	private String readAll(Reader rd) throws IOException {
-	    StringBuilder sb = new StringBuilder();
-	    int cp;
-	    while ((cp = rd.read()) != -1) {
-	      sb.append((char) cp);
-	    }
-	    return sb.toString();
+	private class SessionLease implements LivySessionLease{
+		private final LivySession session;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		
+		private SessionLease(LivySession session){
+			this.session = session;
+		}
+		
+		public int getSessionId(){
+			return session.getId();
+		}
+		
+		public String getLivyUrl(){
+			return session.getEndpoint().getUrl();
+		}
+		
+		public String getKind(){
+			return session.getKind();
+		}
+		
+		public void addCachedDataset(String dataset, long sizeBytes){
+			List<String> evicted = session.addCachedDataset(dataset, sizeBytes, datasetCacheLimitBytes, datasetCacheMaxEntries);
+			getLogger().debug("********** addCachedDataset() Session " + session.getId() + " cached " + dataset + ", evicting " + evicted);
+			try {
+				for(String evictedDataset: evicted){
+					//A failed unpersist leaves the data to Spark's own eviction, the registry has forgotten it either way
+					runStatement(session, getUnpersistCode(session).replace("{dataset}", evictedDataset));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		public void release(){
+			if(released.compareAndSet(false, true)){
+				session.release();
+				session.getEndpoint().getOutstandingLeases().decrementAndGet();
+				getLogger().debug("********** release() Released session: " + session.getId());
+				signalSessionAvailable();
+			}
+		}
+		
+		public void releaseCancelled(){
+			if(released.compareAndSet(false, true)){
+				session.releaseBusy();
+				session.getEndpoint().getOutstandingLeases().decrementAndGet();
+				getLogger().debug("********** releaseCancelled() Released session " + session.getId() + " until it is idle again");
+			}
+		}
+		
+		public void invalidate(){
+			if(released.compareAndSet(false, true)){
+				getLogger().warn("Closing Livy session {} of {}, it cannot be trusted to run further statements",
+						new Object[]{session.getId(), session.getEndpoint().getUrl()});
+				session.getEndpoint().getSessions().remove(session.getId());
+				session.getEndpoint().getOutstandingLeases().decrementAndGet();
+				wakeManager();
+				try {
+					livyClient.delete(session.getEndpoint().getUrl()+"/sessions/"+session.getId());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
 	}
-}
+}
\ No newline at end of file
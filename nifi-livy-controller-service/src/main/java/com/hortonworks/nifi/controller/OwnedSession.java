@@ -0,0 +1,174 @@
+package com.hortonworks.nifi.controller;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * A session opened by a {@link LivySessionController}, as recorded in the controller's local state so
+ * that the next time the controller is enabled it adopts the session instead of opening a new one.
+ * The init code and init profiles that have run on the session are recorded as digests of their code,
+ * so that a session is only taken to have run them if the code has not changed since.
+ */
+public class OwnedSession {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String SESSIONS_PATH = "/sessions/";
+
+	private final String livyUrl;
+	private final int sessionId;
+	private final String kind;
+	private final String jars;
+	private final long created;
+	private final String initDigest;
+	private final Map<String, String> initProfileDigests;
+
+	/**
+	 * @param initDigest digest of the session init code, null if it has not run on the session
+	 * @param initProfileDigests digests of the code of the init profiles that have run on the session, by profile name
+	 */
+	public OwnedSession(String livyUrl, int sessionId, String kind, String jars, long created, String initDigest, Map<String, String> initProfileDigests) {
+		this.livyUrl = livyUrl;
+		this.sessionId = sessionId;
+		this.kind = kind;
+		this.jars = jars;
+		this.created = created;
+		this.initDigest = initDigest;
+		this.initProfileDigests = Collections.unmodifiableMap(initProfileDigests);
+	}
+
+	/**
+	 * @return the state key of the session, its URL
+	 */
+	public String getKey() {
+		return key(livyUrl, sessionId);
+	}
+
+	public static String key(String livyUrl, int sessionId) {
+		return livyUrl + SESSIONS_PATH + sessionId;
+	}
+
+	public String getLivyUrl() {
+		return livyUrl;
+	}
+
+	public int getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * @return the kind the session was opened with, null if it is not known
+	 */
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the jars the session was opened with, as configured on the controller, or null if there were none
+	 */
+	public String getJars() {
+		return jars;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public String getInitDigest() {
+		return initDigest;
+	}
+
+	public Map<String, String> getInitProfileDigests() {
+		return initProfileDigests;
+	}
+
+	public String toJson() throws JSONException {
+		JSONObject json = new JSONObject()
+				.put("created", created)
+				.put("profiles", new JSONObject(initProfileDigests));
+		if(kind != null){
+			json.put("kind", kind);
+		}
+		if(jars != null){
+			json.put("jars", jars);
+		}
+		if(initDigest != null){
+			json.put("init", initDigest);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Reads a session back from a state entry written from {@link #getKey()} and {@link #toJson()}.
+	 * @return the session, or null if the entry is not one of a session
+	 */
+	public static OwnedSession parse(String key, String value) throws JSONException {
+		int sessionsPath = key.lastIndexOf(SESSIONS_PATH);
+		int sessionId = parseSessionId(key);
+		if(sessionId < 0){
+			return null;
+		}
+		JSONObject json = new JSONObject(value);
+		Map<String, String> initProfileDigests = new HashMap<String, String>();
+		JSONObject profiles = json.optJSONObject("profiles");
+		if(profiles != null){
+			for(Iterator<?> names = profiles.keys(); names.hasNext();){
+				String name = (String) names.next();
+				initProfileDigests.put(name, profiles.getString(name));
+			}
+		}
+		return new OwnedSession(key.substring(0, sessionsPath), sessionId, json.optString("kind", null), json.optString("jars", null),
+				json.getLong("created"), json.optString("init", null), initProfileDigests);
+	}
+
+	/**
+	 * Creates the record of a session known by its key and kind alone, as one taken over from another node,
+	 * that no init code or init profile is known to have run on.
+	 * @param kind the kind the session was opened with, null if it is not known
+	 * @return the session, or null if the key is not one of a session
+	 */
+	public static OwnedSession claimed(String key, String kind, String jars) {
+		int sessionId = parseSessionId(key);
+		if(sessionId < 0){
+			return null;
+		}
+		return new OwnedSession(key.substring(0, key.lastIndexOf(SESSIONS_PATH)), sessionId, kind, jars, System.currentTimeMillis(),
+				null, Collections.<String, String>emptyMap());
+	}
+
+	private static int parseSessionId(String key) {
+		int sessionsPath = key.lastIndexOf(SESSIONS_PATH);
+		if(sessionsPath < 0){
+			return -1;
+		}
+		try {
+			return Integer.parseInt(key.substring(sessionsPath + SESSIONS_PATH.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the SHA-256 digest of the code as a hex string, the digest of empty code for null
+	 */
+	public static String digest(String code) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest((code == null ? "" : code).getBytes(UTF8));
+			char[] digest = new char[hash.length * 2];
+			for(int i=0; i<hash.length; i++){
+				digest[2*i] = HEX[(hash[i] >> 4) & 0xF];
+				digest[2*i+1] = HEX[hash[i] & 0xF];
+			}
+			return new String(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.hortonworks.nifi.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The sessions of one kind kept by a {@link LivySessionController}: how many to keep open, and the lease
+ * demand for the kind seen since the last manager pass, from which the manager decides to grow the pool.
+ */
+public class SessionKindPool {
+	/**
+	 * A comma separated list of kind[:min[:max]] entries, as in "spark:2:4, pyspark:1, sparkr"
+	 */
+	public static final Pattern SPEC_PATTERN = Pattern.compile("\\s*[a-zA-Z0-9]+(:\\d+){0,2}\\s*(,\\s*[a-zA-Z0-9]+(:\\d+){0,2}\\s*)*");
+
+	private final String kind;
+	private final int poolSize;
+	private final int maxPoolSize;
+	//Sessions of the kind whose creation request has been sent but that are not registered in the pool yet
+	private final AtomicInteger provisioningSessions = new AtomicInteger();
+	private final AtomicInteger waitingAcquirers = new AtomicInteger();
+	private final AtomicInteger leaseMisses = new AtomicInteger();
+	private final AtomicInteger leaseAcquisitions = new AtomicInteger();
+	private final AtomicLong leaseWaitNanos = new AtomicLong();
+
+	public SessionKindPool(String kind, int poolSize, int maxPoolSize) {
+		this.kind = kind;
+		this.poolSize = poolSize;
+		this.maxPoolSize = Math.max(poolSize, maxPoolSize);
+	}
+
+	/**
+	 * Reads the pools of a spec matching {@link #SPEC_PATTERN}. A kind without a minimum gets the default
+	 * pool size, and one without a maximum is kept at its minimum.
+	 * @return the pools by lower case kind, in the order of the spec
+	 */
+	public static Map<String, SessionKindPool> parse(String spec, int defaultPoolSize) {
+		Map<String, SessionKindPool> pools = new LinkedHashMap<String, SessionKindPool>();
+		for(String entry: spec.split(",")){
+			String[] fields = entry.trim().split(":");
+			String kind = fields[0].toLowerCase();
+			int poolSize = fields.length > 1 ? Integer.parseInt(fields[1]) : defaultPoolSize;
+			int maxPoolSize = fields.length > 2 ? Integer.parseInt(fields[2]) : poolSize;
+			pools.put(kind, new SessionKindPool(kind, poolSize, maxPoolSize));
+		}
+		return pools;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the number of sessions of the kind to keep open
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * @return the number of sessions of the kind the pool grows to when callers have to wait
+	 */
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public AtomicInteger getProvisioningSessions() {
+		return provisioningSessions;
+	}
+
+	public AtomicInteger getWaitingAcquirers() {
+		return waitingAcquirers;
+	}
+
+	public AtomicInteger getLeaseMisses() {
+		return leaseMisses;
+	}
+
+	public AtomicInteger getLeaseAcquisitions() {
+		return leaseAcquisitions;
+	}
+
+	public AtomicLong getLeaseWaitNanos() {
+		return leaseWaitNanos;
+	}
+
+	@Override
+	public String toString() {
+		return kind + ":" + poolSize + ":" + maxPoolSize;
+	}
+}
@@ -0,0 +1,302 @@
+package com.hortonworks.nifi.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.nifi.logging.ComponentLog;
+
+import com.hortonworks.nifi.controller.api.LivyClient;
+import com.hortonworks.nifi.controller.api.LivyStatement;
+import com.hortonworks.nifi.controller.api.LivyStatementTracker;
+import com.hortonworks.nifi.controller.api.StatementPollingStrategy;
+
+/**
+ * Polls the running statements of every session with one statement list request per session and
+ * poll interval, and completes the callers waiting on them from that response.
+ * <p>
+ * Livy pages statement lists by position among the statements a session retains, not by id, and
+ * prunes old finished statements (livy.rsc.retained-statements), so positions stop matching ids
+ * once a session has run more statements than it retains. The list is therefore read newest first
+ * and matched by id, and a tracked statement the list does not cover is read on its own.
+ */
+public class StatementTracker implements LivyStatementTracker {
+	//Completed statements nobody has read for this long are dropped, as when the processor waiting on them was stopped
+	private static final long ABANDONED_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	//A session whose statements cannot be listed this many times in a row fails its statements
+	private static final int MAX_CONSECUTIVE_ERRORS = 3;
+
+	private final LivyClient livyClient;
+	private final StatementPollingStrategy polling;
+	private final CompletionListener listener;
+	private final ComponentLog logger;
+	private final Map<String, SessionStatements> sessions = new HashMap<String, SessionStatements>();
+	private Thread poller;
+
+	/**
+	 * @param polling when each session is polled again, from how long its oldest running statement has been running
+	 * @param listener told of every statement seen to complete, may be null
+	 * @param logger reports errors that end a poll early
+	 */
+	public StatementTracker(LivyClient livyClient, StatementPollingStrategy polling, CompletionListener listener, ComponentLog logger) {
+		this.livyClient = livyClient;
+		this.polling = polling;
+		this.listener = listener;
+		this.logger = logger;
+	}
+
+	public void start(String name) {
+		poller = new Thread(new Runnable() {
+			public void run(){
+				while(!Thread.currentThread().isInterrupted()){
+					try {
+						poll();
+					} catch (RuntimeException e) {
+						//Keep polling, every caller waiting on a statement depends on this thread
+						logger.error("Failed to poll running Livy statements", e);
+					}
+					try {
+						Thread.sleep(polling.getInitialIntervalMillis());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		poller.setName(name);
+		poller.setDaemon(true);
+		poller.start();
+	}
+
+	public void stop() throws InterruptedException {
+		if(poller != null){
+			poller.interrupt();
+			poller.join();
+		}
+	}
+
+	@Override
+	public LivyStatement getStatus(String sessionUrl, int statementId) throws IOException {
+		TrackedStatement statement = track(sessionUrl, statementId);
+		if(statement.failure != null){
+			throw statement.failure;
+		}
+		return statement.status;
+	}
+
+	@Override
+	public LivyStatement await(String sessionUrl, int statementId, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		TrackedStatement statement = track(sessionUrl, statementId);
+		statement.done.await(timeout, unit);
+		statement.lastRead = System.currentTimeMillis();
+		if(statement.failure != null){
+			throw statement.failure;
+		}
+		return statement.status;
+	}
+
+	@Override
+	public long getPollInterval(long runningMillis) {
+		return polling.getInterval(runningMillis);
+	}
+
+	@Override
+	public void untrack(String sessionUrl, int statementId) {
+		synchronized(sessions){
+			SessionStatements sessionStatements = sessions.get(sessionUrl);
+			if(sessionStatements != null){
+				sessionStatements.statements.remove(statementId);
+				if(sessionStatements.statements.isEmpty()){
+					sessions.remove(sessionUrl);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of statements tracked, completed or not
+	 */
+	public int size() {
+		int size = 0;
+		synchronized(sessions){
+			for(SessionStatements sessionStatements: sessions.values()){
+				size += sessionStatements.statements.size();
+			}
+		}
+		return size;
+	}
+
+	private TrackedStatement track(String sessionUrl, int statementId) {
+		synchronized(sessions){
+			SessionStatements sessionStatements = sessions.get(sessionUrl);
+			if(sessionStatements == null){
+				sessionStatements = new SessionStatements();
+				sessions.put(sessionUrl, sessionStatements);
+			}
+			TrackedStatement statement = sessionStatements.statements.get(statementId);
+			if(statement == null){
+				statement = new TrackedStatement();
+				sessionStatements.statements.put(statementId, statement);
+				//A new statement is checked on soon even if the session's other statements have backed off
+				sessionStatements.nextPoll = Math.min(sessionStatements.nextPoll, statement.tracked + polling.getInitialIntervalMillis());
+			}
+			statement.lastRead = System.currentTimeMillis();
+			return statement;
+		}
+	}
+
+	/**
+	 * Refreshes the running statements of each session that is due with one request per session.
+	 */
+	void poll() {
+		Map<String, SessionStatements> snapshot;
+		synchronized(sessions){
+			snapshot = new HashMap<String, SessionStatements>(sessions);
+		}
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, SessionStatements> session: snapshot.entrySet()){
+			String sessionUrl = session.getKey();
+			SessionStatements sessionStatements = session.getValue();
+			int from = Integer.MAX_VALUE;
+			int to = -1;
+			for(Iterator<Map.Entry<Integer, TrackedStatement>> entries = sessionStatements.statements.entrySet().iterator(); entries.hasNext();){
+				Map.Entry<Integer, TrackedStatement> entry = entries.next();
+				if(!entry.getValue().isDone()){
+					from = Math.min(from, entry.getKey());
+					to = Math.max(to, entry.getKey());
+				}else if(now - entry.getValue().lastRead > ABANDONED_MILLIS){
+					entries.remove();
+				}
+			}
+			if(to < 0){
+				synchronized(sessions){
+					if(sessionStatements.statements.isEmpty() && sessions.get(sessionUrl) == sessionStatements){
+						sessions.remove(sessionUrl);
+					}
+				}
+				continue;
+			}
+			if(now < sessionStatements.nextPoll){
+				continue;
+			}
+			pollSession(sessionUrl, sessionStatements, to - from + 1);
+			scheduleNextPoll(sessionStatements);
+		}
+	}
+
+	private void pollSession(String sessionUrl, SessionStatements sessionStatements, int size) {
+		List<LivyStatement> statements;
+		try {
+			statements = livyClient.getStatements(sessionUrl + "/statements?order=desc&size=" + size);
+			sessionStatements.consecutiveErrors = 0;
+		} catch (IOException e) {
+			sessionStatements.consecutiveErrors++;
+			boolean gone = e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() == 404;
+			if(gone || sessionStatements.consecutiveErrors >= MAX_CONSECUTIVE_ERRORS){
+				for(TrackedStatement statement: new ArrayList<TrackedStatement>(sessionStatements.statements.values())){
+					statement.fail(e);
+				}
+			}
+			return;
+		}
+		Set<Integer> listed = new HashSet<Integer>();
+		for(LivyStatement status: statements){
+			listed.add(status.getId());
+			update(sessionUrl, sessionStatements.statements.get(status.getId()), status);
+		}
+		//Older than the newest statements of the session, or a Livy that ignores order=desc
+		for(Map.Entry<Integer, TrackedStatement> entry: sessionStatements.statements.entrySet()){
+			if(entry.getValue().isDone() || listed.contains(entry.getKey())){
+				continue;
+			}
+			try {
+				update(sessionUrl, entry.getValue(), livyClient.getStatement(sessionUrl + "/statements/" + entry.getKey()));
+			} catch (IOException e) {
+				if(e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() == 404){
+					entry.getValue().fail(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Backs the session's poll interval off with the time its oldest running statement has been tracked.
+	 * Statements that have not been seen yet are still checked on after the initial interval.
+	 */
+	private void scheduleNextPoll(SessionStatements sessionStatements) {
+		synchronized(sessions){
+			long now = System.currentTimeMillis();
+			long oldest = now;
+			long nextPoll = Long.MAX_VALUE;
+			for(TrackedStatement statement: sessionStatements.statements.values()){
+				if(!statement.isDone()){
+					oldest = Math.min(oldest, statement.tracked);
+					if(statement.status == null){
+						nextPoll = Math.min(nextPoll, statement.tracked + polling.getInitialIntervalMillis());
+					}
+				}
+			}
+			sessionStatements.nextPoll = Math.min(nextPoll, now + polling.getInterval(now - oldest));
+		}
+	}
+
+	private void update(String sessionUrl, TrackedStatement statement, LivyStatement status) {
+		if(statement != null && statement.update(status) && listener != null){
+			listener.statementCompleted(sessionUrl, System.currentTimeMillis() - statement.tracked, status.isSuccessful());
+		}
+	}
+
+	/**
+	 * Told of statements as they complete, with how long they ran since they were first tracked.
+	 */
+	public interface CompletionListener {
+		void statementCompleted(String sessionUrl, long millis, boolean successful);
+	}
+
+	private static class SessionStatements {
+		private final Map<Integer, TrackedStatement> statements = new ConcurrentHashMap<Integer, TrackedStatement>();
+		private int consecutiveErrors = 0;
+		//When the session is polled next, written under the sessions lock
+		private volatile long nextPoll = 0;
+	}
+
+	private static class TrackedStatement {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final long tracked = System.currentTimeMillis();
+		private volatile LivyStatement status;
+		private volatile IOException failure;
+		private volatile long lastRead;
+
+		/**
+		 * @return true if the statement has just completed
+		 */
+		private boolean update(LivyStatement status) {
+			this.status = status;
+			if(!status.isRunning() && !isDone()){
+				done.countDown();
+				return true;
+			}
+			return false;
+		}
+
+		private void fail(IOException failure) {
+			if(!isDone()){
+				this.failure = failure;
+				done.countDown();
+			}
+		}
+
+		private boolean isDone() {
+			return done.getCount() == 0;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package com.hortonworks.nifi.processors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.hortonworks.nifi.controller.api.LivyClient;
+import com.hortonworks.nifi.controller.api.LivySessionService;
+
+@Tags({"Spark","Livy","HTTP","Batch"})
+@CapabilityDescription("Submits a Spark application to Livy's /batches endpoint on a Livy server of the Livy controller service, with the "
+		+ "service's JARs, so that long running jobs do not hold a pooled interactive session. The FlowFile is returned to the incoming "
+		+ "queue with the batch id in the '" + ExecuteSparkBatch.BATCH_ID_ATTRIBUTE + "' attribute while the batch runs, and later "
+		+ "triggers check on it without holding a thread, until it is routed to SUCCESS or FAIL.")
+public class ExecuteSparkBatch extends AbstractProcessor {
+	private List<PropertyDescriptor> properties;
+	private Set<Relationship> relationships;
+	//When the next status check of each parked FlowFile is due, by FlowFile uuid
+	private final Map<String, Long> nextStatusChecks = new ConcurrentHashMap<String, Long>();
+
+	public static final String LIVY_URL_ATTRIBUTE = "livy.url";
+	public static final String BATCH_ID_ATTRIBUTE = "livy.batch.id";
+	public static final String BATCH_STATE_ATTRIBUTE = "livy.batch.state";
+	public static final String BATCH_APP_ID_ATTRIBUTE = "livy.batch.app.id";
+
+	private static final int MAX_STATUS_CHECKS_PER_TRIGGER = 100;
+	private static final int MAX_SUBMISSIONS_PER_TRIGGER = 100;
+
+    public static final PropertyDescriptor LIVY_CONTROLLER_SERVICE = new PropertyDescriptor.Builder()
+            .name("livy_controller_service")
+            .description("Livy Controller Service whose Livy servers and JARs batches are submitted with")
+            .required(true)
+            .identifiesControllerService(LivySessionService.class)
+            .build();
+
+    public static final PropertyDescriptor FILE = new PropertyDescriptor.Builder()
+            .name("file")
+            .description("Path of the JAR or Python file of the Spark application, as Livy sees it, for instance on HDFS")
+            .required(true)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CLASS_NAME = new PropertyDescriptor.Builder()
+            .name("class_name")
+            .description("Main class of a JAR application")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ARGS = new PropertyDescriptor.Builder()
+            .name("args")
+            .description("Comma separated command line arguments of the application")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_NAME = new PropertyDescriptor.Builder()
+            .name("batch_name")
+            .description("Name of the batch in Livy. Livy rejects a batch whose name is already in use.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor STATUS_CHECK_INTERVAL = new PropertyDescriptor.Builder()
+            .name("status_check_interval")
+            .description("How often the state of a running batch is checked")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+	        .name("SUCCESS")
+	        .description("FlowFiles whose batch completed successfully")
+	        .build();
+
+    public static final Relationship REL_FAIL = new Relationship.Builder()
+            .name("FAIL")
+            .description("FlowFiles whose batch could not be submitted, failed, was killed or is no longer known to Livy")
+            .build();
+
+	public void init(final ProcessorInitializationContext context){
+	    List<PropertyDescriptor> properties = new ArrayList<>();
+	    properties.add(LIVY_CONTROLLER_SERVICE);
+	    properties.add(FILE);
+	    properties.add(CLASS_NAME);
+	    properties.add(ARGS);
+	    properties.add(BATCH_NAME);
+	    properties.add(STATUS_CHECK_INTERVAL);
+	    this.properties = Collections.unmodifiableList(properties);
+
+	    Set<Relationship> relationships = new HashSet<Relationship>();
+	    relationships.add(REL_SUCCESS);
+	    relationships.add(REL_FAIL);
+	    this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships(){
+	    return relationships;
+	}
+
+	@Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+	@OnStopped
+	public void onStopped(){
+		//Parked FlowFiles keep their batch id, triggers after a restart check on them right away
+		nextStatusChecks.clear();
+	}
+
+	@Override
+	public void onTrigger(ProcessContext context, final ProcessSession session) throws ProcessException {
+		final LivySessionService livySessionService = context.getProperty(LIVY_CONTROLLER_SERVICE).asControllerService(LivySessionService.class);
+		final LivyClient livyClient = livySessionService.getLivyClient();
+		final long statusCheckInterval = context.getProperty(STATUS_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+		boolean progress = false;
+
+		//Check on parked batches whose next status check is due
+		final long now = System.currentTimeMillis();
+		ParkedFlowFileFilter parkedFilter = new ParkedFlowFileFilter(now);
+		List<FlowFile> parkedFlowFiles = session.get(parkedFilter);
+		if(parkedFilter.complete){
+			//A due check not seen in the whole queue belongs to a FlowFile that has left it, removed or expired
+			for(Map.Entry<String, Long> nextStatusCheck: nextStatusChecks.entrySet()){
+				if(nextStatusCheck.getValue() < now && !parkedFilter.seen.contains(nextStatusCheck.getKey())){
+					nextStatusChecks.remove(nextStatusCheck.getKey(), nextStatusCheck.getValue());
+				}
+			}
+		}
+		for(FlowFile parkedFlowFile: parkedFlowFiles){
+			progress |= checkBatch(livyClient, session, parkedFlowFile, statusCheckInterval);
+		}
+
+		//Submit new FlowFiles
+		List<FlowFile> newFlowFiles = session.get(new FlowFileFilter() {
+			private int accepted = 0;
+
+			@Override
+			public FlowFileFilterResult filter(FlowFile flowFile) {
+				if(flowFile.getAttribute(BATCH_ID_ATTRIBUTE) != null){
+					return FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+				accepted++;
+				return accepted < MAX_SUBMISSIONS_PER_TRIGGER ? FlowFileFilterResult.ACCEPT_AND_CONTINUE : FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+			}
+		});
+		for(int i=0; i<newFlowFiles.size(); i++){
+			FlowFile flowFile = newFlowFiles.get(i);
+			String livyUrl = livySessionService.getLivyUrl();
+			if(livyUrl == null){
+				getLogger().debug("********** ExecuteSparkBatch No Livy server available, returning FlowFiles to the queue");
+				session.transfer(newFlowFiles.subList(i, newFlowFiles.size()));
+				break;
+			}
+			progress = true;
+			submitBatch(context, livySessionService, session, flowFile, livyUrl, statusCheckInterval);
+		}
+
+		if(!progress){
+			context.yield();
+		}
+	}
+
+	private void submitBatch(ProcessContext context, LivySessionService livySessionService, ProcessSession session, FlowFile flowFile, String livyUrl,
+			long statusCheckInterval){
+		JSONObject batchInfo = null;
+		try {
+			JSONObject payload = new JSONObject().put("file", context.getProperty(FILE).evaluateAttributeExpressions(flowFile).getValue());
+			String className = context.getProperty(CLASS_NAME).evaluateAttributeExpressions(flowFile).getValue();
+			if(className != null){
+				payload.put("className", className);
+			}
+			String args = context.getProperty(ARGS).evaluateAttributeExpressions(flowFile).getValue();
+			if(args != null){
+				JSONArray argsArray = new JSONArray();
+				for(String arg: args.split(",")){
+					argsArray.put(arg.trim());
+				}
+				payload.put("args", argsArray);
+			}
+			String batchName = context.getProperty(BATCH_NAME).evaluateAttributeExpressions(flowFile).getValue();
+			if(batchName != null){
+				payload.put("name", batchName);
+			}
+			List<String> jars = livySessionService.getJars();
+			if(!jars.isEmpty()){
+				payload.put("jars", new JSONArray(jars));
+			}
+			getLogger().debug("********** submitBatch() Submitting batch to " + livyUrl + "/batches: " + payload);
+			batchInfo = livySessionService.getLivyClient().post(livyUrl + "/batches", payload.toString());
+			getLogger().debug("********** submitBatch() Batch Info: " + batchInfo);
+		} catch (IOException e) {
+			getLogger().error("Failed to submit a batch for {} to {}", new Object[]{flowFile, livyUrl}, e);
+		} catch (JSONException e) {
+			getLogger().error("Failed to build the batch request for {}", new Object[]{flowFile}, e);
+		}
+		if(batchInfo == null || !batchInfo.has("id")){
+			session.adjustCounter("Batches Failed", 1, false);
+			session.transfer(flowFile, REL_FAIL);
+			return;
+		}
+		Map<String,String> attributes = new HashMap<String,String>();
+		attributes.put(LIVY_URL_ATTRIBUTE, livyUrl);
+		attributes.put(BATCH_ID_ATTRIBUTE, batchInfo.optString("id"));
+		attributes.put(BATCH_STATE_ATTRIBUTE, batchInfo.optString("state"));
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		nextStatusChecks.put(flowFile.getAttribute(CoreAttributes.UUID.key()), System.currentTimeMillis() + statusCheckInterval);
+		session.adjustCounter("Batches Submitted", 1, false);
+		session.transfer(flowFile);
+	}
+
+	/**
+	 * Checks the state of the batch a parked FlowFile is waiting on once, without blocking.
+	 * @return true if the batch has finished and the FlowFile has been routed
+	 */
+	private boolean checkBatch(LivyClient livyClient, ProcessSession session, FlowFile flowFile, long statusCheckInterval){
+		final String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
+		final String batchUrl = flowFile.getAttribute(LIVY_URL_ATTRIBUTE) + "/batches/" + flowFile.getAttribute(BATCH_ID_ATTRIBUTE);
+		JSONObject batchInfo;
+		try {
+			batchInfo = livyClient.get(batchUrl);
+		} catch (HttpResponseException e) {
+			if(e.getStatusCode() != 404){
+				return park(session, flowFile, uuid, statusCheckInterval);
+			}
+			getLogger().error("Batch {} of {} is no longer known to Livy", new Object[]{batchUrl, flowFile});
+			nextStatusChecks.remove(uuid);
+			session.adjustCounter("Batches Failed", 1, false);
+			session.transfer(session.removeAttribute(flowFile, BATCH_ID_ATTRIBUTE), REL_FAIL);
+			return true;
+		} catch (IOException e) {
+			getLogger().warn("Failed to check batch {} of {}, will check again", new Object[]{batchUrl, flowFile}, e);
+			return park(session, flowFile, uuid, statusCheckInterval);
+		}
+		String state = batchInfo.optString("state");
+		getLogger().debug("********** checkBatch() Batch " + batchUrl + " is " + state);
+		if(!state.equals(flowFile.getAttribute(BATCH_STATE_ATTRIBUTE))){
+			flowFile = session.putAttribute(flowFile, BATCH_STATE_ATTRIBUTE, state);
+		}
+		boolean succeeded = "success".equals(state);
+		if(!succeeded && !"dead".equals(state) && !"killed".equals(state) && !"error".equals(state)){
+			return park(session, flowFile, uuid, statusCheckInterval);
+		}
+
+		nextStatusChecks.remove(uuid);
+		String appId = batchInfo.optString("appId", null);
+		if(appId != null && !"null".equals(appId)){
+			flowFile = session.putAttribute(flowFile, BATCH_APP_ID_ATTRIBUTE, appId);
+		}
+		flowFile = session.removeAttribute(flowFile, BATCH_ID_ATTRIBUTE);
+		session.adjustCounter(succeeded ? "Batches Succeeded" : "Batches Failed", 1, false);
+		session.transfer(flowFile, succeeded ? REL_SUCCESS : REL_FAIL);
+		return true;
+	}
+
+	private boolean park(ProcessSession session, FlowFile flowFile, String uuid, long statusCheckInterval){
+		nextStatusChecks.put(uuid, System.currentTimeMillis() + statusCheckInterval);
+		session.transfer(flowFile);
+		return false;
+	}
+
+	/**
+	 * Accepts the parked FlowFiles whose next status check is due, and remembers every parked FlowFile
+	 * it sees so that the checks of FlowFiles no longer queued can be dropped after a scan of the whole queue.
+	 */
+	private class ParkedFlowFileFilter implements FlowFileFilter {
+		private final long now;
+		private final Set<String> seen = new HashSet<String>();
+		private int accepted = 0;
+		private boolean complete = true;
+
+		private ParkedFlowFileFilter(long now){
+			this.now = now;
+		}
+
+		@Override
+		public FlowFileFilterResult filter(FlowFile flowFile) {
+			if(flowFile.getAttribute(BATCH_ID_ATTRIBUTE) == null){
+				return FlowFileFilterResult.REJECT_AND_CONTINUE;
+			}
+			String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
+			seen.add(uuid);
+			Long nextStatusCheck = nextStatusChecks.get(uuid);
+			if(nextStatusCheck != null && nextStatusCheck > now){
+				return FlowFileFilterResult.REJECT_AND_CONTINUE;
+			}
+			accepted++;
+			if(accepted < MAX_STATUS_CHECKS_PER_TRIGGER){
+				return FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+			}
+			complete = false;
+			return FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+		}
+	}
+}
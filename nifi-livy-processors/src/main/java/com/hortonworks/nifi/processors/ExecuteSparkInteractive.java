@@ -1,14 +1,11 @@
 package com.hortonworks.nifi.processors;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.Reader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -17,13 +14,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.nifi.annotation.behavior.SideEffectFree;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.FlowFileFilter;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
@@ -31,20 +35,65 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
 import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.nifi.util.FormatUtils;
+import org.codehaus.jackson.JsonParser;
 
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
-
+import com.hortonworks.nifi.controller.api.CodePayloadEntity;
+import com.hortonworks.nifi.controller.api.LivyClient;
+import com.hortonworks.nifi.controller.api.LivyMetrics;
+import com.hortonworks.nifi.controller.api.LivySessionLease;
+import com.hortonworks.nifi.controller.api.LivySessionRequest;
 import com.hortonworks.nifi.controller.api.LivySessionService;
+import com.hortonworks.nifi.controller.api.LivyStatement;
+import com.hortonworks.nifi.controller.api.LivyStatementTracker;
 
 @SideEffectFree
 @Tags({"Spark","Livy","HTTP"})
-@CapabilityDescription("Execute Spark Code over a Livy managed HTTP session to a live Spark context. Supports cached RDD sharing.")
+@CapabilityDescription("Execute Spark Code over a Livy managed HTTP session to a live Spark context. Supports cached RDD sharing: "
+		+ "a FlowFile whose code caches a dataset names it in the '" + ExecuteSparkInteractive.DATASET_PROVIDES_ATTRIBUTE + "' attribute, and FlowFiles "
+		+ "listing it in the '" + ExecuteSparkInteractive.DATASET_REQUIRES_ATTRIBUTE + "' attribute are run on the session that holds it.")
 public class ExecuteSparkInteractive extends AbstractProcessor {
 	private List<PropertyDescriptor> properties;
 	private Set<Relationship> relationships;
 	//private FlowFile flowFile;
+	private final Map<String, PendingStatement> pendingStatements = new ConcurrentHashMap<String, PendingStatement>();
+	
+	public static final String SYNCHRONOUS = "synchronous";
+	public static final String ASYNCHRONOUS = "asynchronous";
+	
+	public static final String LIVY_URL_ATTRIBUTE = "livy.url";
+	public static final String SESSION_ID_ATTRIBUTE = "livy.session.id";
+	public static final String STATEMENT_ID_ATTRIBUTE = "livy.statement.id";
+	//Comma separated names of cached datasets the code uses
+	public static final String DATASET_REQUIRES_ATTRIBUTE = "livy.dataset.requires";
+	//Name of the dataset the code caches, and its estimated size in bytes or as a data size such as '200 MB'
+	public static final String DATASET_PROVIDES_ATTRIBUTE = "livy.dataset.provides";
+	public static final String DATASET_SIZE_ATTRIBUTE = "livy.dataset.size";
+	//Set to true on FlowFiles whose code is read-only, so its output can be served from the result cache
+	public static final String CACHEABLE_ATTRIBUTE = "livy.cacheable";
+	public static final String RECORD_COUNT_ATTRIBUTE = "record.count";
+	//How long the code of a FlowFile may run, overriding the statement timeout property
+	public static final String STATEMENT_TIMEOUT_ATTRIBUTE = "livy.statement.timeout";
+	//Set to 'timeout' on FlowFiles routed to FAIL because their statement ran past its deadline
+	public static final String STATEMENT_STATE_ATTRIBUTE = "livy.statement.state";
+	public static final String TIMEOUT_STATE = "timeout";
+	
+	public static final String CODE_FROM_ATTRIBUTE = "attribute";
+	public static final String CODE_FROM_CONTENT = "content";
+	
+	private volatile long statusCheckInterval;
+	private volatile LivySessionRequest sessionRequest = LivySessionRequest.ANY;
+	private volatile StatementResultCache resultCache;
+	private volatile String resultCacheScope;
+	private volatile RecordSetWriterFactory recordWriterFactory;
+	private static final int MAX_STATUS_CHECKS_PER_TRIGGER = 100;
+	//How long a synchronous wait on the statement tracker lasts before the deadline and state are checked again
+	private static final long AWAIT_STATEMENT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
     public static final PropertyDescriptor LIVY_CONTROLLER_SERVICE = new PropertyDescriptor.Builder()
             .name("livy_controller_service")
@@ -52,6 +101,113 @@ public class ExecuteSparkInteractive extends AbstractProcessor {
             .required(true)
             .identifiesControllerService(LivySessionService.class)
             .build();
+    
+    public static final PropertyDescriptor SESSION_WAIT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("session_wait_timeout")
+            .description("How long to wait for an idle Spark session before the FlowFile is returned to the queue")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor.Builder()
+            .name("execution_mode")
+            .description("In synchronous mode the processor thread waits for each statement to complete. In asynchronous mode "
+            		+ "the statement is submitted, the FlowFile is returned to the incoming queue with the statement id in the "
+            		+ "'" + STATEMENT_ID_ATTRIBUTE + "' attribute and later triggers check on it, so no thread is held while Spark runs.")
+            .required(true)
+            .allowableValues(SYNCHRONOUS, ASYNCHRONOUS)
+            .defaultValue(SYNCHRONOUS)
+            .build();
+    
+    public static final PropertyDescriptor CODE_SOURCE = new PropertyDescriptor.Builder()
+            .name("code_source")
+            .description("Where the Spark code of a FlowFile comes from. '" + CODE_FROM_ATTRIBUTE + "' takes it from the 'code' attribute. '"
+            		+ CODE_FROM_CONTENT + "' streams the FlowFile content, read as UTF-8, into the request without buffering it, which suits "
+            		+ "large generated scripts; with a batch size above 1 the content of each batched FlowFile is read into memory to combine them. "
+            		+ "Either way the 'prefetchCode' attribute runs first when the 'prefetch' attribute is true.")
+            .required(true)
+            .allowableValues(CODE_FROM_ATTRIBUTE, CODE_FROM_CONTENT)
+            .defaultValue(CODE_FROM_ATTRIBUTE)
+            .build();
+    
+    public static final PropertyDescriptor SESSION_KIND = new PropertyDescriptor.Builder()
+            .name("session_kind")
+            .description("Kind of the session each FlowFile's code runs on, as spark, pyspark or sparkr, for instance ${livy.kind}. "
+            		+ "The Livy controller service has to keep a pool of that kind. Uses the default kind of the service if not set or empty.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor INIT_PROFILE = new PropertyDescriptor.Builder()
+            .name("init_profile")
+            .description("Name of an init profile defined on the Livy controller service. Statements only run on sessions the profile's "
+            		+ "init code has run on, and it runs once per session rather than once per FlowFile as the prefetch attributes do.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor STATEMENT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("statement_timeout")
+            .description("How long a statement may run before it is cancelled and its FlowFile routed to FAIL with the '"
+            		+ STATEMENT_STATE_ATTRIBUTE + "' attribute set to '" + TIMEOUT_STATE + "'. The '" + STATEMENT_TIMEOUT_ATTRIBUTE
+            		+ "' attribute overrides it per FlowFile. The session goes back to the pool once Livy reports it idle, or is closed "
+            		+ "and replaced if the statement cannot be cancelled. Statements run without a deadline if neither is set.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor RESULT_CACHE_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("result_cache_max_size")
+            .description("Maximum total size of statement output kept in memory for FlowFiles whose '" + CACHEABLE_ATTRIBUTE + "' attribute is true. "
+            		+ "Such a FlowFile whose code, prefetch code included, ran before on this processor within the result cache TTL gets the "
+            		+ "cached output without contacting Livy, so only mark code that reads data. The cache is emptied when the processor is "
+            		+ "started. 0 B disables the cache.")
+            .required(true)
+            .defaultValue("10 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor RESULT_CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("result_cache_ttl")
+            .description("How long cached statement output is served before the code has to run again")
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("record_writer")
+            .description("If set, tabular statement output is written as records with this writer instead of as the output data JSON: "
+            		+ "%table output, the output of the sql kind, a JSON array of objects, or a table printed by DataFrame.show() as text. "
+            		+ "Rows are converted one at a time as the output is read from Livy. FlowFiles whose output holds no table are routed to FAIL.")
+            .required(false)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+    
+    public static final PropertyDescriptor STATUS_CHECK_INTERVAL = new PropertyDescriptor.Builder()
+            .name("status_check_interval")
+            .description("How long a parked statement waits before its first status check in asynchronous mode. Later checks "
+            		+ "back off with the controller service's statement polls, which read all running statements of a session at once, "
+            		+ "so checks make no requests of their own.")
+            .required(true)
+            .defaultValue("100 ms")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("batch_size")
+            .description("Maximum number of FlowFiles whose code is combined into a single Livy statement in synchronous mode. "
+            		+ "Each batched FlowFile receives what its code prints, and a FlowFile whose code fails is routed to FAIL on its own. "
+            		+ "Batched code may run in a scope of its own, as Scala code does, so code that defines names later statements "
+            		+ "use must not be batched. FlowFiles with the '"
+            		+ DATASET_PROVIDES_ATTRIBUTE + "' attribute are always submitted as statements of their own. "
+            		+ "A value of 1 submits every FlowFile as a statement of its own.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
 	
 	public static final Relationship REL_SUCCESS = new Relationship.Builder()
 	        .name("SUCCESS")
@@ -71,6 +227,17 @@ public class ExecuteSparkInteractive extends AbstractProcessor {
 	public void init(final ProcessorInitializationContext context){
 	    List<PropertyDescriptor> properties = new ArrayList<>();
 	    properties.add(LIVY_CONTROLLER_SERVICE);
+	    properties.add(SESSION_WAIT_TIMEOUT);
+	    properties.add(EXECUTION_MODE);
+	    properties.add(CODE_SOURCE);
+	    properties.add(SESSION_KIND);
+	    properties.add(INIT_PROFILE);
+	    properties.add(BATCH_SIZE);
+	    properties.add(RECORD_WRITER);
+	    properties.add(STATEMENT_TIMEOUT);
+	    properties.add(RESULT_CACHE_MAX_SIZE);
+	    properties.add(RESULT_CACHE_TTL);
+	    properties.add(STATUS_CHECK_INTERVAL);
 	    this.properties = Collections.unmodifiableList(properties);
 		
 	    Set<Relationship> relationships = new HashSet<Relationship>();
@@ -94,153 +261,816 @@ public class ExecuteSparkInteractive extends AbstractProcessor {
 	public void onTrigger(ProcessContext context, final ProcessSession session) throws ProcessException {
 		//ProvenanceReporter provRep = session.getProvenanceReporter();
 		
-		Map<String, String> livyController = (Map<String,String>) context.getProperty(LIVY_CONTROLLER_SERVICE).asControllerService(LivySessionService.class).getSession();
+		final LivySessionService livySessionService = context.getProperty(LIVY_CONTROLLER_SERVICE).asControllerService(LivySessionService.class);
+		if(ASYNCHRONOUS.equals(context.getProperty(EXECUTION_MODE).getValue())){
+			onTriggerAsynchronous(context, session, livySessionService);
+			return;
+		}
+		if(context.getProperty(BATCH_SIZE).asInteger() > 1){
+			onTriggerBatch(context, session, livySessionService);
+			return;
+		}
 		
         FlowFile flowFile = session.get();
         if (flowFile == null) {
         	//session.remove(flowFile);
         	return;
         }else{
-        	final byte[] buffer = new byte[(int) flowFile.getSize()];
-        	session.read(flowFile, new InputStreamCallback() {
-        		@Override
-        		public void process(final InputStream in) throws IOException {
-        			StreamUtils.fillBuffer(in, buffer);
-        		}
-        	});
-        
-        	String sessionId = livyController.get("sessionId").toString();
-        	String livyUrl = livyController.get("livyUrl").toString();
-        	String code = flowFile.getAttribute("code");
-        	if(flowFile.getAttribute("prefetch").equalsIgnoreCase("true") && flowFile.getAttribute("prefetchCode")!=null){
-        		String prefetchCode = flowFile.getAttribute("prefetchCode");
-        		getLogger().debug("********** ExecuteSparkInteractive Adding Prefetch Code to Function: " + prefetchCode);
-    			code = prefetchCode + code;
-        		//String preFetchPayload = "{\"code\":\""+prefetchCode+"\"}";
-        		//JSONObject preFetchResult = submitAndHandleJob(livyUrl,sessionId,preFetchPayload);
-                //getLogger().debug("********** ExecuteSparkInteractive Result of Prefetch: " + preFetchResult);
+        	final String cacheKey = getResultCacheKey(context, session, flowFile, isCodeFromContent(context));
+        	if(transferCachedResult(session, flowFile, cacheKey)){
+        		session.commit();
+        		return;
         	}
-        	//replace all carriage returns and all new lines with a \n to make code string REST compatible
-        	code = code.replaceAll("(\\r|\\n|\\r\\n)+", "\\\\n");
-        	String payload = "{\"code\":\""+code+"\"}";
-        	JSONObject result = submitAndHandleJob(livyUrl,sessionId,payload);
-        	getLogger().debug("********** ExecuteSparkInteractive Result of Job Submit: " + result);
-        	if(result==null){
-        		session.transfer(flowFile, REL_FAIL);
-        	}else{
-        		flowFile = session.write(flowFile, new OutputStreamCallback() {
-                	public void process(OutputStream out) throws IOException {
-                		out.write(result.toString().getBytes());
-                	}
-        		});
-        		//flowFile = session.putAllAttributes(flowFile, (Map<String, String>) new ArrayList());\
-        		session.transfer(flowFile, REL_SUCCESS);
+        	final long sessionWaitTimeout = context.getProperty(SESSION_WAIT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        	LivySessionLease lease = leaseSession(context, livySessionService, Collections.singletonList(flowFile), sessionWaitTimeout);
+        	if(lease == null){
+        		getLogger().debug("********** ExecuteSparkInteractive No idle Spark session available, returning FlowFile to the queue");
+        		session.adjustCounter("Session Lease Timeouts", 1, false);
+        		session.transfer(flowFile);
+        		context.yield();
+        		return;
+        	}
+        	try {
+        		String sessionId = String.valueOf(lease.getSessionId());
+        		String livyUrl = lease.getLivyUrl();
+        		LivyClient livyClient = livySessionService.getLivyClient();
+        		long deadline = getDeadline(context, flowFile);
+        		SubmittedStatement submitted = submitFlowFile(livyClient, livyUrl, sessionId, session, flowFile, isCodeFromContent(context));
+        		LivyStatement result = submitted == null ? null : awaitStatement(livySessionService.getStatementTracker(), livySessionService.getMetrics(), livyUrl, sessionId, submitted, deadline);
+        		getLogger().debug("********** ExecuteSparkInteractive Result of Job Submit: " + result);
+        		if(result==null){
+        			session.transfer(flowFile, REL_FAIL);
+        		}else if(result.isRunning()){
+        			cancelStatement(livyClient, livyUrl+"/sessions/"+sessionId+"/statements/"+result.getId(), lease, deadline);
+        			transferUnfinished(session, flowFile, deadline);
+        		}else{
+        			//flowFile = session.putAllAttributes(flowFile, (Map<String, String>) new ArrayList());\
+        			addCachedDataset(lease, flowFile, result);
+        			transferResult(livyClient, session, flowFile, livyUrl+"/sessions/"+sessionId+"/statements/"+result.getId(), result, cacheKey);
+        		}
+        	} finally {
+        		lease.release();
         	}
         }
         session.commit(); 
 	}
 	
-	private JSONObject submitAndHandleJob(String livyUrl, String sessionId, String payload){
-		String statementUrl = livyUrl+"/sessions/"+sessionId+"/statements";
-		JSONObject output = null;
-		Map<String,String> headers = new HashMap<String,String>();
-		headers.put("Content-Type", "application/json");
-		headers.put("X-Requested-By", "user");
-		
-		getLogger().debug("********** submitAndHandleJob() Submitting Job to Spark via: " + statementUrl);
-		getLogger().debug("********** submitAndHandleJob() Job payload: " + payload);
+	@OnScheduled
+	public void onScheduled(final ProcessContext context){
+		statusCheckInterval = context.getProperty(STATUS_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+		sessionRequest = new LivySessionRequest.Builder()
+				.initProfile(context.getProperty(INIT_PROFILE).getValue())
+				.build();
+		//The FlowFile picks the session kind among those of the controller service, and the init profile what the sessions have run before the code
+		long resultCacheMaxBytes = context.getProperty(RESULT_CACHE_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+		resultCache = resultCacheMaxBytes > 0
+				? new StatementResultCache(resultCacheMaxBytes, context.getProperty(RESULT_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS)) : null;
+		resultCacheScope = context.getProperty(LIVY_CONTROLLER_SERVICE).getValue() + "/" + context.getProperty(INIT_PROFILE).getValue();
+		recordWriterFactory = context.getProperty(RECORD_WRITER).isSet()
+				? context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class) : null;
+	}
+	
+	/**
+	 * Leases a session of the kind of the first FlowFile for the given FlowFiles, preferring the session
+	 * holding the datasets their code requires.
+	 */
+	private LivySessionLease leaseSession(ProcessContext context, LivySessionService livySessionService, List<FlowFile> flowFiles, long timeoutMillis){
+		LivySessionRequest request = sessionRequest;
+		LivySessionRequest.Builder flowFileRequest = null;
+		String kind = getSessionKind(context, flowFiles.get(0));
+		if(kind != null){
+			flowFileRequest = new LivySessionRequest.Builder(sessionRequest).kind(kind);
+		}
+		for(FlowFile flowFile: flowFiles){
+			String requiredDatasets = flowFile.getAttribute(DATASET_REQUIRES_ATTRIBUTE);
+			if(requiredDatasets == null){
+				continue;
+			}
+			for(String dataset: requiredDatasets.split(",")){
+				if(!dataset.trim().isEmpty()){
+					if(flowFileRequest == null){
+						flowFileRequest = new LivySessionRequest.Builder(sessionRequest);
+					}
+					flowFileRequest.requiredDataset(dataset.trim());
+				}
+			}
+		}
+		if(flowFileRequest != null){
+			request = flowFileRequest.build();
+		}
 		try {
-			JSONObject jobInfo = readJSONObjectFromUrlPOST(statementUrl, headers, payload);
-			getLogger().debug("********** submitAndHandleJob() Job Info: " + jobInfo);
-			String statementId = String.valueOf(jobInfo.getInt("id"));
-			statementUrl = statementUrl+"/"+statementId;
-			jobInfo = readJSONObjectFromUrl(statementUrl, headers);
-			String jobState = jobInfo.getString("state"); 
+			return livySessionService.acquireSession(request, timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IllegalArgumentException e) {
+			getLogger().error("Cannot lease a Livy session: {}", new Object[]{e.getMessage()});
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the session kind the FlowFile's code runs on, or null for the default kind of the controller service
+	 */
+	private String getSessionKind(ProcessContext context, FlowFile flowFile){
+		if(!context.getProperty(SESSION_KIND).isSet()){
+			return null;
+		}
+		String kind = context.getProperty(SESSION_KIND).evaluateAttributeExpressions(flowFile).getValue();
+		return kind == null || kind.trim().isEmpty() ? null : kind.trim().toLowerCase();
+	}
+	
+	@OnStopped
+	public void onStopped(){
+		//Statements that are still running keep their FlowFiles parked, later triggers check on them without holding a lease.
+		//Their sessions stay busy until Livy reports them idle, so the next caller does not queue behind the statement.
+		for(PendingStatement pendingStatement: pendingStatements.values()){
+			if(pendingStatement.lease != null){
+				pendingStatement.lease.releaseCancelled();
+			}
+		}
+		pendingStatements.clear();
+	}
+	
+	private void onTriggerAsynchronous(final ProcessContext context, final ProcessSession session, final LivySessionService livySessionService){
+		boolean progress = false;
+		
+		//Check on parked statements whose next status check is due
+		final long now = System.currentTimeMillis();
+		List<FlowFile> parkedFlowFiles = session.get(new FlowFileFilter() {
+			private int accepted = 0;
 			
-			getLogger().debug("********** submitAndHandleJob() New Job Info: "+jobInfo);
-			Thread.sleep(1000);
-			if(jobState.equalsIgnoreCase("available")){
-				getLogger().debug("********** submitAndHandleJob() Job status is: "+jobState+". returning output...");
-				output = jobInfo.getJSONObject("output").getJSONObject("data");
-			}else if(jobState.equalsIgnoreCase("running") || jobState.equalsIgnoreCase("waiting")){
-				while(!jobState.equalsIgnoreCase("available")){
-					getLogger().debug("********** submitAndHandleJob() Job status is: "+jobState+". Wating for job to complete...");
-					Thread.sleep(1000);
-					jobInfo = readJSONObjectFromUrl(statementUrl, headers);
-					jobState = jobInfo.getString("state"); 
-				}
-				output = jobInfo.getJSONObject("output").getJSONObject("data");
-			}else if(jobState.equalsIgnoreCase("error") || jobState.equalsIgnoreCase("cancelled") || jobState.equalsIgnoreCase("cancelling")){
-				getLogger().debug("********** Job status is: "+jobState+". Job did not complete due to error or has been cancelled. Check SparkUI for details.");
+			@Override
+			public FlowFileFilterResult filter(FlowFile flowFile) {
+				if(flowFile.getAttribute(STATEMENT_ID_ATTRIBUTE) == null){
+					return FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+				PendingStatement pendingStatement = pendingStatements.get(flowFile.getAttribute(CoreAttributes.UUID.key()));
+				if(pendingStatement != null && pendingStatement.nextStatusCheck > now){
+					return FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+				accepted++;
+				return accepted < MAX_STATUS_CHECKS_PER_TRIGGER ? FlowFileFilterResult.ACCEPT_AND_CONTINUE : FlowFileFilterResult.ACCEPT_AND_TERMINATE;
 			}
+		});
+		for(FlowFile parkedFlowFile: parkedFlowFiles){
+			progress |= checkParkedStatement(context, livySessionService, session, parkedFlowFile);
+		}
+		
+		//Submit new FlowFiles for as long as there are idle sessions to run them on
+		while(true){
+			List<FlowFile> newFlowFiles = session.get(new FlowFileFilter() {
+				@Override
+				public FlowFileFilterResult filter(FlowFile flowFile) {
+					return flowFile.getAttribute(STATEMENT_ID_ATTRIBUTE) == null ? FlowFileFilterResult.ACCEPT_AND_TERMINATE : FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+			});
+			if(newFlowFiles.isEmpty()){
+				break;
+			}
+			FlowFile flowFile = newFlowFiles.get(0);
+			String cacheKey = getResultCacheKey(context, session, flowFile, isCodeFromContent(context));
+			if(transferCachedResult(session, flowFile, cacheKey)){
+				progress = true;
+				continue;
+			}
+			LivySessionLease lease = leaseSession(context, livySessionService, newFlowFiles, 0);
+			if(lease == null){
+				session.transfer(flowFile);
+				break;
+			}
+			progress = true;
+			
+			String livyUrl = lease.getLivyUrl();
+			String sessionId = String.valueOf(lease.getSessionId());
+			SubmittedStatement submitted = submitFlowFile(livySessionService.getLivyClient(), livyUrl, sessionId, session, flowFile, isCodeFromContent(context));
+			if(submitted == null){
+				lease.release();
+				session.transfer(flowFile, REL_FAIL);
+				continue;
+			}
+			String statementId = String.valueOf(submitted.statement.getId());
+			Map<String,String> attributes = new HashMap<String,String>();
+			attributes.put(LIVY_URL_ATTRIBUTE, livyUrl);
+			attributes.put(SESSION_ID_ATTRIBUTE, sessionId);
+			attributes.put(STATEMENT_ID_ATTRIBUTE, statementId);
+			flowFile = session.putAllAttributes(flowFile, attributes);
+			pendingStatements.put(flowFile.getAttribute(CoreAttributes.UUID.key()),
+					new PendingStatement(lease, submitted.submitted, System.currentTimeMillis() + statusCheckInterval, cacheKey, getDeadline(context, flowFile)));
+			getLogger().debug("********** onTriggerAsynchronous() Parking FlowFile " + flowFile + " on statement " + statementId + " of session " + sessionId);
+			session.transfer(flowFile);
+		}
+		
+		if(!progress){
+			context.yield();
+		}
+	}
+	
+	/**
+	 * Checks the status of the statement a parked FlowFile is waiting on once, without blocking. The
+	 * status is the last one read by the controller service's statement tracker, no request is made.
+	 * @return true if the statement has finished and the FlowFile has been routed
+	 */
+	private boolean checkParkedStatement(final ProcessContext context, final LivySessionService livySessionService, final ProcessSession session, FlowFile flowFile){
+		final LivyClient livyClient = livySessionService.getLivyClient();
+		final LivyMetrics metrics = livySessionService.getMetrics();
+		final LivyStatementTracker statementTracker = livySessionService.getStatementTracker();
+		final String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
+		final String sessionUrl = flowFile.getAttribute(LIVY_URL_ATTRIBUTE) + "/sessions/" + flowFile.getAttribute(SESSION_ID_ATTRIBUTE);
+		final int statementId = Integer.parseInt(flowFile.getAttribute(STATEMENT_ID_ATTRIBUTE));
+		final String statementUrl = sessionUrl + "/statements/" + statementId;
+		
+		LivyStatement statement = null;
+		boolean failed = false;
+		try {
+			statement = statementTracker.getStatus(sessionUrl, statementId);
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (JSONException e) {
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			failed = true;
 		}
-		return output;
+		getLogger().debug("********** checkParkedStatement() Statement " + statementUrl + " is " + statement);
+		
+		//No status yet means the tracker has not polled the statement since it started tracking it
+		if(!failed && (statement == null || statement.isRunning())){
+			PendingStatement pendingStatement = pendingStatements.get(uuid);
+			if(pendingStatement == null){
+				//Parked before the processor was last stopped, keep checking on it without a lease
+				pendingStatement = new PendingStatement(null, System.currentTimeMillis(), 0, null, getDeadline(context, flowFile));
+				pendingStatements.put(uuid, pendingStatement);
+			}
+			if(pendingStatement.deadline > 0 && System.currentTimeMillis() >= pendingStatement.deadline){
+				pendingStatements.remove(uuid);
+				statementTracker.untrack(sessionUrl, statementId);
+				metrics.recordStatement(pendingStatement.getElapsedMillis(), false);
+				cancelStatement(livyClient, statementUrl, pendingStatement.lease, pendingStatement.deadline);
+				transferTimedOut(session, session.removeAttribute(flowFile, STATEMENT_ID_ATTRIBUTE));
+				return true;
+			}
+			pendingStatement.nextStatusCheck = System.currentTimeMillis()
+					+ Math.max(statusCheckInterval, statementTracker.getPollInterval(pendingStatement.getElapsedMillis()));
+			session.transfer(flowFile);
+			return false;
+		}
+		
+		statementTracker.untrack(sessionUrl, statementId);
+		PendingStatement pendingStatement = pendingStatements.remove(uuid);
+		String cacheKey = null;
+		if(pendingStatement != null){
+			cacheKey = pendingStatement.cacheKey;
+			metrics.recordStatement(pendingStatement.getElapsedMillis(), statement != null && statement.isSuccessful());
+			if(pendingStatement.lease != null){
+				addCachedDataset(pendingStatement.lease, flowFile, statement);
+				pendingStatement.lease.release();
+			}
+		}
+		flowFile = session.removeAttribute(flowFile, STATEMENT_ID_ATTRIBUTE);
+		transferResult(livyClient, session, flowFile, statementUrl, statement, cacheKey);
+		return true;
 	}
 	
-	private JSONObject readJSONObjectFromUrlPOST(String urlString, Map<String,String> headers, String payload) throws IOException, JSONException {
-		JSONObject jsonObject = null;
+	/**
+	 * Streams the output data of a finished statement straight from the Livy response into the
+	 * FlowFile content, as records if a record writer is set, and routes the FlowFile to success,
+	 * or routes it to failure if the statement did not complete successfully.
+	 * @param cacheKey key to cache the output under, or null
+	 */
+	private void transferResult(final LivyClient livyClient, final ProcessSession session, FlowFile flowFile, final String statementUrl, LivyStatement statement,
+			final String cacheKey){
+		if(statement == null || !statement.isSuccessful()){
+			session.adjustCounter("Statements Failed", 1, false);
+			session.transfer(flowFile, REL_FAIL);
+			return;
+		}
+		final RecordSetWriterFactory writerFactory = recordWriterFactory;
+		final Map<String,String> variables = flowFile.getAttributes();
+		final Map<String,String> recordAttributes = new HashMap<String,String>();
 		try {
-            URL url = new URL (urlString);
-            
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            
-            for (Map.Entry<String, String> entry : headers.entrySet()){
-            	connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            
-            OutputStream os = connection.getOutputStream();
-    		os.write(payload.getBytes());
-    		os.flush();
-            
-            if (connection.getResponseCode() != 200 && connection.getResponseCode() != 201){
-    			throw new RuntimeException("Failed : HTTP error code : " + connection.getResponseCode() + " : " + connection.getResponseMessage());
-    		}
-            
-            InputStream content = (InputStream)connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(content, Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	jsonObject = new JSONObject(jsonText);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return jsonObject;
-    }
+			FlowFile resultFlowFile = session.write(flowFile, new OutputStreamCallback() {
+				public void process(OutputStream out) throws IOException {
+					final StatementResultCache.Capture capture = cacheKey == null ? null : resultCache.capture(cacheKey, out);
+					final OutputStream destination = capture == null ? out : capture;
+					boolean hasOutput;
+					if(writerFactory == null){
+						hasOutput = livyClient.copyStatementOutput(statementUrl, destination);
+					}else{
+						hasOutput = livyClient.readStatementOutput(statementUrl, new LivyStatement.OutputDataHandler() {
+							@Override
+							public void handle(JsonParser parser) throws IOException {
+								StatementOutputRecords records = new StatementOutputRecords(writerFactory, getLogger(), variables, destination);
+								putRecordAttributes(recordAttributes, records, records.write(parser));
+							}
+						});
+					}
+					if(!hasOutput){
+						throw new IOException("Statement " + statementUrl + " has no output data");
+					}
+					if(capture != null){
+						capture.commit(recordAttributes);
+					}
+				}
+			});
+			resultFlowFile = session.putAllAttributes(resultFlowFile, recordAttributes);
+			session.adjustCounter("Statements Succeeded", 1, false);
+			session.transfer(resultFlowFile, REL_SUCCESS);
+		} catch (ProcessException e) {
+			getLogger().error("Failed to write the output of statement {} to {}", new Object[]{statementUrl, flowFile}, e);
+			session.transfer(flowFile, REL_FAIL);
+		}
+	}
 	
-	private JSONObject readJSONObjectFromUrl(String urlString, Map<String,String> headers) throws IOException, JSONException {
-		JSONObject json = null;
+	private void onTriggerBatch(final ProcessContext context, final ProcessSession session, final LivySessionService livySessionService){
+		List<FlowFile> flowFiles = new ArrayList<FlowFile>();
+		final List<String> cacheKeys = new ArrayList<String>();
+		final boolean codeFromContent = isCodeFromContent(context);
+		final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+		//Code that caches a dataset runs as a statement of its own, a batch item would leave the dataset in the scope of the item
+		List<FlowFile> polledFlowFiles = session.get(new FlowFileFilter() {
+			private int accepted = 0;
+			
+			@Override
+			public FlowFileFilterResult filter(FlowFile flowFile) {
+				if(flowFile.getAttribute(DATASET_PROVIDES_ATTRIBUTE) != null){
+					return accepted == 0 ? FlowFileFilterResult.ACCEPT_AND_TERMINATE : FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+				accepted++;
+				return accepted < batchSize ? FlowFileFilterResult.ACCEPT_AND_CONTINUE : FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+			}
+		});
+		boolean firstFlowFile = true;
+		String batchKind = null;
+		for(FlowFile flowFile: polledFlowFiles){
+			//A batch runs on one session, FlowFiles of another kind than the first wait for a later batch
+			String kind = getSessionKind(context, flowFile);
+			if(firstFlowFile){
+				batchKind = kind;
+				firstFlowFile = false;
+			}else if(kind == null ? batchKind != null : !kind.equals(batchKind)){
+				session.transfer(flowFile);
+				continue;
+			}
+			String cacheKey = getResultCacheKey(context, session, flowFile, codeFromContent);
+			if(!transferCachedResult(session, flowFile, cacheKey)){
+				flowFiles.add(flowFile);
+				cacheKeys.add(cacheKey);
+			}
+		}
+		if(flowFiles.isEmpty()){
+			return;
+		}
+		final long sessionWaitTimeout = context.getProperty(SESSION_WAIT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		LivySessionLease lease = leaseSession(context, livySessionService, flowFiles, sessionWaitTimeout);
+		if(lease == null){
+			getLogger().debug("********** onTriggerBatch() No idle Spark session available, returning FlowFiles to the queue");
+			session.adjustCounter("Session Lease Timeouts", 1, false);
+			session.transfer(flowFiles);
+			context.yield();
+			return;
+		}
 		try {
-            URL url = new URL (urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            for (Map.Entry<String, String> entry : headers.entrySet()){
-            	connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            connection.setRequestMethod("GET");
-            connection.setDoOutput(true);
-            //connection.setRequestProperty  ("Authorization", "Basic " + encoding);
-            InputStream content = (InputStream)connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(content, Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	json = new JSONObject(jsonText);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return json;
-    }
+			final LivyClient livyClient = livySessionService.getLivyClient();
+			final String livyUrl = lease.getLivyUrl();
+			final String sessionId = String.valueOf(lease.getSessionId());
+			List<StatementBatch.ItemResult> itemResults = null;
+			final boolean providesDataset = flowFiles.get(0).getAttribute(DATASET_PROVIDES_ATTRIBUTE) != null;
+			boolean runItemsIndividually = providesDataset;
+			if(!providesDataset){
+				List<String> codes = new ArrayList<String>(flowFiles.size());
+				for(FlowFile flowFile: flowFiles){
+					codes.add(codeFromContent ? readCode(session, flowFile) : getCode(flowFile));
+				}
+				StatementBatch batch = new StatementBatch(lease.getKind(), codes);
+				
+				//The batch runs until the most lenient deadline of its items
+				long batchDeadline = 0;
+				for(FlowFile flowFile: flowFiles){
+					long deadline = getDeadline(context, flowFile);
+					if(deadline == 0){
+						batchDeadline = 0;
+						break;
+					}
+					batchDeadline = Math.max(batchDeadline, deadline);
+				}
+				
+				LivyStatement result = submitAndHandleJob(livyClient, livySessionService.getStatementTracker(), livySessionService.getMetrics(), livyUrl, sessionId, new CodePayloadEntity(batch.getCode()), batchDeadline);
+				getLogger().debug("********** onTriggerBatch() Result of batch of " + batch.size() + ": " + result);
+				if(result != null && result.isRunning()){
+					cancelStatement(livyClient, livyUrl+"/sessions/"+sessionId+"/statements/"+result.getId(), lease, batchDeadline);
+					for(FlowFile flowFile: flowFiles){
+						transferUnfinished(session, flowFile, batchDeadline);
+					}
+					return;
+				}
+				if(result != null && result.isSuccessful()){
+					ByteArrayOutputStream outputData = new ByteArrayOutputStream();
+					if(livyClient.copyStatementOutput(livyUrl+"/sessions/"+sessionId+"/statements/"+result.getId(), outputData)){
+						itemResults = batch.split(outputData.toByteArray());
+					}
+				}else if(result != null && result.isAvailable() && !batch.isStarted(result.getErrorValue())){
+					//The batch failed before its first item began, for instance because one item does not compile
+					getLogger().debug("********** onTriggerBatch() Batch failed before running any item: " + result.getErrorValue());
+					runItemsIndividually = true;
+				}
+				if(itemResults == null && !runItemsIndividually){
+					//Some items may have run, running them again could repeat what they did
+					getLogger().warn("Batch of {} FlowFiles on session {} did not complete: {}, routing its FlowFiles to failure",
+							new Object[]{flowFiles.size(), sessionId, result});
+					session.adjustCounter("Statements Failed", flowFiles.size(), false);
+					session.transfer(flowFiles, REL_FAIL);
+					return;
+				}
+			}
+			
+			if(runItemsIndividually){
+				//A dataset provider, or a batch that failed before running any item: run the items one by one so only the bad ones fail
+				getLogger().debug("********** onTriggerBatch() Submitting " + flowFiles.size() + " items individually");
+				for(int i=0; i<flowFiles.size(); i++){
+					FlowFile flowFile = flowFiles.get(i);
+					long deadline = getDeadline(context, flowFile);
+					SubmittedStatement submitted = submitFlowFile(livyClient, livyUrl, sessionId, session, flowFile, codeFromContent);
+					LivyStatement itemResult = submitted == null ? null : awaitStatement(livySessionService.getStatementTracker(), livySessionService.getMetrics(), livyUrl, sessionId, submitted, deadline);
+					if(itemResult == null){
+						session.transfer(flowFile, REL_FAIL);
+					}else if(itemResult.isRunning()){
+						//The session is given up with the cancelled statement, the remaining items wait for another one
+						cancelStatement(livyClient, livyUrl+"/sessions/"+sessionId+"/statements/"+itemResult.getId(), lease, deadline);
+						transferUnfinished(session, flowFile, deadline);
+						session.transfer(flowFiles.subList(i + 1, flowFiles.size()));
+						return;
+					}else{
+						addCachedDataset(lease, flowFile, itemResult);
+						transferResult(livyClient, session, flowFile, livyUrl+"/sessions/"+sessionId+"/statements/"+itemResult.getId(), itemResult, cacheKeys.get(i));
+					}
+				}
+				return;
+			}
+			for(int i=0; i<flowFiles.size(); i++){
+				final StatementBatch.ItemResult itemResult = itemResults.get(i);
+				FlowFile flowFile = flowFiles.get(i);
+				if(!itemResult.isSuccessful()){
+					getLogger().debug("********** onTriggerBatch() Item " + i + " of batch failed: " + itemResult.getOutput());
+					session.adjustCounter("Statements Failed", 1, false);
+					session.transfer(flowFile, REL_FAIL);
+					continue;
+				}
+				final String cacheKey = cacheKeys.get(i);
+				final RecordSetWriterFactory writerFactory = recordWriterFactory;
+				final Map<String,String> variables = flowFile.getAttributes();
+				final Map<String,String> recordAttributes = new HashMap<String,String>();
+				try {
+					flowFile = session.write(flowFile, new OutputStreamCallback() {
+						public void process(OutputStream out) throws IOException {
+							StatementResultCache.Capture capture = cacheKey == null ? null : resultCache.capture(cacheKey, out);
+							if(writerFactory == null){
+								itemResult.writeTo(capture == null ? out : capture);
+							}else{
+								StatementOutputRecords records = new StatementOutputRecords(writerFactory, getLogger(), variables, capture == null ? out : capture);
+								putRecordAttributes(recordAttributes, records, records.writeText(itemResult.getOutput()));
+							}
+							if(capture != null){
+								capture.commit(recordAttributes);
+							}
+						}
+					});
+				} catch (ProcessException e) {
+					getLogger().error("Failed to write the output of item {} of a batch to {}", new Object[]{i, flowFile}, e);
+					session.transfer(flowFile, REL_FAIL);
+					continue;
+				}
+				flowFile = session.putAllAttributes(flowFile, recordAttributes);
+				session.adjustCounter("Statements Succeeded", 1, false);
+				session.transfer(flowFile, REL_SUCCESS);
+			}
+		} catch (IOException e) {
+			getLogger().error("Failed to run a batch of {} FlowFiles", new Object[]{flowFiles.size()}, e);
+			session.transfer(flowFiles, REL_FAIL);
+		} finally {
+			lease.release();
+		}
+	}
+	
+	/**
+	 * @return when the statement of a FlowFile submitted now has to complete by, 0 if it has no deadline
+	 */
+	private long getDeadline(ProcessContext context, FlowFile flowFile){
+		String timeout = flowFile.getAttribute(STATEMENT_TIMEOUT_ATTRIBUTE);
+		if(timeout != null){
+			try {
+				return System.currentTimeMillis() + FormatUtils.getTimeDuration(timeout.trim(), TimeUnit.MILLISECONDS);
+			} catch (IllegalArgumentException e) {
+				getLogger().warn("Ignoring invalid {} attribute '{}' of {}", new Object[]{STATEMENT_TIMEOUT_ATTRIBUTE, timeout, flowFile});
+			}
+		}
+		if(!context.getProperty(STATEMENT_TIMEOUT).isSet()){
+			return 0;
+		}
+		return System.currentTimeMillis() + context.getProperty(STATEMENT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Cancels a statement that is still running once its wait is over: it ran past its deadline, or
+	 * its outcome could not be learnt. The session it runs on goes back to the pool once the statement
+	 * has wound down, or is closed and replaced if the statement cannot be cancelled.
+	 * @param lease the lease of the session, or null if it is not held
+	 * @param deadline the deadline of the statement, 0 if it has none
+	 */
+	private void cancelStatement(LivyClient livyClient, String statementUrl, LivySessionLease lease, long deadline){
+		if(isPastDeadline(deadline)){
+			getLogger().warn("Statement {} ran past its deadline, cancelling it", new Object[]{statementUrl});
+		}else{
+			getLogger().warn("Outcome of statement {} is unknown, cancelling it", new Object[]{statementUrl});
+		}
+		boolean cancelled = false;
+		try {
+			livyClient.cancelStatement(statementUrl);
+			cancelled = true;
+		} catch (IOException e) {
+			getLogger().error("Failed to cancel statement {}", new Object[]{statementUrl}, e);
+		}
+		if(lease != null){
+			if(cancelled){
+				lease.releaseCancelled();
+			}else{
+				lease.invalidate();
+			}
+		}
+	}
+	
+	private static boolean isPastDeadline(long deadline){
+		return deadline > 0 && System.currentTimeMillis() >= deadline;
+	}
+	
+	/**
+	 * Routes the FlowFile of a statement cancelled by {@link #cancelStatement} to failure, marked as
+	 * timed out if it ran past its deadline.
+	 */
+	private void transferUnfinished(ProcessSession session, FlowFile flowFile, long deadline){
+		if(isPastDeadline(deadline)){
+			transferTimedOut(session, flowFile);
+		}else{
+			session.adjustCounter("Statements Failed", 1, false);
+			session.transfer(flowFile, REL_FAIL);
+		}
+	}
+	
+	private void transferTimedOut(ProcessSession session, FlowFile flowFile){
+		session.adjustCounter("Statements Timed Out", 1, false);
+		session.transfer(session.putAttribute(flowFile, STATEMENT_STATE_ATTRIBUTE, TIMEOUT_STATE), REL_FAIL);
+	}
+	
+	private static void putRecordAttributes(Map<String,String> attributes, StatementOutputRecords records, WriteResult result){
+		attributes.putAll(result.getAttributes());
+		attributes.put(RECORD_COUNT_ATTRIBUTE, String.valueOf(result.getRecordCount()));
+		if(records.getMimeType() != null){
+			attributes.put(CoreAttributes.MIME_TYPE.key(), records.getMimeType());
+		}
+	}
+	
+	/**
+	 * Registers the dataset the code of a FlowFile has cached with the session it ran on, if the code succeeded.
+	 * @param statement the statement the code ran in, or null if the code is known to have succeeded
+	 */
+	private void addCachedDataset(LivySessionLease lease, FlowFile flowFile, LivyStatement statement){
+		String dataset = flowFile.getAttribute(DATASET_PROVIDES_ATTRIBUTE);
+		if(dataset == null || dataset.trim().isEmpty() || (statement != null && !statement.isSuccessful())){
+			return;
+		}
+		long sizeBytes = 0;
+		String size = flowFile.getAttribute(DATASET_SIZE_ATTRIBUTE);
+		if(size != null){
+			try {
+				sizeBytes = size.trim().matches("\\d+") ? Long.parseLong(size.trim()) : DataUnit.parseDataSize(size, DataUnit.B).longValue();
+			} catch (IllegalArgumentException e) {
+				getLogger().warn("Ignoring invalid {} attribute '{}' of {}", new Object[]{DATASET_SIZE_ATTRIBUTE, size, flowFile});
+			}
+		}
+		lease.addCachedDataset(dataset.trim(), sizeBytes);
+	}
+	
+	/**
+	 * @return the result cache key of the code of a FlowFile, or null if its output is not to be cached
+	 */
+	private String getResultCacheKey(ProcessContext context, ProcessSession session, FlowFile flowFile, boolean codeFromContent){
+		if(resultCache == null || !"true".equalsIgnoreCase(flowFile.getAttribute(CACHEABLE_ATTRIBUTE))
+				|| flowFile.getAttribute(DATASET_PROVIDES_ATTRIBUTE) != null){
+			//Code that caches a dataset has to run to leave the dataset behind in the session
+			return null;
+		}
+		final MessageDigest digest = StatementResultCache.newKeyDigest(resultCacheScope);
+		String kind = getSessionKind(context, flowFile);
+		if(kind != null){
+			digest.update(kind.getBytes(UTF8));
+		}
+		if(!codeFromContent){
+			if(flowFile.getAttribute("code") == null){
+				return null;
+			}
+			digest.update(getCode(flowFile).getBytes(UTF8));
+		}else{
+			String prefetchCode = getPrefetchCode(flowFile);
+			if(prefetchCode != null){
+				digest.update(prefetchCode.getBytes(UTF8));
+			}
+			session.read(flowFile, new InputStreamCallback() {
+				@Override
+				public void process(final InputStream in) throws IOException {
+					byte[] buffer = new byte[8192];
+					int read;
+					while((read = in.read(buffer)) != -1){
+						digest.update(buffer, 0, read);
+					}
+				}
+			});
+		}
+		return StatementResultCache.toKey(digest);
+	}
+	
+	/**
+	 * Routes a FlowFile to success with the cached output of its code, if there is any.
+	 * @return true if the FlowFile has been routed
+	 */
+	private boolean transferCachedResult(ProcessSession session, FlowFile flowFile, String cacheKey){
+		if(cacheKey == null){
+			return false;
+		}
+		final byte[] output = resultCache.get(cacheKey);
+		Map<String,String> attributes = resultCache.getAttributes(cacheKey);
+		if(output == null || attributes == null){
+			session.adjustCounter("Result Cache Misses", 1, false);
+			return false;
+		}
+		flowFile = session.write(flowFile, new OutputStreamCallback() {
+			public void process(OutputStream out) throws IOException {
+				out.write(output);
+			}
+		});
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		session.adjustCounter("Result Cache Hits", 1, false);
+		session.transfer(flowFile, REL_SUCCESS);
+		return true;
+	}
+	
+	private boolean isCodeFromContent(ProcessContext context){
+		return CODE_FROM_CONTENT.equals(context.getProperty(CODE_SOURCE).getValue());
+	}
+	
+	private String getPrefetchCode(FlowFile flowFile){
+		if("true".equalsIgnoreCase(flowFile.getAttribute("prefetch")) && flowFile.getAttribute("prefetchCode")!=null){
+			String prefetchCode = flowFile.getAttribute("prefetchCode");
+			getLogger().debug("********** ExecuteSparkInteractive Adding Prefetch Code to Function: " + prefetchCode);
+			return prefetchCode;
+		}
+		return null;
+	}
 	
-	private String readAll(Reader rd) throws IOException {
-	    StringBuilder sb = new StringBuilder();
-	    int cp;
-	    while ((cp = rd.read()) != -1) {
-	      sb.append((char) cp);
-	    }
-	    return sb.toString();
+	private String getCode(FlowFile flowFile){
+		String prefetchCode = getPrefetchCode(flowFile);
+		String code = flowFile.getAttribute("code");
+		return prefetchCode == null ? code : prefetchCode + code;
+	}
+	
+	/**
+	 * Reads the code of a FlowFile from its content into memory, for the cases where it has to be combined with other code.
+	 */
+	private String readCode(ProcessSession session, FlowFile flowFile){
+		final ByteArrayOutputStream content = new ByteArrayOutputStream((int) flowFile.getSize());
+		session.read(flowFile, new InputStreamCallback() {
+			@Override
+			public void process(final InputStream in) throws IOException {
+				StreamUtils.copy(in, content);
+			}
+		});
+		String prefetchCode = getPrefetchCode(flowFile);
+		String code = new String(content.toByteArray(), UTF8);
+		return prefetchCode == null ? code : prefetchCode + code;
+	}
+	
+	/**
+	 * Submits the code of a FlowFile as a statement. Code taken from the content is streamed into the
+	 * request body, and the content stream is closed again as soon as the statement has been submitted.
+	 */
+	private SubmittedStatement submitFlowFile(LivyClient livyClient, String livyUrl, String sessionId, ProcessSession session, FlowFile flowFile, boolean codeFromContent){
+		if(!codeFromContent){
+			String code = flowFile.getAttribute("code");
+			if(code == null){
+				getLogger().error("{} has no 'code' attribute to run", new Object[]{flowFile});
+				return null;
+			}
+			return submitStatement(livyClient, livyUrl, sessionId, new CodePayloadEntity(getCode(flowFile)));
+		}
+		InputStream content = session.read(flowFile);
+		try {
+			return submitStatement(livyClient, livyUrl, sessionId, new CodePayloadEntity(getPrefetchCode(flowFile), content));
+		} finally {
+			try {
+				content.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private SubmittedStatement submitStatement(LivyClient livyClient, String livyUrl, String sessionId, CodePayloadEntity payload){
+		String statementUrl = livyUrl+"/sessions/"+sessionId+"/statements";
+		LivyStatement jobInfo = null;
+		
+		getLogger().debug("********** submitStatement() Submitting Job to Spark via: " + statementUrl);
+		try {
+			jobInfo = livyClient.postStatement(statementUrl, payload);
+			getLogger().debug("********** submitStatement() Job Info: " + jobInfo);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if(jobInfo == null){
+			return null;
+		}
+		return new SubmittedStatement(jobInfo, System.currentTimeMillis());
+	}
+	
+	private LivyStatement submitAndHandleJob(LivyClient livyClient, LivyStatementTracker statementTracker, LivyMetrics metrics, String livyUrl, String sessionId,
+			CodePayloadEntity payload, long deadline){
+		SubmittedStatement submitted = submitStatement(livyClient, livyUrl, sessionId, payload);
+		return submitted == null ? null : awaitStatement(statementTracker, metrics, livyUrl, sessionId, submitted, deadline);
+	}
+	
+	/**
+	 * Waits on the controller service's statement tracker until a submitted statement is no longer
+	 * running or its deadline has passed.
+	 * @param deadline when to stop waiting, 0 to wait for as long as the statement runs
+	 * @return the final status of the statement, or its last known status, still running, if the deadline
+	 * passed or the wait was cut short before the statement finished
+	 */
+	private LivyStatement awaitStatement(LivyStatementTracker statementTracker, LivyMetrics metrics, String livyUrl, String sessionId, SubmittedStatement submitted, long deadline){
+		LivyStatement jobInfo = submitted.statement;
+		String sessionUrl = livyUrl+"/sessions/"+sessionId;
+		
+		try {
+			String jobState = jobInfo.getState();
+			while(jobState.equalsIgnoreCase("running") || jobState.equalsIgnoreCase("waiting")){
+				long timeout = AWAIT_STATEMENT_MILLIS;
+				if(deadline > 0){
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0){
+						getLogger().debug("********** awaitStatement() Job is still "+jobState+" after "+submitted.getElapsedMillis()+" ms, past its deadline");
+						metrics.recordStatement(submitted.getElapsedMillis(), false);
+						return jobInfo;
+					}
+					timeout = Math.min(timeout, remaining);
+				}
+				getLogger().debug("********** awaitStatement() Job status is: "+jobState+". Waiting up to "+timeout+" ms for it to finish...");
+				LivyStatement status = statementTracker.await(sessionUrl, jobInfo.getId(), timeout, TimeUnit.MILLISECONDS);
+				if(status != null){
+					jobInfo = status;
+					jobState = jobInfo.getState();
+				}
+			}
+			metrics.recordStatement(submitted.getElapsedMillis(), jobInfo.isSuccessful());
+			if(jobState.equalsIgnoreCase("available")){
+				getLogger().debug("********** awaitStatement() Job status is: "+jobState+" after "+submitted.getElapsedMillis()+" ms. returning output...");
+			}else{
+				getLogger().debug("********** Job status is: "+jobState+". Job did not complete due to error or has been cancelled. Check SparkUI for details.");
+			}
+		} catch (IOException e) {
+			getLogger().error("Failed to read the status of statement {} of session {}", new Object[]{jobInfo.getId(), sessionUrl}, e);
+		} catch (InterruptedException e) {
+			getLogger().warn("Interrupted while waiting for statement {} of session {}", new Object[]{jobInfo.getId(), sessionUrl});
+			Thread.currentThread().interrupt();
+		} finally {
+			statementTracker.untrack(sessionUrl, jobInfo.getId());
+		}
+		return jobInfo;
+	}
+	
+	private static class SubmittedStatement{
+		private final LivyStatement statement;
+		private final long submitted;
+		
+		private SubmittedStatement(LivyStatement statement, long submitted){
+			this.statement = statement;
+			this.submitted = submitted;
+		}
+		
+		private long getElapsedMillis(){
+			return System.currentTimeMillis() - submitted;
+		}
+	}
+	
+	private static class PendingStatement{
+		private final LivySessionLease lease;
+		private final long submitted;
+		private volatile long nextStatusCheck;
+		private final String cacheKey;
+		//When to cancel the statement, 0 if never
+		private final long deadline;
+		
+		private PendingStatement(LivySessionLease lease, long submitted, long nextStatusCheck, String cacheKey, long deadline){
+			this.lease = lease;
+			this.submitted = submitted;
+			this.nextStatusCheck = nextStatusCheck;
+			this.cacheKey = cacheKey;
+			this.deadline = deadline;
+		}
+		
+		private long getElapsedMillis(){
+			return System.currentTimeMillis() - submitted;
+		}
 	}
 }
\ No newline at end of file
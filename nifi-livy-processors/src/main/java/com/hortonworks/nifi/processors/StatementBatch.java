@@ -0,0 +1,170 @@
+package com.hortonworks.nifi.processors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.io.JsonStringEncoder;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Combines the code of several FlowFiles into a single Livy statement. Each item runs in its own
+ * error handler and writes begin/end markers around its output, so that the combined output can be
+ * split back into one result per item and a failing item does not fail the others.
+ * In a batch an item's output is what it prints, the REPL does not echo the value of each item.
+ * Scala items also run inside a block, so the vals, defs and imports an item declares are not visible to
+ * later statements as they are when code runs at the top level of the REPL.
+ */
+public class StatementBatch {
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final String kind;
+	private final String marker;
+	private final List<String> codes;
+
+	public StatementBatch(String kind, List<String> codes){
+		this.kind = kind;
+		this.codes = codes;
+		this.marker = "@@livy-batch-" + UUID.randomUUID().toString() + "@@";
+	}
+
+	public int size(){
+		return codes.size();
+	}
+
+	public String getCode(){
+		StringBuilder code = new StringBuilder();
+		for(int i=0; i<codes.size(); i++){
+			appendItem(code, i, codes.get(i));
+		}
+		return code.toString();
+	}
+
+	private void appendItem(StringBuilder code, int item, String itemCode){
+		String begin = quote(marker + item + ":begin");
+		String ok = quote(marker + item + ":ok");
+		String error = quote(marker + item + ":error:");
+		if(kind.startsWith("pyspark")){
+			code.append("print(").append(begin).append(")\n")
+				.append("try:\n")
+				.append("    exec(u").append(quote(itemCode)).append(")\n")
+				.append("    print(").append(ok).append(")\n")
+				.append("except Exception as livy_batch_error:\n")
+				.append("    print(").append(error).append(" + str(livy_batch_error))\n");
+		}else if(kind.equals("sparkr")){
+			code.append("cat(").append(begin).append(", \"\\n\")\n")
+				.append("tryCatch({\n")
+				.append("  eval(parse(text = ").append(quote(itemCode)).append("))\n")
+				.append("  cat(").append(ok).append(", \"\\n\")\n")
+				.append("}, error = function(livyBatchError) cat(").append(error).append(", conditionMessage(livyBatchError), \"\\n\"))\n");
+		}else{
+			code.append("println(").append(begin).append(")\n")
+				.append("try {\n")
+				.append("  val livyBatchResult: Any = {\n")
+				.append(itemCode).append("\n")
+				.append("  }\n")
+				.append("  if (livyBatchResult != (())) println(livyBatchResult)\n")
+				.append("  println(").append(ok).append(")\n")
+				.append("} catch { case livyBatchError: Throwable => println(").append(error).append(" + livyBatchError) }\n");
+		}
+	}
+
+	/**
+	 * Splits the output data of the combined statement into one result per item.
+	 */
+	public List<ItemResult> split(byte[] outputData) throws IOException{
+		JsonNode data = MAPPER.readTree(outputData);
+		String text = data.path("text/plain").getTextValue();
+		List<ItemResult> results = new ArrayList<ItemResult>(codes.size());
+		for(int i=0; i<codes.size(); i++){
+			results.add(findResult(text, i));
+		}
+		return results;
+	}
+
+	/**
+	 * Tells from the error value of a combined statement that failed whether any of its items began,
+	 * as when an item throws past its error handler. A batch that failed before its first item, for
+	 * instance because one item does not compile, has run none of its code.
+	 */
+	public boolean isStarted(String errorValue){
+		return errorValue != null && errorValue.contains(marker + 0 + ":begin");
+	}
+
+	private ItemResult findResult(String text, int item){
+		if(text == null){
+			return new ItemResult(false, null);
+		}
+		String begin = marker + item + ":begin";
+		String ok = marker + item + ":ok";
+		String error = marker + item + ":error:";
+		int beginIndex = text.indexOf(begin);
+		if(beginIndex < 0){
+			return new ItemResult(false, null);
+		}
+		int outputStart = skipNewline(text, beginIndex + begin.length());
+		int okIndex = text.indexOf(ok, outputStart);
+		int errorIndex = text.indexOf(error, outputStart);
+		if(okIndex >= 0 && (errorIndex < 0 || okIndex < errorIndex)){
+			return new ItemResult(true, trimNewline(text.substring(outputStart, okIndex)));
+		}
+		if(errorIndex >= 0){
+			int messageEnd = text.indexOf('\n', errorIndex);
+			String message = text.substring(errorIndex + error.length(), messageEnd < 0 ? text.length() : messageEnd).trim();
+			return new ItemResult(false, message);
+		}
+		return new ItemResult(false, null);
+	}
+
+	private static int skipNewline(String text, int index){
+		return index < text.length() && text.charAt(index) == '\n' ? index + 1 : index;
+	}
+
+	private static String trimNewline(String output){
+		return output.endsWith("\n") ? output.substring(0, output.length() - 1) : output;
+	}
+
+	private static String quote(String value){
+		return "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(value)) + "\"";
+	}
+
+	public static class ItemResult{
+		private final boolean successful;
+		private final String output;
+
+		private ItemResult(boolean successful, String output){
+			this.successful = successful;
+			this.output = output;
+		}
+
+		public boolean isSuccessful(){
+			return successful;
+		}
+
+		/**
+		 * @return what the item printed if it succeeded, or the error message if it failed
+		 */
+		public String getOutput(){
+			return output;
+		}
+
+		/**
+		 * Writes the item output in the same shape as the output data of a single statement.
+		 */
+		public void writeTo(OutputStream out) throws IOException{
+			JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			generator.writeStartObject();
+			generator.writeStringField("text/plain", output);
+			generator.writeEndObject();
+			generator.close();
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package com.hortonworks.nifi.processors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Writes tabular statement output as records, one row at a time while the output data is parsed.
+ * Recognizes, in this order of preference:
+ * <ul>
+ * <li>%table output: {"application/vnd.livy.table.v1+json": {"headers": [...], "data": [[...], ...]}}</li>
+ * <li>output of the sql kind: {"application/json": {"schema": {Spark StructType}, "data": [[...], ...]}}</li>
+ * <li>a JSON array of objects under "application/json", typed after its first object</li>
+ * <li>a text table as printed by DataFrame.show() under "text/plain", with every column a string</li>
+ * </ul>
+ * One instance converts the output of one statement.
+ */
+public class StatementOutputRecords {
+	public static final String TABLE_MIME_TYPE = "application/vnd.livy.table.v1+json";
+	public static final String JSON_MIME_TYPE = "application/json";
+	public static final String TEXT_MIME_TYPE = "text/plain";
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final RecordSetWriterFactory writerFactory;
+	private final ComponentLog logger;
+	private final Map<String, String> variables;
+	private final OutputStream out;
+	private String mimeType;
+
+	/**
+	 * @param variables the attributes of the FlowFile the records are written to, used to look up the write schema
+	 */
+	public StatementOutputRecords(RecordSetWriterFactory writerFactory, ComponentLog logger, Map<String, String> variables, OutputStream out){
+		this.writerFactory = writerFactory;
+		this.logger = logger;
+		this.variables = variables;
+		this.out = out;
+	}
+
+	/**
+	 * @return the mime type of the records written, null before they are
+	 */
+	public String getMimeType(){
+		return mimeType;
+	}
+
+	/**
+	 * Writes the rows of the output data object the parser is positioned at.
+	 * @throws IOException if the output data holds no table
+	 */
+	public WriteResult write(JsonParser parser) throws IOException {
+		String text = null;
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String outputMimeType = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			WriteResult result = null;
+			if((TABLE_MIME_TYPE.equals(outputMimeType) || JSON_MIME_TYPE.equals(outputMimeType)) && value == JsonToken.START_OBJECT){
+				result = writeTable(parser);
+			}else if(JSON_MIME_TYPE.equals(outputMimeType) && value == JsonToken.START_ARRAY){
+				result = writeObjects(parser);
+			}else if(TEXT_MIME_TYPE.equals(outputMimeType) && value == JsonToken.VALUE_STRING){
+				text = parser.getText();
+			}else{
+				parser.skipChildren();
+			}
+			if(result != null){
+				while(parser.nextToken() == JsonToken.FIELD_NAME){
+					parser.nextToken();
+					parser.skipChildren();
+				}
+				return result;
+			}
+		}
+		if(text != null){
+			return writeText(text);
+		}
+		throw new IOException("Statement output holds no table to write as records");
+	}
+
+	/**
+	 * Writes the rows of a text table as printed by DataFrame.show().
+	 * @throws IOException if the text holds no table
+	 */
+	public WriteResult writeText(String text) throws IOException {
+		String[] lines = text.split("\r?\n");
+		int border = 0;
+		while(border < lines.length && !isBorder(lines[border])){
+			border++;
+		}
+		if(border + 2 >= lines.length || !lines[border + 1].trim().startsWith("|") || !isBorder(lines[border + 2])){
+			throw new IOException("Statement output holds no table to write as records");
+		}
+		List<String> headers = splitTextRow(lines[border + 1]);
+		List<RecordField> fields = new ArrayList<RecordField>(headers.size());
+		for(String header: headers){
+			fields.add(new RecordField(header, RecordFieldType.STRING.getDataType()));
+		}
+		RecordSchema schema = new SimpleRecordSchema(fields);
+		RecordSetWriter writer = createWriter(schema);
+		try {
+			for(int i = border + 3; i < lines.length && !isBorder(lines[i]); i++){
+				writer.write(toRecord(schema, fields, splitTextRow(lines[i]).toArray()));
+			}
+			return writer.finishRecordSet();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the data rows of a table object, streaming them if the headers come first.
+	 * @return null if the object is not a table
+	 */
+	private WriteResult writeTable(JsonParser parser) throws IOException {
+		List<RecordField> fields = null;
+		List<Object[]> bufferedRows = null;
+		RecordSetWriter writer = null;
+		try {
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if("headers".equals(field) && value == JsonToken.START_ARRAY){
+					fields = readLivyHeaders(parser);
+				}else if("schema".equals(field) && value == JsonToken.START_OBJECT){
+					fields = readSparkSchema(parser);
+				}else if("data".equals(field) && value == JsonToken.START_ARRAY){
+					if(fields == null){
+						//The headers follow the rows, which then have to be held until their types are known
+						bufferedRows = new ArrayList<Object[]>();
+						while(parser.nextToken() == JsonToken.START_ARRAY){
+							bufferedRows.add(readRow(parser));
+						}
+					}else{
+						RecordSchema schema = new SimpleRecordSchema(fields);
+						writer = createWriter(schema);
+						while(parser.nextToken() == JsonToken.START_ARRAY){
+							writer.write(toRecord(schema, fields, readRow(parser)));
+						}
+					}
+					if(parser.getCurrentToken() != JsonToken.END_ARRAY){
+						throw new IOException("Expected a table row but found " + parser.getCurrentToken());
+					}
+				}else{
+					parser.skipChildren();
+				}
+			}
+			if(fields == null || (writer == null && bufferedRows == null)){
+				return null;
+			}
+			if(writer == null){
+				RecordSchema schema = new SimpleRecordSchema(fields);
+				writer = createWriter(schema);
+				for(Object[] row: bufferedRows){
+					writer.write(toRecord(schema, fields, row));
+				}
+			}
+			return writer.finishRecordSet();
+		} finally {
+			if(writer != null){
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes an array of JSON objects, typed after the first object.
+	 * @return null if the array does not hold objects
+	 */
+	private WriteResult writeObjects(JsonParser parser) throws IOException {
+		JsonToken element = parser.nextToken();
+		if(element != JsonToken.START_OBJECT && element != JsonToken.END_ARRAY){
+			parser.skipChildren();
+			while(parser.nextToken() != JsonToken.END_ARRAY){
+				parser.skipChildren();
+			}
+			return null;
+		}
+		List<RecordField> fields = new ArrayList<RecordField>();
+		Map<String, Object> firstValues = new HashMap<String, Object>();
+		if(element == JsonToken.START_OBJECT){
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String name = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				fields.add(new RecordField(name, getDataType(value)));
+				firstValues.put(name, readValue(parser, null));
+			}
+		}
+		RecordSchema schema = new SimpleRecordSchema(fields);
+		RecordSetWriter writer = createWriter(schema);
+		try {
+			if(element == JsonToken.START_OBJECT){
+				writer.write(new MapRecord(schema, firstValues));
+				Map<String, DataType> types = new HashMap<String, DataType>();
+				for(RecordField field: fields){
+					types.put(field.getFieldName(), field.getDataType());
+				}
+				while(parser.nextToken() == JsonToken.START_OBJECT){
+					Map<String, Object> values = new HashMap<String, Object>();
+					while(parser.nextToken() == JsonToken.FIELD_NAME){
+						String name = parser.getCurrentName();
+						parser.nextToken();
+						DataType type = types.get(name);
+						if(type == null){
+							parser.skipChildren();
+						}else{
+							values.put(name, readValue(parser, type));
+						}
+					}
+					writer.write(new MapRecord(schema, values));
+				}
+				if(parser.getCurrentToken() != JsonToken.END_ARRAY){
+					throw new IOException("Expected a JSON object but found " + parser.getCurrentToken());
+				}
+			}
+			return writer.finishRecordSet();
+		} finally {
+			writer.close();
+		}
+	}
+
+	private RecordSetWriter createWriter(RecordSchema readSchema) throws IOException {
+		try {
+			RecordSetWriter writer = writerFactory.createWriter(logger, writerFactory.getSchema(variables, readSchema), out);
+			mimeType = writer.getMimeType();
+			writer.beginRecordSet();
+			return writer;
+		} catch (SchemaNotFoundException e) {
+			throw new IOException("Cannot determine the schema to write the statement output with", e);
+		}
+	}
+
+	/**
+	 * Reads %table headers such as {"name": "count", "type": "BIGINT_TYPE"}.
+	 */
+	private List<RecordField> readLivyHeaders(JsonParser parser) throws IOException {
+		List<RecordField> fields = new ArrayList<RecordField>();
+		while(parser.nextToken() == JsonToken.START_OBJECT){
+			String name = null;
+			String type = null;
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if("name".equals(field)){
+					name = parser.getText();
+				}else if("type".equals(field)){
+					type = parser.getText();
+				}else{
+					parser.skipChildren();
+				}
+			}
+			fields.add(new RecordField(name == null ? "column" + fields.size() : name, getLivyDataType(type)));
+		}
+		return fields;
+	}
+
+	/**
+	 * Reads the fields of a Spark StructType such as {"type": "struct", "fields": [{"name": "count", "type": "long", ...}]}.
+	 */
+	private List<RecordField> readSparkSchema(JsonParser parser) throws IOException {
+		List<RecordField> fields = null;
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if("fields".equals(field) && value == JsonToken.START_ARRAY){
+				fields = new ArrayList<RecordField>();
+				while(parser.nextToken() == JsonToken.START_OBJECT){
+					String name = null;
+					String type = null;
+					while(parser.nextToken() == JsonToken.FIELD_NAME){
+						String structField = parser.getCurrentName();
+						JsonToken structValue = parser.nextToken();
+						if("name".equals(structField)){
+							name = parser.getText();
+						}else if("type".equals(structField) && structValue == JsonToken.VALUE_STRING){
+							type = parser.getText();
+						}else{
+							//Nested types are written as JSON text
+							parser.skipChildren();
+						}
+					}
+					fields.add(new RecordField(name == null ? "column" + fields.size() : name, getSparkDataType(type)));
+				}
+			}else{
+				parser.skipChildren();
+			}
+		}
+		return fields;
+	}
+
+	private static DataType getLivyDataType(String type){
+		if("BOOLEAN_TYPE".equals(type)){
+			return RecordFieldType.BOOLEAN.getDataType();
+		}else if("INT_TYPE".equals(type)){
+			return RecordFieldType.INT.getDataType();
+		}else if("BIGINT_TYPE".equals(type)){
+			return RecordFieldType.LONG.getDataType();
+		}else if("FLOAT_TYPE".equals(type)){
+			return RecordFieldType.FLOAT.getDataType();
+		}else if("DOUBLE_TYPE".equals(type) || "DECIMAL_TYPE".equals(type)){
+			return RecordFieldType.DOUBLE.getDataType();
+		}
+		return RecordFieldType.STRING.getDataType();
+	}
+
+	private static DataType getSparkDataType(String type){
+		if("boolean".equals(type)){
+			return RecordFieldType.BOOLEAN.getDataType();
+		}else if("byte".equals(type) || "short".equals(type) || "integer".equals(type)){
+			return RecordFieldType.INT.getDataType();
+		}else if("long".equals(type)){
+			return RecordFieldType.LONG.getDataType();
+		}else if("float".equals(type)){
+			return RecordFieldType.FLOAT.getDataType();
+		}else if("double".equals(type) || (type != null && type.startsWith("decimal"))){
+			return RecordFieldType.DOUBLE.getDataType();
+		}
+		return RecordFieldType.STRING.getDataType();
+	}
+
+	private static DataType getDataType(JsonToken value){
+		switch(value){
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			return RecordFieldType.BOOLEAN.getDataType();
+		case VALUE_NUMBER_INT:
+			return RecordFieldType.LONG.getDataType();
+		case VALUE_NUMBER_FLOAT:
+			return RecordFieldType.DOUBLE.getDataType();
+		default:
+			return RecordFieldType.STRING.getDataType();
+		}
+	}
+
+	/**
+	 * Reads the values of the row array the parser is positioned at.
+	 */
+	private static Object[] readRow(JsonParser parser) throws IOException {
+		List<Object> row = new ArrayList<Object>();
+		while(parser.nextToken() != JsonToken.END_ARRAY){
+			row.add(readValue(parser, null));
+		}
+		return row.toArray();
+	}
+
+	private static MapRecord toRecord(RecordSchema schema, List<RecordField> fields, Object[] row){
+		Map<String, Object> values = new HashMap<String, Object>();
+		for(int i = 0; i < fields.size() && i < row.length; i++){
+			RecordField field = fields.get(i);
+			values.put(field.getFieldName(), row[i] == null ? null : DataTypeUtils.convertType(row[i], field.getDataType(), field.getFieldName()));
+		}
+		return new MapRecord(schema, values);
+	}
+
+	/**
+	 * Reads the value the parser is positioned at. Arrays and objects are read as JSON text.
+	 * @param type the type to convert the value to, or null to keep it as read
+	 */
+	private static Object readValue(JsonParser parser, DataType type) throws IOException {
+		Object value;
+		switch(parser.getCurrentToken()){
+		case VALUE_NULL:
+			return null;
+		case VALUE_TRUE:
+			value = Boolean.TRUE;
+			break;
+		case VALUE_FALSE:
+			value = Boolean.FALSE;
+			break;
+		case VALUE_NUMBER_INT:
+			value = parser.getLongValue();
+			break;
+		case VALUE_NUMBER_FLOAT:
+			value = parser.getDoubleValue();
+			break;
+		case START_ARRAY:
+		case START_OBJECT:
+			StringWriter json = new StringWriter();
+			JsonGenerator generator = JSON_FACTORY.createJsonGenerator(json);
+			generator.copyCurrentStructure(parser);
+			generator.close();
+			value = json.toString();
+			break;
+		default:
+			value = parser.getText();
+		}
+		return type == null ? value : DataTypeUtils.convertType(value, type, null);
+	}
+
+	private static boolean isBorder(String line){
+		String trimmed = line.trim();
+		return trimmed.startsWith("+") && trimmed.endsWith("+") && trimmed.replace("+", "").replace("-", "").isEmpty() && trimmed.length() > 1;
+	}
+
+	private static List<String> splitTextRow(String line){
+		String trimmed = line.trim();
+		List<String> values = new ArrayList<String>();
+		int start = 1;
+		int end;
+		while((end = trimmed.indexOf('|', start)) != -1){
+			values.add(trimmed.substring(start, end).trim());
+			start = end + 1;
+		}
+		return values;
+	}
+}
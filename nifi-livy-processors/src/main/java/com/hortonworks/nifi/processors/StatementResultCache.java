@@ -0,0 +1,191 @@
+package com.hortonworks.nifi.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of the output data of statements whose code is read-only, so running the
+ * same code again can skip Livy. Entries expire after a fixed time to live, and the least recently
+ * used entries are evicted to keep the total size of the cached output within a limit.
+ */
+public class StatementResultCache {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long maxBytes;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	public StatementResultCache(long maxBytes, long ttlMillis){
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Starts the key of some code. The scope holds whatever else the output depends on, such as the
+	 * session kind and init profile; the caller then adds the code as UTF-8 bytes.
+	 */
+	public static MessageDigest newKeyDigest(String scope){
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(scope.getBytes(UTF8));
+			digest.update((byte) 0);
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	public static String toKey(MessageDigest digest){
+		byte[] hash = digest.digest();
+		char[] key = new char[hash.length * 2];
+		for(int i=0; i<hash.length; i++){
+			key[2*i] = HEX[(hash[i] >> 4) & 0xF];
+			key[2*i+1] = HEX[hash[i] & 0xF];
+		}
+		return new String(key);
+	}
+
+	/**
+	 * @return the cached output data for the key, or null if there is none or it has expired
+	 */
+	public synchronized byte[] get(String key){
+		Entry entry = getEntry(key);
+		return entry == null ? null : entry.output;
+	}
+
+	/**
+	 * @return the attributes cached with the output data for the key, or null if there is none or it has expired
+	 */
+	public synchronized Map<String, String> getAttributes(String key){
+		Entry entry = getEntry(key);
+		return entry == null ? null : entry.attributes;
+	}
+
+	private Entry getEntry(String key){
+		Entry entry = entries.get(key);
+		if(entry == null){
+			return null;
+		}
+		if(System.currentTimeMillis() - entry.created > ttlMillis){
+			remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	public synchronized void put(String key, byte[] output){
+		put(key, output, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * @param attributes FlowFile attributes describing the output, such as its mime type
+	 */
+	public synchronized void put(String key, byte[] output, Map<String, String> attributes){
+		if(output.length > maxBytes){
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(output, attributes));
+		totalBytes += output.length;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while(totalBytes > maxBytes && eldest.hasNext()){
+			totalBytes -= eldest.next().getValue().output.length;
+			eldest.remove();
+		}
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized long getTotalBytes(){
+		return totalBytes;
+	}
+
+	private void remove(String key){
+		Entry entry = entries.remove(key);
+		if(entry != null){
+			totalBytes -= entry.output.length;
+		}
+	}
+
+	/**
+	 * Wraps a stream the output data of a statement is written to, so that it is also cached under
+	 * the key once {@link Capture#commit()} is called. Output larger than the cache is not kept.
+	 */
+	public Capture capture(String key, OutputStream out){
+		return new Capture(key, out);
+	}
+
+	public class Capture extends FilterOutputStream {
+		private final String key;
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		private Capture(String key, OutputStream out){
+			super(out);
+			this.key = key;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if(copy != null){
+				copy.write(b);
+				checkSize();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if(copy != null){
+				copy.write(b, off, len);
+				checkSize();
+			}
+		}
+
+		private void checkSize(){
+			if(copy.size() > maxBytes){
+				copy = null;
+			}
+		}
+
+		/**
+		 * Caches everything written so far, to be called once the output data has been written completely.
+		 */
+		public void commit(){
+			commit(Collections.<String, String>emptyMap());
+		}
+
+		/**
+		 * Caches everything written so far together with attributes describing it.
+		 */
+		public void commit(Map<String, String> attributes){
+			if(copy != null){
+				put(key, copy.toByteArray(), attributes);
+			}
+		}
+	}
+
+	private static class Entry {
+		private final byte[] output;
+		private final Map<String, String> attributes;
+		private final long created = System.currentTimeMillis();
+
+		private Entry(byte[] output, Map<String, String> attributes){
+			this.output = output;
+			this.attributes = attributes;
+		}
+	}
+}
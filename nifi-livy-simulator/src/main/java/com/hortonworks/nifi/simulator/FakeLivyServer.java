@@ -0,0 +1,816 @@
+package com.hortonworks.nifi.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Livy REST server, for exercising the controller service and processors
+ * without a Spark cluster. Supports the /sessions and /sessions/{id}/statements endpoints with
+ * configurable session startup times, statement run times, error injection and a session limit.
+ * Code starting with "%table" gets %table output, with as many rows as the number that follows it.
+ * Code containing "%fatal" fails past any error handler, as Livy reports a Scala statement that throws
+ * an uncaught error: the error value is what the statement printed before, so in a micro-batch it holds
+ * the output of the items that ran.
+ * Batches submitted to /batches start like sessions, run like statements and fail at the statement error rate.
+ * <p>
+ * Time is simulated lazily: each statement is given a start and end time when it is submitted, queued
+ * behind the statements already in its session, and states are derived from the clock when read.
+ * <p>
+ * Like Livy, a session only retains its most recent statements: when one is submitted, the oldest
+ * finished statements beyond the retained count are pruned and no longer listed or served. Statement
+ * lists take from and size as positions in the retained statements, newest first with order=desc.
+ */
+public class FakeLivyServer implements Closeable {
+	private static final Pattern BATCH_MARKER = Pattern.compile("\"(@@livy-batch-[^\"]+@@\\d+):begin\"");
+	private static final Pattern TABLE_CODE = Pattern.compile("%table\\s+(\\d+).*", Pattern.DOTALL);
+	private static final String FATAL_CODE = "%fatal";
+
+	static {
+		//Without this the JDK server sends headers and body in separate packets and every call waits out a delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final LatencyDistribution sessionStartup;
+	private final LatencyDistribution statementLatency;
+	private final double statementErrorRate;
+	private final double httpErrorRate;
+	private final int maxSessions;
+	private final int outputChars;
+	private final int retainedStatements;
+	private final Random random;
+	private final Map<Integer, FakeSession> sessions = new ConcurrentHashMap<Integer, FakeSession>();
+	private final Map<Integer, FakeBatch> batches = new ConcurrentHashMap<Integer, FakeBatch>();
+	private final AtomicInteger nextBatchId = new AtomicInteger();
+	private final AtomicInteger nextSessionId = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong statementsSubmitted = new AtomicLong();
+	private final AtomicLong statementRequests = new AtomicLong();
+	private final AtomicLong statementListRequests = new AtomicLong();
+
+	private FakeLivyServer(Builder builder) throws IOException {
+		this.sessionStartup = builder.sessionStartup;
+		this.statementLatency = builder.statementLatency;
+		this.statementErrorRate = builder.statementErrorRate;
+		this.httpErrorRate = builder.httpErrorRate;
+		this.maxSessions = builder.maxSessions;
+		this.outputChars = builder.outputChars;
+		this.retainedStatements = builder.retainedStatements;
+		this.random = new Random(builder.seed);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+		this.executor = Executors.newFixedThreadPool(builder.serverThreads);
+		server.setExecutor(executor);
+		server.createContext("/sessions", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					dispatch(exchange);
+				} catch (JSONException e) {
+					respond(exchange, 400, message(e.getMessage()));
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.createContext("/batches", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					dispatchBatches(exchange);
+				} catch (JSONException e) {
+					respond(exchange, 400, message(e.getMessage()));
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public FakeLivyServer start(){
+		server.start();
+		return this;
+	}
+
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	public String getUrl(){
+		return "http://localhost:" + getPort();
+	}
+
+	public long getRequestCount(){
+		return requests.get();
+	}
+
+	public long getInjectedErrorCount(){
+		return injectedErrors.get();
+	}
+
+	public long getStatementsSubmitted(){
+		return statementsSubmitted.get();
+	}
+
+	/**
+	 * @return the number of GET requests for a single statement
+	 */
+	public long getStatementRequests(){
+		return statementRequests.get();
+	}
+
+	/**
+	 * @return the number of GET requests for the statements of a session
+	 */
+	public long getStatementListRequests(){
+		return statementListRequests.get();
+	}
+
+	/**
+	 * @return the number of sessions that have not been deleted, whatever their state
+	 */
+	public int getSessionCount(){
+		return sessions.size();
+	}
+
+	/**
+	 * @return the number of sessions ever created, including deleted ones
+	 */
+	public int getSessionsCreated(){
+		return nextSessionId.get();
+	}
+
+	/**
+	 * @return the number of sessions of a kind that have not been deleted
+	 */
+	public int getSessionCount(String kind){
+		int count = 0;
+		for(FakeSession session: sessions.values()){
+			if(session.kind.equals(kind)){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the ids of the sessions of a kind that have not been deleted
+	 */
+	public List<Integer> getSessionIds(String kind){
+		List<Integer> sessionIds = new ArrayList<Integer>();
+		for(FakeSession session: sessions.values()){
+			if(session.kind.equals(kind)){
+				sessionIds.add(session.id);
+			}
+		}
+		return sessionIds;
+	}
+
+	/**
+	 * @return true if the session exists and has not been deleted
+	 */
+	public boolean hasSession(int sessionId){
+		return sessions.containsKey(sessionId);
+	}
+
+	/**
+	 * Creates an idle session as another Livy client would.
+	 * @return the id of the session
+	 */
+	public synchronized int addSession(String kind){
+		FakeSession session = new FakeSession(nextSessionId.getAndIncrement(), kind, System.currentTimeMillis());
+		sessions.put(session.id, session);
+		return session.id;
+	}
+
+	/**
+	 * @return the code a statement was submitted with, or null if there is no such statement
+	 */
+	public String getStatementCode(int sessionId, int statementId){
+		FakeSession session = sessions.get(sessionId);
+		FakeStatement statement = session == null ? null : session.getStatement(statementId);
+		return statement == null ? null : statement.code;
+	}
+
+	/**
+	 * @return the code of every statement submitted to a session, in order
+	 */
+	public List<String> getStatementCodes(int sessionId){
+		List<String> codes = new ArrayList<String>();
+		FakeSession session = sessions.get(sessionId);
+		if(session != null){
+			synchronized(session){
+				for(FakeStatement statement: session.statements){
+					codes.add(statement.code);
+				}
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * @return the request body a batch was submitted with, or null if there is no such batch
+	 */
+	public JSONObject getBatchRequest(int batchId){
+		FakeBatch batch = batches.get(batchId);
+		return batch == null ? null : batch.request;
+	}
+
+	/**
+	 * @return the number of batches that have not been deleted, whatever their state
+	 */
+	public int getBatchCount(){
+		return batches.size();
+	}
+
+	/**
+	 * Moves a session to the dead state, as when its Spark application is killed.
+	 */
+	public void killSession(int sessionId){
+		FakeSession session = sessions.get(sessionId);
+		if(session != null){
+			session.kill();
+		}
+	}
+
+	public void close(){
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void dispatch(HttpExchange exchange) throws IOException, JSONException {
+		requests.incrementAndGet();
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		if(httpErrorRate > 0 && random.nextDouble() < httpErrorRate){
+			injectedErrors.incrementAndGet();
+			respond(exchange, 500, message("Injected failure"));
+			return;
+		}
+		if(path.length == 2){
+			if(method.equals("GET")){
+				listSessions(exchange);
+			}else if(method.equals("POST")){
+				createSession(exchange);
+			}else{
+				respond(exchange, 405, message("Method not allowed"));
+			}
+			return;
+		}
+		FakeSession session = sessions.get(parseId(path[2]));
+		if(session == null){
+			respond(exchange, 404, message("Session '" + path[2] + "' not found."));
+			return;
+		}
+		if(path.length == 3){
+			if(method.equals("DELETE")){
+				sessions.remove(session.id);
+				respond(exchange, 200, message("deleted"));
+			}else{
+				respond(exchange, 200, session.toJson());
+			}
+		}else if(path.length == 4 && path[3].equals("state")){
+			respond(exchange, 200, new JSONObject().put("id", session.id).put("state", session.getState()));
+		}else if(path.length == 4 && path[3].equals("statements")){
+			if(method.equals("POST")){
+				submitStatement(exchange, session);
+			}else{
+				statementListRequests.incrementAndGet();
+				Map<String, String> query = parseQuery(exchange.getRequestURI().getQuery());
+				int from = query.containsKey("from") ? parseId(query.get("from")) : 0;
+				int size = query.containsKey("size") ? parseId(query.get("size")) : Integer.MAX_VALUE;
+				respond(exchange, 200, session.statementsToJson(from, size, "desc".equalsIgnoreCase(query.get("order"))));
+			}
+		}else if(path.length >= 5 && path[3].equals("statements")){
+			FakeStatement statement = session.getRetainedStatement(parseId(path[4]));
+			if(statement == null){
+				respond(exchange, 404, message("Statement not found"));
+			}else if(path.length == 6 && path[5].equals("cancel")){
+				session.cancel(statement);
+				respond(exchange, 200, message("canceled"));
+			}else{
+				statementRequests.incrementAndGet();
+				respond(exchange, 200, statement.toJson());
+			}
+		}else{
+			respond(exchange, 404, message("Not found"));
+		}
+	}
+
+	private void dispatchBatches(HttpExchange exchange) throws IOException, JSONException {
+		requests.incrementAndGet();
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		if(path.length == 2){
+			if(method.equals("POST")){
+				JSONObject request = new JSONObject(readBody(exchange));
+				long startsAt = System.currentTimeMillis() + sessionStartup.nextMillis(random);
+				FakeBatch batch = new FakeBatch(nextBatchId.getAndIncrement(), request, startsAt,
+						startsAt + statementLatency.nextMillis(random), random.nextDouble() < statementErrorRate);
+				batches.put(batch.id, batch);
+				respond(exchange, 201, batch.toJson());
+			}else{
+				JSONArray batchesArray = new JSONArray();
+				for(FakeBatch batch: batches.values()){
+					batchesArray.put(batch.toJson());
+				}
+				respond(exchange, 200, new JSONObject().put("from", 0).put("total", batchesArray.length()).put("sessions", batchesArray));
+			}
+			return;
+		}
+		FakeBatch batch = batches.get(parseId(path[2]));
+		if(batch == null){
+			respond(exchange, 404, message("Batch '" + path[2] + "' not found."));
+		}else if(path.length == 3 && method.equals("DELETE")){
+			batch.killed = true;
+			batches.remove(batch.id);
+			respond(exchange, 200, message("deleted"));
+		}else if(path.length == 3){
+			respond(exchange, 200, batch.toJson());
+		}else if(path.length == 4 && path[3].equals("state")){
+			respond(exchange, 200, new JSONObject().put("id", batch.id).put("state", batch.getState()));
+		}else{
+			respond(exchange, 404, message("Not found"));
+		}
+	}
+
+	private void listSessions(HttpExchange exchange) throws IOException, JSONException {
+		JSONArray sessionsArray = new JSONArray();
+		for(FakeSession session: sessions.values()){
+			sessionsArray.put(session.toJson());
+		}
+		respond(exchange, 200, new JSONObject().put("from", 0).put("total", sessionsArray.length()).put("sessions", sessionsArray));
+	}
+
+	private synchronized void createSession(HttpExchange exchange) throws IOException, JSONException {
+		JSONObject request = new JSONObject(readBody(exchange));
+		if(sessions.size() >= maxSessions){
+			respond(exchange, 400, message("Rejected, too many sessions are being created!"));
+			return;
+		}
+		FakeSession session = new FakeSession(nextSessionId.getAndIncrement(), request.optString("kind", "spark"),
+				System.currentTimeMillis() + sessionStartup.nextMillis(random));
+		sessions.put(session.id, session);
+		respond(exchange, 201, session.toJson());
+	}
+
+	private void submitStatement(HttpExchange exchange, FakeSession session) throws IOException, JSONException {
+		JSONObject request = new JSONObject(readBody(exchange));
+		if(session.isDead()){
+			respond(exchange, 400, message("Session is in state dead"));
+			return;
+		}
+		FakeStatement statement = session.submit(request.getString("code"),
+				statementLatency.nextMillis(random), random.nextDouble() < statementErrorRate);
+		statementsSubmitted.incrementAndGet();
+		respond(exchange, 201, statement.toJson());
+	}
+
+	private static int parseId(String id){
+		try {
+			return Integer.parseInt(id);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query){
+		Map<String, String> parameters = new HashMap<String, String>();
+		if(query != null){
+			for(String parameter: query.split("&")){
+				int equals = parameter.indexOf('=');
+				if(equals > 0){
+					parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1){
+			body.write(buffer, 0, read);
+		}
+		return body.toString("UTF-8");
+	}
+
+	private static JSONObject message(String message){
+		return new JSONObject(Collections.singletonMap("msg", message));
+	}
+
+	private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException {
+		byte[] bytes = body.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private class FakeSession {
+		private final int id;
+		private final String kind;
+		private final long readyAt;
+		private final List<FakeStatement> statements = new ArrayList<FakeStatement>();
+		private boolean dead = false;
+
+		private FakeSession(int id, String kind, long readyAt){
+			this.id = id;
+			this.kind = kind;
+			this.readyAt = readyAt;
+		}
+
+		private synchronized FakeStatement submit(String code, long runMillis, boolean error){
+			FakeStatement statement = new FakeStatement(statements.size(), code, System.currentTimeMillis(), runMillis, error);
+			statements.add(statement);
+			schedule(statements.size() - 1);
+			prune(statement.submitted);
+			return statement;
+		}
+
+		/**
+		 * Drops the oldest finished statements beyond the retained count, as Livy does when a statement is submitted.
+		 */
+		private void prune(long now){
+			int retained = 0;
+			for(FakeStatement statement: statements){
+				retained += statement.pruned ? 0 : 1;
+			}
+			for(int i=0; i<statements.size() && retained > retainedStatements; i++){
+				FakeStatement statement = statements.get(i);
+				if(!statement.pruned && statement.end <= now){
+					statement.pruned = true;
+					retained--;
+				}
+			}
+		}
+
+		private synchronized void cancel(FakeStatement statement){
+			long now = System.currentTimeMillis();
+			if(statement.cancelled || statement.end <= now){
+				return;
+			}
+			statement.cancelled = true;
+			statement.end = Math.max(statement.start, now);
+			schedule(statement.id + 1);
+		}
+
+		/**
+		 * Lines statements up one after another from the given index, as the Livy REPL runs them.
+		 */
+		private void schedule(int from){
+			for(int i=from; i<statements.size(); i++){
+				FakeStatement statement = statements.get(i);
+				long previousEnd = i == 0 ? readyAt : statements.get(i - 1).end;
+				statement.start = Math.max(statement.submitted, Math.max(readyAt, previousEnd));
+				statement.end = statement.start + statement.runMillis;
+			}
+		}
+
+		private synchronized FakeStatement getStatement(int statementId){
+			return statementId >= 0 && statementId < statements.size() ? statements.get(statementId) : null;
+		}
+
+		private synchronized FakeStatement getRetainedStatement(int statementId){
+			FakeStatement statement = getStatement(statementId);
+			return statement == null || statement.pruned ? null : statement;
+		}
+
+		private synchronized void kill(){
+			dead = true;
+		}
+
+		private synchronized boolean isDead(){
+			return dead;
+		}
+
+		private synchronized String getState(){
+			long now = System.currentTimeMillis();
+			if(dead){
+				return "dead";
+			}
+			if(now < readyAt){
+				return "starting";
+			}
+			if(!statements.isEmpty() && now < statements.get(statements.size() - 1).end){
+				return "busy";
+			}
+			return "idle";
+		}
+
+		private JSONObject toJson() throws JSONException {
+			return new JSONObject()
+					.put("id", id)
+					.put("appId", "application_0000000000000_" + id)
+					.put("owner", JSONObject.NULL)
+					.put("proxyUser", JSONObject.NULL)
+					.put("kind", kind)
+					.put("state", getState())
+					.put("log", new JSONArray());
+		}
+
+		private synchronized JSONObject statementsToJson(int from, int size, boolean descending) throws JSONException {
+			List<FakeStatement> retained = new ArrayList<FakeStatement>();
+			for(FakeStatement statement: statements){
+				if(!statement.pruned){
+					retained.add(statement);
+				}
+			}
+			if(descending){
+				Collections.reverse(retained);
+			}
+			JSONArray statementsArray = new JSONArray();
+			for(int i = Math.max(from, 0); i < retained.size() && i - from < size; i++){
+				statementsArray.put(retained.get(i).toJson());
+			}
+			return new JSONObject().put("total_statements", retained.size()).put("statements", statementsArray);
+		}
+	}
+
+	private static class FakeBatch {
+		private final int id;
+		private final JSONObject request;
+		private final long startsAt;
+		private final long endsAt;
+		private final boolean error;
+		private volatile boolean killed = false;
+
+		private FakeBatch(int id, JSONObject request, long startsAt, long endsAt, boolean error){
+			this.id = id;
+			this.request = request;
+			this.startsAt = startsAt;
+			this.endsAt = endsAt;
+			this.error = error;
+		}
+
+		private String getState(){
+			long now = System.currentTimeMillis();
+			if(killed){
+				return "killed";
+			}
+			if(now < startsAt){
+				return "starting";
+			}
+			if(now < endsAt){
+				return "running";
+			}
+			return error ? "dead" : "success";
+		}
+
+		private JSONObject toJson() throws JSONException {
+			String state = getState();
+			return new JSONObject()
+					.put("id", id)
+					.put("name", request.optString("name", null))
+					.put("appId", state.equals("starting") ? JSONObject.NULL : "application_0000000000001_" + id)
+					.put("state", state)
+					.put("log", new JSONArray());
+		}
+	}
+
+	private class FakeStatement {
+		private final int id;
+		private final String code;
+		private final long submitted;
+		private final long runMillis;
+		private final boolean error;
+		private volatile long start;
+		private volatile long end;
+		private volatile boolean cancelled = false;
+		private boolean pruned = false;
+
+		private FakeStatement(int id, String code, long submitted, long runMillis, boolean error){
+			this.id = id;
+			this.code = code;
+			this.submitted = submitted;
+			this.runMillis = runMillis;
+			this.error = error;
+		}
+
+		private String getState(){
+			long now = System.currentTimeMillis();
+			if(cancelled){
+				return now < end ? "cancelling" : "cancelled";
+			}
+			if(now < start){
+				return "waiting";
+			}
+			if(now < end){
+				return "running";
+			}
+			return "available";
+		}
+
+		private JSONObject toJson() throws JSONException {
+			String state = getState();
+			JSONObject statement = new JSONObject()
+					.put("id", id)
+					.put("code", code)
+					.put("state", state);
+			if(state.equals("available")){
+				statement.put("progress", 1.0);
+				JSONObject output = new JSONObject().put("execution_count", id);
+				if(error){
+					output.put("status", "error")
+						.put("ename", "SimulatedError")
+						.put("evalue", "Statement " + id + " failed")
+						.put("traceback", new JSONArray());
+				}else if(code.contains(FATAL_CODE)){
+					output.put("status", "error")
+						.put("ename", "Error")
+						.put("evalue", fatalOutput(code))
+						.put("traceback", new JSONArray());
+				}else{
+					output.put("status", "ok")
+						.put("data", outputData(code));
+				}
+				statement.put("output", output);
+			}else{
+				statement.put("progress", state.equals("running") ? 0.5 : 0.0);
+				statement.put("output", JSONObject.NULL);
+			}
+			return statement;
+		}
+	}
+
+	private JSONObject outputData(String code) throws JSONException {
+		Matcher table = TABLE_CODE.matcher(code.trim());
+		if(!table.matches()){
+			return new JSONObject().put("text/plain", output(code));
+		}
+		JSONArray headers = new JSONArray()
+				.put(new JSONObject().put("name", "id").put("type", "INT_TYPE"))
+				.put(new JSONObject().put("name", "name").put("type", "STRING_TYPE"))
+				.put(new JSONObject().put("name", "score").put("type", "DOUBLE_TYPE"));
+		JSONArray rows = new JSONArray();
+		int rowCount = Integer.parseInt(table.group(1));
+		for(int i=0; i<rowCount; i++){
+			rows.put(new JSONArray().put(i).put("row " + i).put(i / 2.0));
+		}
+		return new JSONObject().put("application/vnd.livy.table.v1+json", new JSONObject().put("headers", headers).put("data", rows));
+	}
+
+	private String output(String code){
+		Matcher batchMarkers = BATCH_MARKER.matcher(code);
+		if(!batchMarkers.find()){
+			return itemOutput(code);
+		}
+		//A micro-batch prints begin and ok markers around the output of each item
+		StringBuilder output = new StringBuilder();
+		do {
+			String marker = batchMarkers.group(1);
+			output.append(marker).append(":begin\n")
+				.append(itemOutput(marker)).append('\n')
+				.append(marker).append(":ok\n");
+		} while(batchMarkers.find());
+		return output.toString();
+	}
+
+	/**
+	 * @return what a statement that fails with a fatal error prints before it fails: nothing for a single
+	 * statement, and up to the begin marker of the failing item for a micro-batch
+	 */
+	private String fatalOutput(String code){
+		Matcher batchMarkers = BATCH_MARKER.matcher(code);
+		StringBuilder output = new StringBuilder();
+		if(!batchMarkers.find()){
+			return output.toString();
+		}
+		while(true){
+			String marker = batchMarkers.group(1);
+			output.append(marker).append(":begin\n");
+			int itemStart = batchMarkers.end();
+			boolean last = !batchMarkers.find();
+			if(code.substring(itemStart, last ? code.length() : batchMarkers.start()).contains(FATAL_CODE)){
+				return output.toString();
+			}
+			output.append(itemOutput(marker)).append('\n')
+				.append(marker).append(":ok\n");
+			if(last){
+				return output.toString();
+			}
+		}
+	}
+
+	private String itemOutput(String code){
+		StringBuilder output = new StringBuilder("res").append(code.length()).append(": Long = ").append(code.hashCode());
+		while(output.length() < outputChars){
+			output.append('\n').append("row ").append(output.length());
+		}
+		return output.toString();
+	}
+
+	public static class Builder {
+		private int port = 0;
+		private int serverThreads = 16;
+		private LatencyDistribution sessionStartup = LatencyDistribution.fixed(500);
+		private LatencyDistribution statementLatency = LatencyDistribution.fixed(50);
+		private double statementErrorRate = 0;
+		private double httpErrorRate = 0;
+		private int maxSessions = Integer.MAX_VALUE;
+		private int outputChars = 0;
+		private int retainedStatements = 100;
+		private long seed = 42;
+
+		/**
+		 * @param port port to listen on, 0 picks a free one
+		 */
+		public Builder port(int port){
+			this.port = port;
+			return this;
+		}
+
+		public Builder serverThreads(int serverThreads){
+			this.serverThreads = serverThreads;
+			return this;
+		}
+
+		public Builder sessionStartup(LatencyDistribution sessionStartup){
+			this.sessionStartup = sessionStartup;
+			return this;
+		}
+
+		public Builder statementLatency(LatencyDistribution statementLatency){
+			this.statementLatency = statementLatency;
+			return this;
+		}
+
+		/**
+		 * @param statementErrorRate fraction of statements that complete with an error output
+		 */
+		public Builder statementErrorRate(double statementErrorRate){
+			this.statementErrorRate = statementErrorRate;
+			return this;
+		}
+
+		/**
+		 * @param httpErrorRate fraction of requests answered with HTTP 500
+		 */
+		public Builder httpErrorRate(double httpErrorRate){
+			this.httpErrorRate = httpErrorRate;
+			return this;
+		}
+
+		/**
+		 * @param maxSessions sessions beyond this many are rejected, as when the cluster is out of capacity
+		 */
+		public Builder maxSessions(int maxSessions){
+			this.maxSessions = maxSessions;
+			return this;
+		}
+
+		/**
+		 * @param outputChars minimum length of the text output of each statement
+		 */
+		public Builder outputChars(int outputChars){
+			this.outputChars = outputChars;
+			return this;
+		}
+
+		/**
+		 * @param retainedStatements how many statements a session keeps, as livy.rsc.retained-statements
+		 */
+		public Builder retainedStatements(int retainedStatements){
+			this.retainedStatements = retainedStatements;
+			return this;
+		}
+
+		public Builder seed(long seed){
+			this.seed = seed;
+			return this;
+		}
+
+		public FakeLivyServer build() throws IOException {
+			return new FakeLivyServer(this);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.hortonworks.nifi.simulator;
+
+import java.util.Random;
+
+/**
+ * Distribution the simulated Livy server draws session startup times and statement run times from.
+ */
+public abstract class LatencyDistribution {
+
+	public abstract long nextMillis(Random random);
+
+	public static LatencyDistribution fixed(final long millis){
+		return new LatencyDistribution() {
+			public long nextMillis(Random random){
+				return millis;
+			}
+		};
+	}
+
+	public static LatencyDistribution uniform(final long minMillis, final long maxMillis){
+		return new LatencyDistribution() {
+			public long nextMillis(Random random){
+				return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+			}
+		};
+	}
+
+	public static LatencyDistribution exponential(final long meanMillis){
+		return new LatencyDistribution() {
+			public long nextMillis(Random random){
+				return (long) (-meanMillis * Math.log(1 - random.nextDouble()));
+			}
+		};
+	}
+
+	/**
+	 * Long-tailed run times, typical of Spark jobs: most close to the median, a few many times slower.
+	 */
+	public static LatencyDistribution logNormal(final long medianMillis, final double sigma){
+		return new LatencyDistribution() {
+			public long nextMillis(Random random){
+				return (long) (medianMillis * Math.exp(sigma * random.nextGaussian()));
+			}
+		};
+	}
+}
@@ -0,0 +1,83 @@
+package com.hortonworks.nifi.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.state.MockStateManager;
+import org.junit.Test;
+
+/**
+ * Runs several nodes' {@link ClusterSessionCoordinator} against one in-memory cluster state, as the
+ * nodes of a NiFi cluster share the cluster state of the Livy controller service.
+ */
+public class TestClusterSessionCoordinator {
+	private static final String LIVY = "http://livy:8998";
+
+	private final MockStateManager clusterState = new MockStateManager(new LivySessionController());
+
+	@Test
+	public void testBudgetIsSplitBetweenNodes() throws Exception {
+		ClusterSessionCoordinator first = new ClusterSessionCoordinator(clusterState, "node-1", 5, 60000);
+		ClusterSessionCoordinator second = new ClusterSessionCoordinator(clusterState, "node-2", 5, 60000);
+		assertEquals(5, first.update(Collections.<String, String>emptyMap()).getShare());
+
+		ClusterSessionCoordinator.Assignment secondAssignment = second.update(Collections.<String, String>emptyMap());
+		assertEquals(2, secondAssignment.getNodes());
+		assertEquals(2, secondAssignment.getShare());
+		ClusterSessionCoordinator.Assignment firstAssignment = first.update(sessions(0, 1, 2));
+		assertEquals(3, firstAssignment.getShare());
+		assertEquals(3, firstAssignment.getClusterSessions());
+	}
+
+	@Test
+	public void testSessionsHaveASingleOwner() throws Exception {
+		ClusterSessionCoordinator first = new ClusterSessionCoordinator(clusterState, "node-1", 4, 60000);
+		ClusterSessionCoordinator second = new ClusterSessionCoordinator(clusterState, "node-2", 4, 60000);
+		first.update(sessions(0, 1));
+
+		ClusterSessionCoordinator.Assignment assignment = second.update(sessions(1, 2));
+		assertEquals(Collections.singleton(session(1)), assignment.getLostSessions());
+		assertEquals(3, assignment.getClusterSessions());
+		clusterState.assertStateEquals("session:" + session(1), "node-1:spark", Scope.CLUSTER);
+		clusterState.assertStateEquals("session:" + session(2), "node-2:spark", Scope.CLUSTER);
+	}
+
+	@Test
+	public void testSessionsOfNodesThatLeaveAreTakenOver() throws Exception {
+		ClusterSessionCoordinator first = new ClusterSessionCoordinator(clusterState, "node-1", 4, 200);
+		ClusterSessionCoordinator second = new ClusterSessionCoordinator(clusterState, "node-2", 4, 200);
+		first.update(sessions(0, 1));
+		Map<String, String> secondSessions = sessions(2);
+		secondSessions.put(session(3), "pyspark");
+		second.update(secondSessions);
+		Thread.sleep(100);
+		assertEquals(2, first.update(sessions(0, 1)).getShare());
+
+		//node-2 stops recording heartbeats
+		Thread.sleep(150);
+		ClusterSessionCoordinator.Assignment assignment = first.update(sessions(0, 1));
+		assertEquals(1, assignment.getNodes());
+		assertEquals(4, assignment.getShare());
+		//Claimed sessions keep the kind they were opened with
+		assertEquals(2, assignment.getClaimedSessions().size());
+		assertEquals("spark", assignment.getClaimedSessions().get(session(2)));
+		assertEquals("pyspark", assignment.getClaimedSessions().get(session(3)));
+		assertEquals(4, assignment.getClusterSessions());
+	}
+
+	private static Map<String, String> sessions(int... sessionIds){
+		Map<String, String> sessions = new HashMap<String, String>();
+		for(int sessionId: sessionIds){
+			sessions.put(session(sessionId), "spark");
+		}
+		return sessions;
+	}
+
+	private static String session(int sessionId){
+		return OwnedSession.key(LIVY, sessionId);
+	}
+}
@@ -0,0 +1,275 @@
+package com.hortonworks.nifi.controller;
+
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.disable;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.enableController;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newLivy;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newRunner;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.waitForSessions;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Test;
+
+import com.hortonworks.nifi.controller.api.LivySessionLease;
+import com.hortonworks.nifi.processors.ExecuteSparkInteractive;
+import com.hortonworks.nifi.simulator.FakeLivyServer;
+import com.hortonworks.nifi.simulator.LatencyDistribution;
+
+/**
+ * Runs the Livy controller service against {@link FakeLivyServer}, with ExecuteSparkInteractive
+ * submitting the statements that use its sessions.
+ */
+public class TestLivySessionController {
+	private FakeLivyServer livy;
+	private FakeLivyServer secondLivy;
+
+	@After
+	public void stopLivy(){
+		if(livy != null){
+			livy.close();
+		}
+		if(secondLivy != null){
+			secondLivy.close();
+		}
+	}
+
+	@Test
+	public void testInitCodeRunsOncePerSession() throws Exception {
+		livy = newLivy().build().start();
+		String initCode = "import org.apache.spark.sql.functions._";
+		String profileCode = "val events = spark.table(\"events\").cache()";
+		Map<String,String> controllerProperties = new HashMap<String,String>();
+		controllerProperties.put(LivySessionController.SESSION_INIT_CODE.getName(), initCode);
+		controllerProperties.put("events", profileCode);
+		TestRunner runner = newRunner(livy, 2, controllerProperties);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.INIT_PROFILE, "events");
+			for(int i=0; i<20; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", "events.count()"));
+			}
+			runner.run(20);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 20);
+			int profileRuns = 0;
+			int statements = 0;
+			for(int sessionId=0; sessionId<2; sessionId++){
+				List<String> codes = livy.getStatementCodes(sessionId);
+				assertEquals(initCode, codes.get(0));
+				assertEquals(1, Collections.frequency(codes, initCode));
+				assertTrue(Collections.frequency(codes, profileCode) <= 1);
+				profileRuns += Collections.frequency(codes, profileCode);
+				statements += Collections.frequency(codes, "events.count()");
+			}
+			assertTrue(profileRuns >= 1);
+			assertEquals(20, statements);
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testLeastRecentlyUsedDatasetIsUnpersisted() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 2, Collections.singletonMap(LivySessionController.DATASET_CACHE_LIMIT.getName(), "100 B"));
+		try {
+			String[] datasets = {"first", "second", "third"};
+			for(int i=0; i<datasets.length; i++){
+				Map<String,String> attributes = new HashMap<String,String>();
+				attributes.put("code", "val " + datasets[i] + " = spark.range(" + i + ").cache()");
+				attributes.put(ExecuteSparkInteractive.DATASET_PROVIDES_ATTRIBUTE, datasets[i]);
+				attributes.put(ExecuteSparkInteractive.DATASET_SIZE_ATTRIBUTE, "40 B");
+				if(i > 0){
+					attributes.put(ExecuteSparkInteractive.DATASET_REQUIRES_ATTRIBUTE, datasets[i - 1]);
+				}
+				runner.enqueue(new byte[0], attributes);
+				runner.run(1, false, i == 0);
+			}
+			runner.run(1, true, false);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 3);
+			List<String> codes = new ArrayList<String>();
+			for(int id=0; id<2; id++){
+				codes.addAll(livy.getStatementCodes(id));
+			}
+			assertEquals(1, Collections.frequency(codes, "first.unpersist()"));
+			assertEquals(0, Collections.frequency(codes, "second.unpersist()"));
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testSessionsSpreadAndFailOverAcrossLivyServers() throws Exception {
+		livy = newLivy().build().start();
+		secondLivy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 4, Collections.singletonMap(LivySessionController.LIVY_HOST.getName(),
+				"localhost:" + livy.getPort() + ", localhost:" + secondLivy.getPort()));
+		try {
+			assertEquals(2, livy.getSessionCount());
+			assertEquals(2, secondLivy.getSessionCount());
+			runner.setThreadCount(4);
+			for(int i=0; i<40; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", "spark.range(" + i + ").count()"));
+			}
+			runner.run(40, false, true);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 40);
+			assertTrue(livy.getStatementsSubmitted() > 0);
+			assertTrue(secondLivy.getStatementsSubmitted() > 0);
+
+			//Once the session manager has seen the second server go away, only the first one is used
+			secondLivy.close();
+			long submittedToSecond = secondLivy.getStatementsSubmitted();
+			Thread.sleep(3000);
+			for(int i=0; i<40; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", "spark.range(" + i + ").count()"));
+			}
+			runner.run(40, true, false);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 80);
+			assertEquals(submittedToSecond, secondLivy.getStatementsSubmitted());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testSessionsAreAdoptedAfterRestart() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = TestRunners.newTestRunner(ExecuteSparkInteractive.class);
+		LivySessionController controller = enableController(runner, livy, 2,
+				Collections.singletonMap(LivySessionController.SESSION_INIT_CODE.getName(), "import org.apache.spark.sql.functions._"));
+		waitForSessions(controller, 2);
+		int foreignSession = livy.addSession("spark");
+		disable(runner);
+		assertEquals(3, livy.getSessionCount());
+		
+		//Enabled again, the service takes its sessions back as they are, without running the init code again
+		runner.enableControllerService(controller);
+		List<LivySessionLease> leases = new ArrayList<LivySessionLease>();
+		for(int i=0; i<2; i++){
+			LivySessionLease lease = controller.acquireSession(30, TimeUnit.SECONDS);
+			assertNotNull("Sessions were not adopted", lease);
+			assertTrue(lease.getSessionId() != foreignSession);
+			leases.add(lease);
+		}
+		for(LivySessionLease lease: leases){
+			lease.release();
+		}
+		assertEquals(3, livy.getSessionsCreated());
+		assertEquals(1, livy.getStatementCodes(0).size());
+		assertEquals(1, livy.getStatementCodes(1).size());
+		disable(runner);
+		
+		//Sessions of a kind the service no longer opens are deleted, those of other clients are left alone
+		runner.setProperty(controller, LivySessionController.SESSION_KIND, "pyspark");
+		runner.enableControllerService(controller);
+		try {
+			waitForSessions(controller, 2);
+			assertTrue(!livy.hasSession(0) && !livy.hasSession(1));
+			assertTrue(livy.hasSession(foreignSession));
+			assertEquals(5, livy.getSessionsCreated());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testClusterBudgetCapsNodePool() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = TestRunners.newTestRunner(ExecuteSparkInteractive.class);
+		Map<String,String> controllerProperties = new HashMap<String,String>();
+		controllerProperties.put(LivySessionController.MAX_SESSION_POOL_SIZE.getName(), "6");
+		controllerProperties.put(LivySessionController.CLUSTER_SESSION_BUDGET.getName(), "2");
+		LivySessionController controller = enableController(runner, livy, 4, controllerProperties);
+		try {
+			List<LivySessionLease> leases = new ArrayList<LivySessionLease>();
+			for(int i=0; i<2; i++){
+				LivySessionLease lease = controller.acquireSession(30, TimeUnit.SECONDS);
+				assertNotNull("Session pool did not start", lease);
+				leases.add(lease);
+			}
+			//A caller waiting on the leased pool does not grow it past the node's share of the budget
+			assertNull(controller.acquireSession(3, TimeUnit.SECONDS));
+			for(LivySessionLease lease: leases){
+				lease.release();
+			}
+			assertEquals(2, livy.getSessionCount());
+			runner.getStateManager(controller).assertStateSet(Scope.CLUSTER);
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testWornSessionsAreReplacedWithoutGap() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 1, Collections.singletonMap(LivySessionController.SESSION_MAX_STATEMENTS.getName(), "5"));
+		try {
+			for(int i=0; i<10; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", "1 + " + i));
+			}
+			runner.run(10, false, true);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 10);
+			assertEquals(10, livy.getStatementCodes(0).size());
+
+			//The replacement is opened while the worn session still serves leases, which is closed once the replacement is ready
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+			while(livy.hasSession(0) && System.currentTimeMillis() < deadline){
+				Thread.sleep(100);
+			}
+			assertTrue("Worn session was not closed", !livy.hasSession(0));
+			assertEquals(1, livy.getSessionCount());
+			for(int i=0; i<5; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", "2 + " + i));
+			}
+			runner.run(5, true, false);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 15);
+			assertEquals(5, livy.getStatementCodes(1).size());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testStatementsAreTrackedPastRetainedStatements() throws Exception {
+		//Livy prunes finished statements beyond the 100 a session retains, so list positions stop matching statement ids
+		livy = newLivy().statementLatency(LatencyDistribution.fixed(5)).retainedStatements(100).build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.STATEMENT_TIMEOUT, "30 sec");
+			for(int i=0; i<130; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", "1 + " + i));
+			}
+			runner.run(130);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 130);
+			assertEquals(130, livy.getStatementCodes(0).size());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testLongStatementsArePolledWithBackoff() throws Exception {
+		livy = newLivy().statementLatency(LatencyDistribution.fixed(3000)).build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "spark.range(1000000000L).count()"));
+			runner.run();
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 1);
+			//Polls at 100 ms, 200 ms, 400 ms and so on rather than every 100 ms for the whole run
+			assertTrue(livy.getStatementListRequests() + " polls", livy.getStatementListRequests() <= 10);
+		} finally {
+			disable(runner);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.hortonworks.nifi.processors;
+
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.RUN_TIMEOUT_MILLIS;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.disable;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.enableController;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newLivy;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.transferred;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.waitForSessions;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Test;
+
+import com.hortonworks.nifi.controller.LivySessionController;
+import com.hortonworks.nifi.simulator.FakeLivyServer;
+
+/**
+ * Runs ExecuteSparkBatch against {@link FakeLivyServer}.
+ */
+public class TestExecuteSparkBatch {
+	private FakeLivyServer livy;
+
+	@After
+	public void stopLivy(){
+		if(livy != null){
+			livy.close();
+		}
+	}
+
+	@Test
+	public void testBatchesRunWithoutHoldingSessions() throws Exception {
+		livy = newLivy().statementErrorRate(0.3).build().start();
+		TestRunner runner = TestRunners.newTestRunner(ExecuteSparkBatch.class);
+		LivySessionController controller = enableController(runner, livy, 1,
+				Collections.singletonMap(LivySessionController.JARS.getName(), "hdfs:///libs/etl.jar, hdfs:///libs/udfs.jar"));
+		try {
+			waitForSessions(controller, 1);
+			runner.setProperty(ExecuteSparkBatch.LIVY_CONTROLLER_SERVICE, "livy");
+			runner.setProperty(ExecuteSparkBatch.FILE, "hdfs:///jobs/nightly.jar");
+			runner.setProperty(ExecuteSparkBatch.CLASS_NAME, "com.example.Nightly");
+			runner.setProperty(ExecuteSparkBatch.ARGS, "${partition},--full");
+			runner.setProperty(ExecuteSparkBatch.STATUS_CHECK_INTERVAL, "20 ms");
+			final int jobs = 20;
+			for(int i=0; i<jobs; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("partition", "p" + i));
+			}
+			final long deadline = System.currentTimeMillis() + RUN_TIMEOUT_MILLIS;
+			boolean initialize = true;
+			while(transferred(runner, ExecuteSparkBatch.REL_SUCCESS, ExecuteSparkBatch.REL_FAIL) < jobs && System.currentTimeMillis() < deadline){
+				runner.run(1, false, initialize);
+				initialize = false;
+				Thread.sleep(10);
+			}
+			runner.run(1, true, false);
+			assertEquals(jobs, transferred(runner, ExecuteSparkBatch.REL_SUCCESS, ExecuteSparkBatch.REL_FAIL));
+			assertTrue(runner.getFlowFilesForRelationship(ExecuteSparkBatch.REL_FAIL).size() > 0);
+			for(MockFlowFile flowFile: runner.getFlowFilesForRelationship(ExecuteSparkBatch.REL_SUCCESS)){
+				flowFile.assertAttributeEquals(ExecuteSparkBatch.BATCH_STATE_ATTRIBUTE, "success");
+				flowFile.assertAttributeExists(ExecuteSparkBatch.BATCH_APP_ID_ATTRIBUTE);
+			}
+			assertEquals(jobs, livy.getBatchCount());
+			assertEquals(0, livy.getStatementsSubmitted());
+			String request = livy.getBatchRequest(0).toString();
+			assertTrue(request, request.contains("\"className\":\"com.example.Nightly\""));
+			assertTrue(request, request.contains("--full"));
+			assertTrue(request, request.contains("hdfs:\\/\\/\\/libs\\/udfs.jar") || request.contains("hdfs:///libs/udfs.jar"));
+		} finally {
+			disable(runner);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package com.hortonworks.nifi.processors;
+
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.disable;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newLivy;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newRunner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.junit.After;
+import org.junit.Test;
+
+import com.hortonworks.nifi.controller.LivySessionController;
+import com.hortonworks.nifi.simulator.FakeLivyServer;
+import com.hortonworks.nifi.simulator.LatencyDistribution;
+
+/**
+ * Runs ExecuteSparkInteractive against {@link FakeLivyServer} and checks what it submits and how it routes the results.
+ */
+public class TestExecuteSparkInteractive {
+	private FakeLivyServer livy;
+
+	@After
+	public void stopLivy(){
+		if(livy != null){
+			livy.close();
+		}
+	}
+
+	@Test
+	public void testDatasetProvidersAreNotBatched() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.BATCH_SIZE, "4");
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "1 + 1"));
+			Map<String,String> provider = new HashMap<String,String>();
+			provider.put("code", "val events = spark.table(\"events\").cache()");
+			provider.put(ExecuteSparkInteractive.DATASET_PROVIDES_ATTRIBUTE, "events");
+			runner.enqueue(new byte[0], provider);
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "2 + 2"));
+			runner.run(2, true, true);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 3);
+			//The provider runs at the top level of the REPL, where the dataset it defines stays visible
+			List<String> codes = livy.getStatementCodes(0);
+			assertEquals(2, codes.size());
+			assertTrue(codes.contains(provider.get("code")));
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testBatchFailingBeforeItsItemsRunsThemOneByOne() throws Exception {
+		livy = newLivy().statementErrorRate(1.0).build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.BATCH_SIZE, "4");
+			for(int i=0; i<4; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", i + " + 1"));
+			}
+			runner.run(1, true, true);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_FAIL, 4);
+			//The batch, then each item on its own
+			assertEquals(5, livy.getStatementCodes(0).size());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testBatchFailingAfterItsItemsBeganIsNotRunAgain() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.BATCH_SIZE, "4");
+			for(int i=0; i<4; i++){
+				runner.enqueue(new byte[0], Collections.singletonMap("code", i == 2 ? "%fatal" : i + " + 1"));
+			}
+			runner.run(1, true, true);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_FAIL, 4);
+			assertEquals(1, livy.getStatementCodes(0).size());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testCodeFromContentIsEscaped() throws Exception {
+		livy = newLivy().build().start();
+		String code = "val s = \"quoted \\\"text\\\" and a \\\\ backslash\"\r\n\tprintln(s + \"\u00e9\u4e2d\")\n";
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.CODE_SOURCE, ExecuteSparkInteractive.CODE_FROM_CONTENT);
+			runner.enqueue(code.getBytes("UTF-8"));
+			runner.run();
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 1);
+			assertEquals(code, livy.getStatementCode(0, 0));
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testStatementsRouteToSessionCachingDataset() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 3);
+		try {
+			Map<String,String> provider = new HashMap<String,String>();
+			provider.put("code", "val events = spark.table(\"events\").cache()");
+			provider.put(ExecuteSparkInteractive.DATASET_PROVIDES_ATTRIBUTE, "events");
+			runner.enqueue(new byte[0], provider);
+			runner.run(1, false, true);
+			for(int i=0; i<10; i++){
+				Map<String,String> consumer = new HashMap<String,String>();
+				consumer.put("code", "events.count()");
+				consumer.put(ExecuteSparkInteractive.DATASET_REQUIRES_ATTRIBUTE, "events");
+				runner.enqueue(new byte[0], consumer);
+			}
+			runner.run(10, true, false);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 11);
+			int sessionsWithDataset = 0;
+			for(int sessionId=0; sessionId<3; sessionId++){
+				List<String> codes = livy.getStatementCodes(sessionId);
+				if(codes.contains(provider.get("code"))){
+					sessionsWithDataset++;
+					assertEquals(10, Collections.frequency(codes, "events.count()"));
+				}
+			}
+			assertEquals(1, sessionsWithDataset);
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testCacheableStatementsSkipLivy() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			for(int i=0; i<10; i++){
+				Map<String,String> attributes = new HashMap<String,String>();
+				attributes.put("code", "spark.table(\"countries\").count()");
+				attributes.put(ExecuteSparkInteractive.CACHEABLE_ATTRIBUTE, "true");
+				runner.enqueue(new byte[0], attributes);
+			}
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "spark.table(\"countries\").count()"));
+			runner.run(11);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 11);
+			assertEquals(2, livy.getStatementsSubmitted());
+			assertEquals(9, runner.getCounterValue("Result Cache Hits").intValue());
+			String output = new String(runner.getFlowFilesForRelationship(ExecuteSparkInteractive.REL_SUCCESS).get(0).toByteArray(), "UTF-8");
+			for(MockFlowFile flowFile: runner.getFlowFilesForRelationship(ExecuteSparkInteractive.REL_SUCCESS).subList(0, 10)){
+				flowFile.assertContentEquals(output);
+			}
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testTableOutputIsWrittenAsRecords() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.addControllerService("writer", new LineRecordSetWriter());
+			runner.enableControllerService(runner.getControllerService("writer"));
+			runner.setProperty(ExecuteSparkInteractive.RECORD_WRITER, "writer");
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "%table 3\nSELECT id, name, score FROM scores"));
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "spark.range(1).count()"));
+			runner.run(2);
+			runner.assertTransferCount(ExecuteSparkInteractive.REL_SUCCESS, 1);
+			runner.assertTransferCount(ExecuteSparkInteractive.REL_FAIL, 1);
+			MockFlowFile flowFile = runner.getFlowFilesForRelationship(ExecuteSparkInteractive.REL_SUCCESS).get(0);
+			flowFile.assertAttributeEquals(ExecuteSparkInteractive.RECORD_COUNT_ATTRIBUTE, "3");
+			flowFile.assertAttributeEquals("mime.type", "text/plain");
+			flowFile.assertContentEquals("0,row 0,0.0\n1,row 1,0.5\n2,row 2,1.0\n");
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testStatementsPastDeadlineAreCancelled() throws Exception {
+		livy = newLivy().statementLatency(LatencyDistribution.fixed(60000)).build().start();
+		TestRunner runner = newRunner(livy, 1);
+		try {
+			runner.setProperty(ExecuteSparkInteractive.STATEMENT_TIMEOUT, "300 ms");
+			runner.enqueue(new byte[0], Collections.singletonMap("code", "spark.range(1000000000000L).count()"));
+			Map<String,String> attributes = new HashMap<String,String>();
+			attributes.put("code", "spark.range(1000000000000L).count()");
+			attributes.put(ExecuteSparkInteractive.STATEMENT_TIMEOUT_ATTRIBUTE, "100 ms");
+			runner.enqueue(new byte[0], attributes);
+			final long start = System.currentTimeMillis();
+			runner.run(2);
+			assertTrue("Statements were not cancelled in time", System.currentTimeMillis() - start < 30000);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_FAIL, 2);
+			for(MockFlowFile flowFile: runner.getFlowFilesForRelationship(ExecuteSparkInteractive.REL_FAIL)){
+				flowFile.assertAttributeEquals(ExecuteSparkInteractive.STATEMENT_STATE_ATTRIBUTE, ExecuteSparkInteractive.TIMEOUT_STATE);
+			}
+			assertEquals(2, runner.getCounterValue("Statements Timed Out").intValue());
+			//The cancelled session went back to the pool rather than being replaced
+			assertEquals(1, livy.getSessionCount());
+			assertEquals(2, livy.getStatementCodes(0).size());
+		} finally {
+			disable(runner);
+		}
+	}
+
+	@Test
+	public void testFlowFilesPickTheSessionKind() throws Exception {
+		livy = newLivy().build().start();
+		TestRunner runner = newRunner(livy, 1,
+				Collections.singletonMap(LivySessionController.SESSION_KINDS.getName(), "spark, pyspark:2"));
+		runner.setProperty(ExecuteSparkInteractive.SESSION_KIND, "${livy.kind}");
+		runner.setProperty(ExecuteSparkInteractive.BATCH_SIZE, "4");
+		try {
+			for(int i=0; i<12; i++){
+				Map<String,String> attributes = new HashMap<String,String>();
+				attributes.put("code", "len(\"item" + i + "x\")");
+				attributes.put("livy.kind", i % 3 == 0 ? "spark" : "PySpark");
+				runner.enqueue(new byte[0], attributes);
+			}
+			runner.run(12, true, true);
+			runner.assertAllFlowFilesTransferred(ExecuteSparkInteractive.REL_SUCCESS, 12);
+			//One manager keeps both pools at their own size
+			assertEquals(1, livy.getSessionCount("spark"));
+			assertEquals(2, livy.getSessionCount("pyspark"));
+			//Batches only hold FlowFiles of one kind
+			StringBuilder pysparkCode = new StringBuilder();
+			for(int sessionId: livy.getSessionIds("pyspark")){
+				pysparkCode.append(livy.getStatementCodes(sessionId));
+			}
+			StringBuilder sparkCode = new StringBuilder();
+			for(int sessionId: livy.getSessionIds("spark")){
+				sparkCode.append(livy.getStatementCodes(sessionId));
+			}
+			for(int i=0; i<12; i++){
+				assertEquals(i % 3 != 0, pysparkCode.indexOf("item" + i + "x") >= 0);
+				assertEquals(i % 3 == 0, sparkCode.indexOf("item" + i + "x") >= 0);
+			}
+		} finally {
+			disable(runner);
+		}
+	}
+
+	/**
+	 * Writes each record as a line of comma separated values.
+	 */
+	public static class LineRecordSetWriter extends AbstractControllerService implements RecordSetWriterFactory {
+		@Override
+		public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema){
+			return readSchema;
+		}
+
+		@Override
+		public RecordSetWriter createWriter(ComponentLog logger, final RecordSchema schema, final OutputStream out){
+			return new RecordSetWriter() {
+				private int records = 0;
+
+				@Override
+				public WriteResult write(Record record) throws IOException {
+					StringBuilder line = new StringBuilder();
+					for(String field: schema.getFieldNames()){
+						line.append(line.length() == 0 ? "" : ",").append(record.getAsString(field));
+					}
+					out.write(line.append('\n').toString().getBytes("UTF-8"));
+					records++;
+					return WriteResult.of(records, Collections.<String,String>emptyMap());
+				}
+
+				@Override
+				public WriteResult write(RecordSet recordSet) throws IOException {
+					Record record;
+					while((record = recordSet.next()) != null){
+						write(record);
+					}
+					return finishRecordSet();
+				}
+
+				@Override
+				public void beginRecordSet(){
+				}
+
+				@Override
+				public WriteResult finishRecordSet(){
+					return WriteResult.of(records, Collections.<String,String>emptyMap());
+				}
+
+				@Override
+				public String getMimeType(){
+					return "text/plain";
+				}
+
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+
+				@Override
+				public void close(){
+				}
+			};
+		}
+	}
+}
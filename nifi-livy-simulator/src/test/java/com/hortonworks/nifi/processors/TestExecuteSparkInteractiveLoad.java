@@ -0,0 +1,148 @@
+package com.hortonworks.nifi.processors;
+
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.RUN_TIMEOUT_MILLIS;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.disable;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newLivy;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.newRunner;
+import static com.hortonworks.nifi.simulator.SimulatorTestSupport.transferred;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.nifi.util.TestRunner;
+import org.junit.After;
+import org.junit.Test;
+
+import com.hortonworks.nifi.controller.LivySessionController;
+import com.hortonworks.nifi.controller.api.LivyMetrics;
+import com.hortonworks.nifi.simulator.FakeLivyServer;
+
+/**
+ * Runs ExecuteSparkInteractive against {@link FakeLivyServer} and reports throughput and latency
+ * percentiles. The defaults keep the build fast; scale the run up with -Dlivy.load.flowFiles,
+ * -Dlivy.load.threads, -Dlivy.load.sessions and -Dlivy.load.statementMillis.
+ */
+public class TestExecuteSparkInteractiveLoad {
+	private static final int FLOW_FILES = Integer.getInteger("livy.load.flowFiles", 100);
+	private static final int THREADS = Integer.getInteger("livy.load.threads", 4);
+	private static final int SESSIONS = Integer.getInteger("livy.load.sessions", 4);
+
+	private FakeLivyServer livy;
+
+	@After
+	public void stopLivy(){
+		if(livy != null){
+			livy.close();
+		}
+	}
+
+	@Test
+	public void testSynchronousLoad() throws Exception {
+		livy = newLivy().build().start();
+		LoadResult result = runLoad("synchronous", 1, FLOW_FILES);
+		assertEquals(FLOW_FILES, result.succeeded);
+		//Statuses come from the controller service's statement list polls, a statement is only read on its own for its output
+		assertEquals(FLOW_FILES, livy.getStatementRequests());
+		assertTrue(livy.getStatementListRequests() > 0);
+	}
+
+	@Test
+	public void testAsynchronousLoad() throws Exception {
+		livy = newLivy().build().start();
+		LoadResult result = runLoad("asynchronous", 1, FLOW_FILES);
+		assertEquals(FLOW_FILES, result.succeeded);
+		//Statuses come from the controller service's statement list polls, a statement is only read on its own for its output
+		assertEquals(FLOW_FILES, livy.getStatementRequests());
+		assertTrue(livy.getStatementListRequests() > 0);
+	}
+
+	@Test
+	public void testBatchedLoad() throws Exception {
+		livy = newLivy().build().start();
+		LoadResult result = runLoad("synchronous", 10, FLOW_FILES);
+		assertEquals(FLOW_FILES, result.succeeded);
+	}
+
+	@Test
+	public void testStatementErrorsRouteToFailure() throws Exception {
+		livy = newLivy().statementErrorRate(0.2).build().start();
+		LoadResult result = runLoad("synchronous", 1, FLOW_FILES);
+		assertEquals(FLOW_FILES, result.succeeded + result.failed);
+		assertTrue("Expected some statements to fail", result.failed > 0);
+	}
+
+	@Test
+	public void testSessionLimitCapsPool() throws Exception {
+		livy = newLivy().maxSessions(2).build().start();
+		LoadResult result = runLoad("synchronous", 1, FLOW_FILES / 2, 2);
+		assertEquals(FLOW_FILES / 2, result.succeeded);
+		assertTrue(livy.getSessionCount() <= 2);
+	}
+
+	private LoadResult runLoad(String executionMode, int batchSize, int flowFiles) throws Exception {
+		return runLoad(executionMode, batchSize, flowFiles, SESSIONS);
+	}
+
+	private LoadResult runLoad(String executionMode, int batchSize, int flowFiles, int sessions) throws Exception {
+		TestRunner runner = newRunner(livy, sessions);
+		LivySessionController controller = (LivySessionController) runner.getControllerService("livy");
+		try {
+			runner.setProperty(ExecuteSparkInteractive.EXECUTION_MODE, executionMode);
+			runner.setProperty(ExecuteSparkInteractive.BATCH_SIZE, String.valueOf(batchSize));
+			runner.setThreadCount(THREADS);
+
+			for(int i=0; i<flowFiles; i++){
+				Map<String,String> attributes = new HashMap<String,String>();
+				attributes.put("code", "spark.range(" + i + ").count()");
+				runner.enqueue(new byte[0], attributes);
+			}
+
+			final long start = System.nanoTime();
+			final long deadline = System.currentTimeMillis() + RUN_TIMEOUT_MILLIS;
+			boolean initialize = true;
+			while(transferred(runner, ExecuteSparkInteractive.REL_SUCCESS, ExecuteSparkInteractive.REL_FAIL) < flowFiles && System.currentTimeMillis() < deadline){
+				runner.run(Math.max(THREADS, runner.getQueueSize().getObjectCount()), false, initialize);
+				initialize = false;
+			}
+			final long elapsedNanos = System.nanoTime() - start;
+			runner.run(1, true, false);
+
+			LoadResult result = new LoadResult(
+					runner.getFlowFilesForRelationship(ExecuteSparkInteractive.REL_SUCCESS).size(),
+					runner.getFlowFilesForRelationship(ExecuteSparkInteractive.REL_FAIL).size());
+			report(executionMode, batchSize, flowFiles, sessions, elapsedNanos, controller.getMetrics());
+			return result;
+		} finally {
+			disable(runner);
+		}
+	}
+
+	private void report(String executionMode, int batchSize, int flowFiles, int sessions, long elapsedNanos, LivyMetrics metrics){
+		double seconds = elapsedNanos / 1e9;
+		System.out.println(String.format(
+				"ExecuteSparkInteractive %s, batch size %d, %d FlowFiles, %d threads, %d sessions: %.1f FlowFiles/sec in %.2f s"
+				+ "%n  statement latency p50=%dms p90=%dms p99=%dms max=%dms"
+				+ "%n  lease wait p50=%dms p90=%dms p99=%dms max=%dms"
+				+ "%n  simulated Livy: %d requests, %d statements"
+				+ "%n  %s",
+				executionMode, batchSize, flowFiles, THREADS, sessions, flowFiles / seconds, seconds,
+				metrics.getStatementLatency().getPercentileMillis(50), metrics.getStatementLatency().getPercentileMillis(90),
+				metrics.getStatementLatency().getPercentileMillis(99), metrics.getStatementLatency().getMaxMillis(),
+				metrics.getLeaseWait().getPercentileMillis(50), metrics.getLeaseWait().getPercentileMillis(90),
+				metrics.getLeaseWait().getPercentileMillis(99), metrics.getLeaseWait().getMaxMillis(),
+				livy.getRequestCount(), livy.getStatementsSubmitted(),
+				metrics));
+	}
+
+	private static class LoadResult {
+		private final int succeeded;
+		private final int failed;
+
+		private LoadResult(int succeeded, int failed){
+			this.succeeded = succeeded;
+			this.failed = failed;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.hortonworks.nifi.simulator;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import com.hortonworks.nifi.controller.LivySessionController;
+import com.hortonworks.nifi.controller.api.LivySessionLease;
+import com.hortonworks.nifi.controller.api.LivySessionService;
+import com.hortonworks.nifi.processors.ExecuteSparkInteractive;
+
+/**
+ * Sets up processors and the Livy controller service against {@link FakeLivyServer} for the tests
+ * of the components that run on it. Statements take -Dlivy.load.statementMillis on average.
+ */
+public class SimulatorTestSupport {
+	public static final int STATEMENT_MILLIS = Integer.getInteger("livy.load.statementMillis", 20);
+	public static final long RUN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private SimulatorTestSupport(){
+	}
+
+	public static FakeLivyServer.Builder newLivy(){
+		return new FakeLivyServer.Builder()
+				.sessionStartup(LatencyDistribution.uniform(100, 300))
+				.statementLatency(LatencyDistribution.logNormal(STATEMENT_MILLIS, 0.5));
+	}
+
+	/**
+	 * Creates an ExecuteSparkInteractive runner whose Livy controller service points at the simulator and has a warm pool of the given size.
+	 */
+	public static TestRunner newRunner(FakeLivyServer livy, int sessions) throws Exception {
+		return newRunner(livy, sessions, Collections.<String,String>emptyMap());
+	}
+
+	public static TestRunner newRunner(FakeLivyServer livy, int sessions, Map<String,String> controllerProperties) throws Exception {
+		TestRunner runner = TestRunners.newTestRunner(ExecuteSparkInteractive.class);
+		LivySessionController controller = enableController(runner, livy, sessions, controllerProperties);
+		runner.setProperty(ExecuteSparkInteractive.LIVY_CONTROLLER_SERVICE, "livy");
+		runner.setProperty(ExecuteSparkInteractive.SESSION_WAIT_TIMEOUT, "30 sec");
+		runner.setProperty(ExecuteSparkInteractive.STATUS_CHECK_INTERVAL, "5 ms");
+		waitForSessions(controller, sessions);
+		return runner;
+	}
+
+	/**
+	 * Adds a Livy controller service pointing at the simulator to the runner and enables it.
+	 */
+	public static LivySessionController enableController(TestRunner runner, FakeLivyServer livy, int sessions, Map<String,String> controllerProperties) throws Exception {
+		LivySessionController controller = new LivySessionController();
+		runner.addControllerService("livy", controller, controllerProperties);
+		if(!controllerProperties.containsKey(LivySessionController.LIVY_HOST.getName())){
+			runner.setProperty(controller, LivySessionController.LIVY_HOST, "localhost");
+		}
+		runner.setProperty(controller, LivySessionController.LIVY_PORT, String.valueOf(livy.getPort()));
+		runner.setProperty(controller, LivySessionController.SESSION_POOL_SIZE, String.valueOf(sessions));
+		runner.enableControllerService(controller);
+		return controller;
+	}
+
+	public static void disable(TestRunner runner){
+		runner.disableControllerService(runner.getControllerService("livy"));
+	}
+
+	/**
+	 * Leases every session of the pool once so the run starts with a warm pool.
+	 */
+	public static void waitForSessions(LivySessionService controller, int sessions) throws InterruptedException {
+		List<LivySessionLease> leases = new ArrayList<LivySessionLease>();
+		for(int i=0; i<sessions; i++){
+			LivySessionLease lease = controller.acquireSession(30, TimeUnit.SECONDS);
+			assertNotNull("Session pool did not start", lease);
+			leases.add(lease);
+		}
+		for(LivySessionLease lease: leases){
+			lease.release();
+		}
+	}
+
+	/**
+	 * @return the number of FlowFiles routed to either relationship
+	 */
+	public static int transferred(TestRunner runner, Relationship success, Relationship failure){
+		return runner.getFlowFilesForRelationship(success).size() + runner.getFlowFilesForRelationship(failure).size();
+	}
+}